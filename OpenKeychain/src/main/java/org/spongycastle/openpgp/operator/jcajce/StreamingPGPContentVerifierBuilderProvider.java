@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2015 Vincent Breitmoser
+ * Copyright (c) 2000-2013 The Legion of the Bouncy Castle Inc. (http://www.bouncycastle.org)
+ *
+ * Licensed under the Bouncy Castle License (MIT license). See LICENSE file for details.
+ */
+
+package org.spongycastle.openpgp.operator.jcajce;
+
+import org.spongycastle.asn1.ASN1Encoding;
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.DERNull;
+import org.spongycastle.asn1.nist.NISTObjectIdentifiers;
+import org.spongycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.spongycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.spongycastle.asn1.teletrust.TeleTrusTObjectIdentifiers;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.asn1.x509.DigestInfo;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPContentVerifier;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * This class is based on JcaPGPContentVerifierBuilderProvider.
+ *
+ * Instead of hashing the signed data after the signature is known, this class
+ * hashes the data as it is streamed, with all hash algorithms which may be used
+ * by the signature. Once the signature and its public key are known, the
+ * verifier continues with the digest for the signature's hash algorithm, and
+ * verifies the final digest using a raw (NONEwith*) Signature.
+ *
+ * This is what cleartext signatures need: the hash algorithms are announced in
+ * the armor headers, but the signature itself only follows the signed data.
+ */
+public class StreamingPGPContentVerifierBuilderProvider
+    implements PGPContentVerifierBuilderProvider
+{
+    private final Map<Integer, PGPDigestCalculator> digestCalculators = new HashMap<>();
+    private String providerName;
+
+    public StreamingPGPContentVerifierBuilderProvider(int[] hashAlgorithms, String providerName)
+        throws PGPException
+    {
+        this.providerName = providerName;
+
+        PGPDigestCalculatorProvider calculatorProvider =
+            new JcaPGPDigestCalculatorProviderBuilder().setProvider(providerName).build();
+        for (int hashAlgorithm : hashAlgorithms)
+        {
+            if (!digestCalculators.containsKey(hashAlgorithm))
+            {
+                digestCalculators.put(hashAlgorithm, calculatorProvider.get(hashAlgorithm));
+            }
+        }
+    }
+
+    /**
+     * Data written here is fed to the digests of all hash algorithms.
+     */
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            public void write(int b)
+                throws IOException
+            {
+                for (PGPDigestCalculator calculator : digestCalculators.values())
+                {
+                    calculator.getOutputStream().write(b);
+                }
+            }
+
+            public void write(byte[] b, int off, int len)
+                throws IOException
+            {
+                for (PGPDigestCalculator calculator : digestCalculators.values())
+                {
+                    calculator.getOutputStream().write(b, off, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns true if the data was hashed with this algorithm. Signatures using
+     * other hash algorithms can't be verified, their verifiers always fail.
+     */
+    public boolean isHashed(int hashAlgorithm)
+    {
+        return digestCalculators.containsKey(hashAlgorithm);
+    }
+
+    public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+        throws PGPException
+    {
+        // null if the data wasn't hashed with this algorithm, see isHashed()
+        final PGPDigestCalculator digestCalculator = digestCalculators.get(hashAlgorithm);
+
+        return new PGPContentVerifierBuilder()
+        {
+            public PGPContentVerifier build(final PGPPublicKey publicKey)
+                throws PGPException
+            {
+                final PublicKey jcaKey =
+                    new JcaPGPKeyConverter().setProvider(providerName).getPublicKey(publicKey);
+
+                return new PGPContentVerifier()
+                {
+                    public int getHashAlgorithm()
+                    {
+                        return hashAlgorithm;
+                    }
+
+                    public int getKeyAlgorithm()
+                    {
+                        return keyAlgorithm;
+                    }
+
+                    public long getKeyID()
+                    {
+                        return publicKey.getKeyID();
+                    }
+
+                    public boolean verify(byte[] expected)
+                    {
+                        if (digestCalculator == null)
+                        {
+                            return false;
+                        }
+
+                        try
+                        {
+                            return verifyDigest(keyAlgorithm, hashAlgorithm, jcaKey,
+                                digestCalculator.getDigest(), expected);
+                        }
+                        catch (GeneralSecurityException | IOException e)
+                        {
+                            return false;
+                        }
+                    }
+
+                    public OutputStream getOutputStream()
+                    {
+                        if (digestCalculator == null)
+                        {
+                            return new OutputStream()
+                            {
+                                public void write(int b)
+                                {
+                                }
+                            };
+                        }
+                        return digestCalculator.getOutputStream();
+                    }
+                };
+            }
+        };
+    }
+
+    private boolean verifyDigest(int keyAlgorithm, int hashAlgorithm, PublicKey key,
+                                 byte[] digest, byte[] expected)
+        throws GeneralSecurityException, IOException
+    {
+        Signature signature;
+        switch (keyAlgorithm)
+        {
+        case PublicKeyAlgorithmTags.RSA_GENERAL:
+        case PublicKeyAlgorithmTags.RSA_SIGN:
+            signature = Signature.getInstance("NONEwithRSA", providerName);
+            signature.initVerify(key);
+            // RSA signs the DER encoded DigestInfo, not the bare digest
+            signature.update(new DigestInfo(
+                new AlgorithmIdentifier(getDigestOid(hashAlgorithm), DERNull.INSTANCE), digest)
+                .getEncoded(ASN1Encoding.DER));
+            break;
+        case PublicKeyAlgorithmTags.DSA:
+            signature = Signature.getInstance("NONEwithDSA", providerName);
+            signature.initVerify(key);
+            signature.update(digest);
+            break;
+        case PublicKeyAlgorithmTags.ECDSA:
+            signature = Signature.getInstance("NONEwithECDSA", providerName);
+            signature.initVerify(key);
+            signature.update(digest);
+            break;
+        default:
+            return false;
+        }
+
+        return signature.verify(expected);
+    }
+
+    private static ASN1ObjectIdentifier getDigestOid(int hashAlgorithm)
+        throws GeneralSecurityException
+    {
+        switch (hashAlgorithm)
+        {
+        case HashAlgorithmTags.MD5:
+            return PKCSObjectIdentifiers.md5;
+        case HashAlgorithmTags.SHA1:
+            return OIWObjectIdentifiers.idSHA1;
+        case HashAlgorithmTags.RIPEMD160:
+            return TeleTrusTObjectIdentifiers.ripemd160;
+        case HashAlgorithmTags.SHA224:
+            return NISTObjectIdentifiers.id_sha224;
+        case HashAlgorithmTags.SHA256:
+            return NISTObjectIdentifiers.id_sha256;
+        case HashAlgorithmTags.SHA384:
+            return NISTObjectIdentifiers.id_sha384;
+        case HashAlgorithmTags.SHA512:
+            return NISTObjectIdentifiers.id_sha512;
+        default:
+            throw new GeneralSecurityException("unsupported hash algorithm: " + hashAlgorithm);
+        }
+    }
+}
@@ -89,6 +89,7 @@ public final class Constants {
         public static final String PREF_DEFAULT_VERSION = "keyServersDefaultVersion";
         public static final String FIRST_TIME = "firstTime";
         public static final String CACHED_CONSOLIDATE = "cachedConsolidate";
+        public static final String CONSOLIDATE_RESUME_POINT = "consolidateResumePoint";
         public static final String SEARCH_KEYSERVER = "search_keyserver_pref";
         public static final String SEARCH_KEYBASE = "search_keybase_pref";
         public static final String USE_DEFAULT_YUBIKEY_PIN = "useDefaultYubikeyPin";
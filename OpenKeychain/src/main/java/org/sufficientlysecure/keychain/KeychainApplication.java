@@ -19,6 +19,8 @@ package org.sufficientlysecure.keychain;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.Application;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -29,6 +31,7 @@ import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.widget.Toast;
 
@@ -38,6 +41,7 @@ import org.sufficientlysecure.keychain.provider.TemporaryStorageProvider;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.util.HttpClientRegistry;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -45,6 +49,7 @@ import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.security.Security;
 import java.util.HashMap;
+import java.util.List;
 
 
 public class KeychainApplication extends Application {
@@ -91,6 +96,12 @@ public class KeychainApplication extends Application {
             }
         }
 
+        // cache keyserver responses in the cache dir of the app. The cache directory can't
+        // be shared between processes, and only searches from the ui make use of it.
+        if (isMainProcess()) {
+            HttpClientRegistry.setupCache(this);
+        }
+
         brandGlowEffect(getApplicationContext(),
             FormattingUtils.getColorFromAttr(getApplicationContext(), R.attr.colorPrimary));
 
@@ -135,6 +146,25 @@ public class KeychainApplication extends Application {
         }
     }
 
+    /**
+     * Returns true if this is the main process of the app, as opposed to the ones of the
+     * remote api, passphrase cache and sync services.
+     */
+    private boolean isMainProcess() {
+        ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        List<RunningAppProcessInfo> processes = manager.getRunningAppProcesses();
+        if (processes == null) {
+            return false;
+        }
+        int pid = Process.myPid();
+        for (RunningAppProcessInfo process : processes) {
+            if (process.pid == pid) {
+                return getPackageName().equals(process.processName);
+            }
+        }
+        return false;
+    }
+
     /**
      * Add OpenKeychain account to Android to link contacts with keys
      */
@@ -22,22 +22,79 @@ import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.net.Proxy;
 import java.util.ArrayList;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Search two or more types of server for online keys.
+ * <p/>
+ * Every server is searched in a task on a shared, bounded executor. Results are
+ * merged into one ImportKeysList as they arrive, and reported to an optional
+ * ProgressListener. Each server has its own deadline, after which its search is
+ * cancelled, and the whole search can be cancelled through a flag.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
+    // deadline for each server, counted from the start of the search
+    private final static long DEADLINE_MILLIS = 10 * SECONDS;
+    private final static long DEADLINE_PROXY_MILLIS = 30 * SECONDS;
+    // how often the cancellation flag is checked while waiting for results
+    private final static long CANCEL_POLL_MILLIS = 100;
+
+    private final static int MAX_THREADS = 4;
+    private final static int MAX_QUEUED = 16;
+
+    private final static ThreadPoolExecutor sExecutor;
+
+    static {
+        final AtomicInteger threadCount = new AtomicInteger();
+        sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CloudSearch #" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // no idle threads while no search is running
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called on a search thread whenever results were added. Use
+         * {@link ImportKeysList#snapshot()} to read them.
+         */
+        void onResultsAdded(ImportKeysList results);
+    }
 
     public static ArrayList<ImportKeysListEntry> search(final String query, Preferences.CloudSearchPrefs cloudPrefs,
                                                         final Proxy proxy)
             throws Keyserver.CloudSearchFailureException {
-        final ArrayList<Keyserver> servers = new ArrayList<>();
+        return search(query, cloudPrefs, proxy, null, new AtomicBoolean(false));
+    }
 
-        // it's a Vector for sync, multiple threads might report problems
-        final Vector<Keyserver.CloudSearchFailureException> problems = new Vector<>();
+    /**
+     * @param progressListener notified about results while the search is running, may be null
+     * @param cancelled        once set, the search stops and returns the results found so far
+     */
+    public static ArrayList<ImportKeysListEntry> search(final String query, Preferences.CloudSearchPrefs cloudPrefs,
+                                                        final Proxy proxy,
+                                                        final ProgressListener progressListener,
+                                                        AtomicBoolean cancelled)
+            throws Keyserver.CloudSearchFailureException {
+        final ArrayList<Keyserver> servers = new ArrayList<>();
 
         if (cloudPrefs.searchKeyserver) {
             servers.add(new HkpKeyserver(cloudPrefs.keyserver));
@@ -46,45 +103,67 @@ public class CloudSearch {
             servers.add(new KeybaseKeyserver());
         }
         final ImportKeysList results = new ImportKeysList(servers.size());
+        final ArrayList<Keyserver.CloudSearchFailureException> problems = new ArrayList<>();
 
-        ArrayList<Thread> searchThreads = new ArrayList<>();
+        final Keyserver.SearchListener searchListener = new Keyserver.SearchListener() {
+            @Override
+            public void onSearchResult(ImportKeysListEntry entry) {
+                results.add(entry);
+                if (progressListener != null) {
+                    progressListener.onResultsAdded(results);
+                }
+            }
+        };
+
+        ArrayList<Future<Void>> futures = new ArrayList<>();
         for (final Keyserver keyserver : servers) {
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        results.addAll(keyserver.search(query, proxy));
-                    } catch (Keyserver.CloudSearchFailureException e) {
-                        problems.add(e);
+            try {
+                futures.add(sExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Keyserver.CloudSearchFailureException {
+                        try {
+                            keyserver.search(query, proxy, searchListener);
+                        } finally {
+                            results.finishedAdding();
+                        }
+                        return null;
                     }
-                    results.finishedAdding(); // notifies if all searchers done
-                }
-            };
-            Thread searchThread = new Thread(r);
-            searchThreads.add(searchThread);
-            searchThread.start();
+                }));
+            } catch (RejectedExecutionException e) {
+                results.finishedAdding();
+                problems.add(new Keyserver.QueryFailedException("Too many searches running, "
+                        + keyserver + " was not searched."));
+            }
         }
 
-        // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-        synchronized (results) {
+        long deadline = System.currentTimeMillis()
+                + (proxy != null ? DEADLINE_PROXY_MILLIS : DEADLINE_MILLIS);
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Void> future = futures.get(i);
             try {
-                if (proxy != null) {
-                    results.wait(30 * SECONDS);
+                waitFor(future, deadline, cancelled);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Keyserver.CloudSearchFailureException) {
+                    problems.add((Keyserver.CloudSearchFailureException) e.getCause());
                 } else {
-                    results.wait(10 * SECONDS);
+                    Log.e(Constants.TAG, "Cloud search failed", e.getCause());
+                    problems.add(new Keyserver.QueryFailedException("Search failed: " + e.getCause()));
                 }
-                for (Thread thread : searchThreads) {
-                    // kill threads that haven't returned yet
-                    thread.interrupt();
-		}
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                problems.add(new Keyserver.QueryFailedException("Searching " + servers.get(i)
+                        + " did not complete in time."));
             } catch (InterruptedException e) {
+                cancelled.set(true);
             }
-        }
 
-        if (results.outstandingSuppliers() > 0) {
-            String message = "Launched " + servers.size() + " cloud searchers, but " +
-                    results.outstandingSuppliers() + "failed to complete.";
-            problems.add(new Keyserver.QueryFailedException(message));
+            if (cancelled.get()) {
+                for (Future<Void> f : futures) {
+                    f.cancel(true);
+                }
+                Log.d(Constants.TAG, "Cloud search cancelled");
+                return results.snapshot();
+            }
         }
 
         if (!problems.isEmpty()) {
@@ -98,6 +177,27 @@ public class CloudSearch {
             }
         }
 
-        return results;
+        // searches which timed out may still be adding results
+        return results.snapshot();
+    }
+
+    /**
+     * Waits for the search to complete, until the deadline or until it is cancelled.
+     * Returns normally if it was cancelled.
+     */
+    private static void waitFor(Future<Void> future, long deadline, AtomicBoolean cancelled)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        while (!cancelled.get()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                future.get(Math.min(remaining, CANCEL_POLL_MILLIS), TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // check for cancellation, then wait some more
+            }
+        }
     }
 }
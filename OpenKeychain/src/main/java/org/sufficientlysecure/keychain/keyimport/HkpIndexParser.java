@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+
+/**
+ * Line oriented parser for machine readable index responses of HKP keyservers,
+ * see HkpKeyserver.PUB_KEY_LINE and HkpKeyserver.UID_LINE for the format.
+ * <p/>
+ * The response is read one line at a time, and every key is passed to the
+ * Listener as soon as all of its uid lines are read, so neither the response
+ * nor the list of results has to be held in memory at once. Keys without any
+ * valid uid line, and uid lines of keys with an invalid pub line, are skipped.
+ */
+public class HkpIndexParser {
+
+    public interface Listener {
+        void onEntry(ImportKeysListEntry entry);
+    }
+
+    private final String mQuery;
+    private final String mOrigin;
+    private final int mMaxResults;
+
+    private int mEntryCount;
+    private boolean mTruncated;
+
+    /**
+     * @param query      the search query, to be set in the parsed entries
+     * @param origin     the keyserver, to be added as origin of the parsed entries
+     * @param maxResults number of entries after which parsing stops, or 0 for no limit
+     */
+    public HkpIndexParser(String query, String origin, int maxResults) {
+        mQuery = query;
+        mOrigin = origin;
+        mMaxResults = maxResults;
+    }
+
+    /**
+     * Parses the response from the reader, until it is exhausted or the maximum number
+     * of entries is reached. The reader is not closed.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while parsing
+     */
+    public void parse(Reader reader, Listener listener) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+
+        ImportKeysListEntry entry = null;
+        ArrayList<String> userIds = null;
+        // true while the lines belong to a pub line which could not be parsed
+        boolean skipping = false;
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("search cancelled");
+            }
+            line = line.trim();
+
+            if (line.regionMatches(true, 0, "pub:", 0, 4)) {
+                if (finishEntry(entry, userIds, listener)) {
+                    return;
+                }
+                entry = parsePubLine(line);
+                userIds = new ArrayList<>();
+                skipping = entry == null;
+                continue;
+            }
+
+            if (entry == null || skipping) {
+                continue;
+            }
+
+            if (line.regionMatches(true, 0, "uid:", 0, 4)) {
+                Matcher matcher = HkpKeyserver.UID_LINE.matcher(line);
+                if (matcher.matches()) {
+                    userIds.add(decodeUserId(matcher.group(1)));
+                }
+            }
+        }
+
+        finishEntry(entry, userIds, listener);
+    }
+
+    /** Number of entries passed to the listener so far. */
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /** True if parsing stopped because the maximum number of entries was reached. */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Passes a complete entry to the listener.
+     *
+     * @return true if the maximum number of entries is reached and parsing should stop
+     */
+    private boolean finishEntry(ImportKeysListEntry entry, ArrayList<String> userIds,
+                                Listener listener) {
+        if (entry == null || userIds.isEmpty()) {
+            return false;
+        }
+        if (mMaxResults > 0 && mEntryCount >= mMaxResults) {
+            mTruncated = true;
+            return true;
+        }
+
+        entry.setUserIds(userIds);
+        entry.setPrimaryUserId(userIds.get(0));
+        listener.onEntry(entry);
+        mEntryCount += 1;
+        return false;
+    }
+
+    private ImportKeysListEntry parsePubLine(String line) {
+        // pub:keyid:algo:keylen:creationdate:expirationdate:flags
+        String[] fields = line.split(":", -1);
+        if (fields.length < 7 || fields[1].isEmpty()) {
+            return null;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+        entry.addOrigin(mOrigin);
+
+        try {
+            int bitSize = Integer.parseInt(fields[3]);
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.parseInt(fields[2]);
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            final long creationDate = Long.parseLong(fields[4]);
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = fields[1].toLowerCase(Locale.ENGLISH);
+        for (int i = 0; i < fingerprintOrKeyId.length(); i++) {
+            if (Character.digit(fingerprintOrKeyId.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        if (fingerprintOrKeyId.length() > 16) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        }
+
+        String flags = fields[6].toLowerCase(Locale.ENGLISH);
+        entry.setRevoked(flags.contains("r"));
+        entry.setExpired(flags.contains("e"));
+
+        return entry;
+    }
+
+    private static String decodeUserId(String encoded) {
+        String tmp = encoded.trim();
+        if (tmp.contains("%")) {
+            if (tmp.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                tmp = tmp.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                tmp = URLDecoder.decode(tmp, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                // malformed escape sequence, keep the user id as it was sent
+            }
+        }
+        return tmp;
+    }
+
+}
@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import com.squareup.okhttp.CacheControl;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
@@ -25,23 +26,19 @@ import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.HttpClientRegistry;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.TimeZone;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -140,9 +137,16 @@ public class HkpKeyserver extends Keyserver {
             .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
                     Pattern.CASE_INSENSITIVE);
 
+    /** Maximum number of keys read from the response to a search. */
+    public static final int MAX_SEARCH_RESULTS = 1000;
+
     private static final short PORT_DEFAULT = 11371;
     private static final short PORT_DEFAULT_HKPS = 443;
 
+    /** Makes a request always reach the keyserver, and keeps its response out of the cache. */
+    private static final CacheControl NO_CACHE =
+            new CacheControl.Builder().noCache().noStore().build();
+
     /**
      * @param hostAndPort may be just
      *                    "<code>hostname</code>" (eg. "<code>pool.sks-keyservers.net</code>"), then it will
@@ -194,47 +198,17 @@ public class HkpKeyserver extends Keyserver {
     }
 
     /**
-     * returns a client with pinned certificate if necessary
-     *
-     * @param url
-     * @param proxy
-     * @return
+     * Returns the shared client for this url, with pinned certificate if necessary.
+     * See HttpClientRegistry.
      */
     public static OkHttpClient getClient(URL url, Proxy proxy) throws IOException {
-        OkHttpClient client = new OkHttpClient();
-
-        try {
-            TlsHelper.pinCertificateIfNecessary(client, url);
-        } catch (TlsHelper.TlsHelperException e) {
-            Log.w(Constants.TAG, e);
-        }
-
-        if (proxy != null) {
-            client.setProxy(proxy);
-            client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
-        } else {
-            client.setProxy(Proxy.NO_PROXY);
-            client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
-        }
-        client.setReadTimeout(45000, TimeUnit.MILLISECONDS);
-
-        return client;
+        return HttpClientRegistry.getClient(url, proxy);
     }
 
-    private String query(String request, Proxy proxy) throws QueryFailedException, HttpError {
+    private String query(String request, Proxy proxy, CacheControl cacheControl)
+            throws QueryFailedException, HttpError {
         try {
-            URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
-            Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
-            OkHttpClient client = getClient(url, proxy);
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
-
-            String responseBody = response.body().string();// contains body both in case of success or failure
-
-            if (response.isSuccessful()) {
-                return responseBody;
-            } else {
-                throw new HttpError(response.code(), responseBody);
-            }
+            return openQuery(request, proxy, cacheControl).body().string();
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
             throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
@@ -243,18 +217,53 @@ public class HkpKeyserver extends Keyserver {
     }
 
     /**
-     * Results are sorted by creation date of key!
+     * Runs the request and returns the response, without reading its body unless the
+     * request failed. The body of the returned response must be closed by the caller.
      *
-     * @param query
-     * @return
-     * @throws QueryFailedException
-     * @throws QueryNeedsRepairException
+     * @param cacheControl cache directives for the request, or null to use the cache normally
+     */
+    private Response openQuery(String request, Proxy proxy, CacheControl cacheControl)
+            throws IOException, HttpError {
+        URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
+        Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
+        OkHttpClient client = getClient(url, proxy);
+        Request.Builder builder = new Request.Builder().url(url);
+        if (cacheControl != null) {
+            builder.cacheControl(cacheControl);
+        }
+        Response response = client.newCall(builder.build()).execute();
+
+        if (!response.isSuccessful()) {
+            // contains error message in case of failure
+            throw new HttpError(response.code(), response.body().string());
+        }
+        return response;
+    }
+
+    /**
+     * Results are in the order returned by the keyserver, and limited to
+     * {@link #MAX_SEARCH_RESULTS} entries.
      */
     @Override
     public ArrayList<ImportKeysListEntry> search(String query, Proxy proxy) throws QueryFailedException,
             QueryNeedsRepairException {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        search(query, proxy, new SearchListener() {
+            @Override
+            public void onSearchResult(ImportKeysListEntry entry) {
+                results.add(entry);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Parses the response while it is received, and passes every key to the listener
+     * as soon as it is complete. Stops after {@link #MAX_SEARCH_RESULTS} entries.
+     */
+    @Override
+    public void search(String query, Proxy proxy, final SearchListener listener)
+            throws QueryFailedException, QueryNeedsRepairException {
         if (query.length() < 3) {
             throw new QueryTooShortException();
         }
@@ -263,20 +272,28 @@ public class HkpKeyserver extends Keyserver {
         try {
             encodedQuery = URLEncoder.encode(query, "UTF8");
         } catch (UnsupportedEncodingException e) {
-            return null;
+            return;
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
+        HkpIndexParser parser = new HkpIndexParser(query, getUrlPrefix() + mHost + ":" + mPort,
+                MAX_SEARCH_RESULTS);
+        Response response = null;
         try {
-            data = query(request, proxy);
+            response = openQuery(request, proxy, null);
+            parser.parse(response.body().charStream(), new HkpIndexParser.Listener() {
+                @Override
+                public void onEntry(ImportKeysListEntry entry) {
+                    listener.onSearchResult(entry);
+                }
+            });
         } catch (HttpError e) {
             if (e.getData() != null) {
                 Log.d(Constants.TAG, "returned error data: " + e.getData().toLowerCase(Locale.ENGLISH));
 
                 if (e.getData().toLowerCase(Locale.ENGLISH).contains("no keys found")) {
                     // NOTE: This is also a 404 error for some keyservers!
-                    return results;
+                    return;
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("too many")) {
                     throw new TooManyResponsesException();
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("insufficient")) {
@@ -291,74 +308,42 @@ public class HkpKeyserver extends Keyserver {
             }
 
             throw new QueryFailedException("Querying server(s) for '" + mHost + "' failed.");
-        }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-            entry.addOrigin(getUrlPrefix() + mHost + ":" + mPort);
-
-            int bitSize = Integer.parseInt(matcher.group(3));
-            entry.setBitStrength(bitSize);
-            int algorithmId = Integer.decode(matcher.group(2));
-            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() > 16) {
-                entry.setFingerprintHex(fingerprintOrKeyId);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } catch (InterruptedIOException e) {
+            Log.d(Constants.TAG, "search at HkpKeyserver cancelled");
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
+            // keep the entries parsed before the connection broke
+            if (parser.getEntryCount() == 0) {
+                throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
+                (proxy == null ? "" : " Using proxy " + proxy));
             }
-
-            final long creationDate = Long.parseLong(matcher.group(4));
-            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-            tmpGreg.setTimeInMillis(creationDate * 1000);
-            entry.setDate(tmpGreg.getTime());
-
-            entry.setRevoked(matcher.group(6).contains("r"));
-            entry.setExpired(matcher.group(6).contains("e"));
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    }
+        } finally {
+            if (response != null) {
+                try {
+                    response.body().close();
+                } catch (IOException e) {
+                    // nothing left to read
                 }
-                userIds.add(tmp);
             }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
+        }
 
-            results.add(entry);
+        if (parser.isTruncated()) {
+            Log.d(Constants.TAG, "search for '" + query + "' truncated after "
+                    + parser.getEntryCount() + " results");
         }
-        return results;
     }
 
+    /**
+     * Keys are fetched to import or refresh them, so this always asks the keyserver for
+     * the current version instead of using a cached response, and doesn't cache it.
+     */
     @Override
     public String get(String keyIdHex, Proxy proxy) throws QueryFailedException {
         String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
         Log.d(Constants.TAG, "hkp keyserver get: " + request + " using Proxy: " + proxy);
         String data;
         try {
-            data = query(request, proxy);
+            data = query(request, proxy, NO_CACHE);
         } catch (HttpError httpError) {
             Log.e(Constants.TAG, "Failed to get key at HkpKeyserver", httpError);
             throw new QueryFailedException("not found");
@@ -18,6 +18,7 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
@@ -25,6 +26,8 @@ import java.util.Collection;
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
+    // entries by fingerprint, so that duplicates are found without a scan of the list
+    private final HashMap<String, ImportKeysListEntry> mByFingerprint = new HashMap<>();
 
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
@@ -48,11 +51,16 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
-                return mergeDupes(toAdd, existing);
-            }
+        String fingerprint = toAdd.getFingerprintHex();
+        if (fingerprint == null) {
+            // entries without fingerprint are never the same key as another, see hasSameKeyAs
+            return super.add(toAdd);
+        }
+        ImportKeysListEntry existing = mByFingerprint.get(fingerprint);
+        if (existing != null) {
+            return mergeDupes(toAdd, existing);
         }
+        mByFingerprint.put(fingerprint, toAdd);
         return super.add(toAdd);
     }
 
@@ -105,6 +113,11 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         return modified;
     }
 
+    /** Returns a copy of the current results, safe to read while results are still added. */
+    public synchronized ArrayList<ImportKeysListEntry> snapshot() {
+        return new ArrayList<>(this);
+    }
+
     // NOTE: synchronized
     public synchronized void finishedAdding() {
         mSupplierCount--;
@@ -111,4 +111,9 @@ public class KeybaseKeyserver extends Keyserver {
     public void add(String armoredKey, Proxy proxy) throws AddKeyException {
         throw new AddKeyException();
     }
+
+    @Override
+    public String toString() {
+        return "keybase.io";
+    }
 }
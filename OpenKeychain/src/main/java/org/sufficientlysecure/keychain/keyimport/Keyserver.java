@@ -69,9 +69,30 @@ public abstract class Keyserver {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    public interface SearchListener {
+        /** Called for every result, on the thread running the search. */
+        void onSearchResult(ImportKeysListEntry entry);
+    }
+
     public abstract List<ImportKeysListEntry> search(String query, Proxy proxy) throws QueryFailedException,
             QueryNeedsRepairException;
 
+    /**
+     * Searches like {@link #search(String, Proxy)}, but passes each result to the listener.
+     * Keyservers which can parse their response incrementally pass results while the
+     * search is still running, all others once it is done.
+     */
+    public void search(String query, Proxy proxy, SearchListener listener)
+            throws QueryFailedException, QueryNeedsRepairException {
+        List<ImportKeysListEntry> results = search(query, proxy);
+        if (results == null) {
+            return;
+        }
+        for (ImportKeysListEntry entry : results) {
+            listener.onSearchResult(entry);
+        }
+    }
+
     public abstract String get(String keyIdHex, Proxy proxy) throws QueryFailedException;
 
     public abstract void add(String armoredKey, Proxy proxy) throws AddKeyException;
@@ -23,6 +23,8 @@ import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants.key;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.pgp.PassphraseCacheInterface;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -41,6 +43,9 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
 
     final public ProviderHelper mProviderHelper;
 
+    /// Time spent in the phases of this operation, does nothing unless enabled
+    final public OperationTimings mTimings = OperationTimings.create();
+
     /** An abstract base class for all *Operation classes. It provides a number
      * of common methods for progress, cancellation and passphrase cache handling.
      *
@@ -99,6 +104,18 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
         }
     }
 
+    /**
+     * Attaches the timings recorded by this operation to its result, and writes them
+     * to logcat. Does nothing unless timings are enabled.
+     */
+    protected <R extends OperationResult> R withTimings(R result) {
+        if (mTimings.isEnabled()) {
+            result.setTimings(mTimings.copy());
+            mTimings.log(getClass().getSimpleName());
+        }
+        return result;
+    }
+
     protected boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
@@ -124,11 +141,14 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
 
     @Override
     public Passphrase getCachedPassphrase(long masterKeyId, long subKeyId) throws NoSecretKeyException {
+        long start = mTimings.start();
         try {
             return PassphraseCacheService.getCachedPassphrase(
                     mContext, masterKeyId, subKeyId);
         } catch (PassphraseCacheService.KeyNotFoundException e) {
             throw new PassphraseCacheInterface.NoSecretKeyException();
+        } finally {
+            mTimings.end(Phase.PASSPHRASE_CACHE, start);
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.DecryptBatchResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify.SharedKeyLookups;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyBatchInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Decrypts a number of files concurrently, on a pool bounded by the number of cores.
+ *
+ * Secret keyring and passphrase lookups are shared between all files of the batch.
+ * The result of each file is handed to the PartialResultListener as soon as it is
+ * finished, in the order files finish. Files which require user input (passphrase
+ * or nfc) are not handled here, their pending result is reported like any other,
+ * and it is up to the caller to decrypt them individually.
+ */
+public class DecryptBatchOperation extends BaseOperation<PgpDecryptVerifyBatchInputParcel> {
+
+    private static final int MAX_PARALLEL_FILES =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    public interface PartialResultListener {
+        /** Called on the thread executing the operation, once for every file. */
+        void onPartialResult(int index, DecryptVerifyResult result);
+    }
+
+    private final PartialResultListener mListener;
+
+    public DecryptBatchOperation(Context context, ProviderHelper providerHelper,
+                                 Progressable progressable, AtomicBoolean cancelled,
+                                 PartialResultListener listener) {
+        super(context, providerHelper, progressable, cancelled);
+        mListener = listener;
+    }
+
+    @NonNull
+    @Override
+    public DecryptBatchResult execute(PgpDecryptVerifyBatchInputParcel input,
+                                      final CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+        final ArrayList<PgpDecryptVerifyInputParcel> inputs = input.getInputs();
+        int total = inputs.size();
+
+        log.add(LogType.MSG_DC_BATCH, 0, total);
+
+        final SharedKeyLookups sharedKeyLookups = new SharedKeyLookups();
+        int ok = 0, fail = 0, pending = 0;
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARALLEL_FILES, total)));
+        try {
+
+            CompletionService<IndexedResult> completionService =
+                    new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < total; i++) {
+                final int index = i;
+                completionService.submit(new Callable<IndexedResult>() {
+                    @Override
+                    public IndexedResult call() {
+                        return new IndexedResult(index,
+                                decryptFile(inputs.get(index), cryptoInput, sharedKeyLookups));
+                    }
+                });
+            }
+
+            updateProgress(0, total);
+            for (int done = 0; done < total; done++) {
+
+                IndexedResult indexedResult;
+                try {
+                    indexedResult = completionService.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                    return new DecryptBatchResult(DecryptBatchResult.RESULT_CANCELLED, log,
+                            ok, fail, pending);
+                } catch (ExecutionException e) {
+                    // decryptFile reports all expected errors in its result, this is a bug
+                    Log.e(Constants.TAG, "error in batch decryption", e.getCause());
+                    log.add(LogType.MSG_DC_BATCH_ERROR, 1);
+                    return new DecryptBatchResult(DecryptBatchResult.RESULT_ERROR, log,
+                            ok, fail, pending);
+                }
+
+                DecryptVerifyResult result = indexedResult.mResult;
+                if (result.isPending()) {
+                    pending += 1;
+                } else if (result.success()) {
+                    ok += 1;
+                } else {
+                    fail += 1;
+                }
+
+                if (mListener != null) {
+                    mListener.onPartialResult(indexedResult.mIndex, result);
+                }
+                updateProgress(done + 1, total);
+
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                    return new DecryptBatchResult(DecryptBatchResult.RESULT_CANCELLED, log,
+                            ok, fail, pending);
+                }
+            }
+
+        } finally {
+            // on cancel, don't start any more files
+            executor.shutdownNow();
+        }
+
+        int result = DecryptBatchResult.RESULT_OK;
+        if (fail > 0) {
+            log.add(LogType.MSG_DC_BATCH_FAILED, 1, fail);
+        }
+        if (pending > 0) {
+            log.add(LogType.MSG_DC_BATCH_PENDING, 1, pending);
+        }
+        if (fail > 0) {
+            log.add(LogType.MSG_DC_BATCH_PARTIAL, 1);
+            result |= DecryptBatchResult.RESULT_WARNINGS;
+        } else {
+            log.add(LogType.MSG_DC_BATCH_OK, 1);
+        }
+        return new DecryptBatchResult(result, log, ok, fail, pending);
+
+    }
+
+    /** Runs on a worker thread. */
+    private DecryptVerifyResult decryptFile(PgpDecryptVerifyInputParcel input,
+            CryptoInputParcel cryptoInput, SharedKeyLookups sharedKeyLookups) {
+
+        // the operation adds session keys to its crypto input, so every file gets its own
+        CryptoInputParcel fileCryptoInput = new CryptoInputParcel(cryptoInput.getPassphrase());
+        fileCryptoInput.mCachePassphrase = cryptoInput.mCachePassphrase;
+        fileCryptoInput.addCryptoData(cryptoInput.getCryptoData());
+
+        // progress is reported per file by execute(), and ProviderHelper is not thread safe
+        PgpDecryptVerify op = new PgpDecryptVerify(mContext, new ProviderHelper(mContext), null);
+        op.setSharedKeyLookups(sharedKeyLookups);
+        return op.execute(input, fileCryptoInput);
+    }
+
+    private static class IndexedResult {
+        final int mIndex;
+        final DecryptVerifyResult mResult;
+
+        IndexedResult(int index, DecryptVerifyResult result) {
+            mIndex = index;
+            mResult = result;
+        }
+    }
+
+}
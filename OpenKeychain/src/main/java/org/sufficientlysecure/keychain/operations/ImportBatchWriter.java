@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.PreparedKeyRing;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+/**
+ * The database end of an import. Public keyrings are collected and written BATCH_SIZE
+ * at a time, each batch in a single transaction. Secret keyrings are rare and written
+ * immediately.
+ * <p/>
+ * Every entry of the import has a log of its own, which is appended to the import log
+ * once the entry is written, in the order entries were added. The writer also keeps
+ * the counters for the ImportKeyResult.
+ * <p/>
+ * This class is not thread safe, all calls must happen on the same thread.
+ */
+class ImportBatchWriter {
+
+    static final int BATCH_SIZE = 50;
+
+    private final ProviderHelper mProviderHelper;
+    private final OperationLog mLog;
+
+    private final ArrayList<PendingEntry> mPending = new ArrayList<>();
+    private final ArrayList<PreparedKeyRing> mPendingPrepared = new ArrayList<>();
+    private final HashSet<Long> mPendingMasterKeyIds = new HashSet<>();
+    // master key ids written (or about to be written) during this import
+    private final HashSet<Long> mWrittenMasterKeyIds = new HashSet<>();
+
+    private int mNewKeys = 0, mUpdatedKeys = 0, mBadKeys = 0, mSecret = 0;
+    private final ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
+
+    ImportBatchWriter(ProviderHelper providerHelper, OperationLog log) {
+        mProviderHelper = providerHelper;
+        mLog = log;
+    }
+
+    /** Adds an entry which could not be imported. */
+    void addBad(OperationLog entryLog) {
+        if (mPending.isEmpty()) {
+            finish(null, null, entryLog);
+            return;
+        }
+        mPending.add(new PendingEntry(null, entryLog));
+    }
+
+    /**
+     * Adds a keyring to be saved.
+     *
+     * @param prepared the result of preparePublicKeyRing for this keyring, or null if it
+     *                 should be prepared here. Ignored for secret keyrings.
+     */
+    void add(UncachedKeyRing key, PreparedKeyRing prepared, OperationLog entryLog,
+             Progressable progress) {
+        long masterKeyId = key.getMasterKeyId();
+
+        // prepared keyrings are merged with the database contents at the time, which is
+        // outdated if the same keyring was written since. prepare again in that case,
+        // after the previous version has been committed.
+        if (prepared != null && mWrittenMasterKeyIds.contains(masterKeyId)) {
+            prepared = null;
+        }
+        if (key.isSecret() || mPendingMasterKeyIds.contains(masterKeyId)) {
+            flush();
+        }
+        mWrittenMasterKeyIds.add(masterKeyId);
+
+        if (key.isSecret()) {
+            mProviderHelper.clearLog(mLog.getMinLevel());
+            finish(key, mProviderHelper.saveSecretKeyRing(key, progress), entryLog);
+            return;
+        }
+
+        if (prepared == null) {
+            mProviderHelper.clearLog(mLog.getMinLevel());
+            prepared = mProviderHelper.preparePublicKeyRing(key, progress);
+        }
+
+        mPending.add(new PendingEntry(key, entryLog));
+        mPendingPrepared.add(prepared);
+        mPendingMasterKeyIds.add(masterKeyId);
+
+        if (mPendingPrepared.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /** Writes all pending keyrings to the database. */
+    void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        List<SaveKeyringResult> results =
+                mProviderHelper.savePreparedKeyRings(mPendingPrepared, new ProgressScaler());
+
+        int i = 0;
+        for (PendingEntry entry : mPending) {
+            finish(entry.mKey, entry.mKey != null ? results.get(i++) : null, entry.mLog);
+        }
+
+        mPending.clear();
+        mPendingPrepared.clear();
+        mPendingMasterKeyIds.clear();
+    }
+
+    private void finish(UncachedKeyRing key, SaveKeyringResult result, OperationLog entryLog) {
+        if (result == null || !result.success()) {
+            mBadKeys += 1;
+        } else if (result.updated()) {
+            mUpdatedKeys += 1;
+            mImportedMasterKeyIds.add(key.getMasterKeyId());
+        } else {
+            mNewKeys += 1;
+            if (key.isSecret()) {
+                mSecret += 1;
+            }
+            mImportedMasterKeyIds.add(key.getMasterKeyId());
+        }
+
+        if (result != null) {
+            entryLog.add(result, 2);
+        }
+        mLog.addAll(entryLog);
+    }
+
+    OperationLog getLog() {
+        return mLog;
+    }
+
+    int getNewKeys() {
+        return mNewKeys;
+    }
+
+    int getUpdatedKeys() {
+        return mUpdatedKeys;
+    }
+
+    int getBadKeys() {
+        return mBadKeys;
+    }
+
+    int getSecret() {
+        return mSecret;
+    }
+
+    List<Long> getImportedMasterKeyIds() {
+        return mImportedMasterKeyIds;
+    }
+
+    private static class PendingEntry {
+        // null if this entry could not be imported
+        final UncachedKeyRing mKey;
+        final OperationLog mLog;
+
+        PendingEntry(UncachedKeyRing key, OperationLog log) {
+            mKey = key;
+            mLog = log;
+        }
+    }
+
+}
@@ -25,13 +25,6 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -46,9 +39,11 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
-import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -83,6 +78,9 @@ import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
  */
 public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
+    /** Imports of more keys than this drop debug entries from their log. */
+    static final int DEBUG_LOG_MAX_KEYS = 100;
+
     public ImportOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -159,7 +157,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
 
-        OperationLog log = new OperationLog();
+        OperationLog log = new OperationLog(getMinLogLevel(num));
         log.add(LogType.MSG_IMPORT, 0, num);
 
         // If there aren't even any keys, do nothing here.
@@ -167,8 +165,13 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
         }
 
-        int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
-        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        ImportBatchWriter writer = new ImportBatchWriter(mProviderHelper, log);
+        // keys are imported one at a time here, so spread out the verification of each.
+        // the helper may be shared with the caller, so restore its settings afterwards
+        boolean parallelCanonicalize = mProviderHelper.isParallelCanonicalize();
+        OperationTimings timings = mProviderHelper.getTimings();
+        mProviderHelper.setParallelCanonicalize(true);
+        mProviderHelper.setTimings(mTimings);
 
         boolean cancelled = false;
         int position = 0;
@@ -177,154 +180,208 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         KeybaseKeyserver keybaseServer = null;
         HkpKeyserver keyServer = null;
 
-        // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+        try {
+            // iterate over all entries
+            while (entries.hasNext()) {
+                ParcelableKeyRing entry = entries.next();
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
 
-            try {
+                // log entries for this key, added to the log once it is saved
+                OperationLog entryLog = new OperationLog(log.getMinLevel());
 
-                UncachedKeyRing key = null;
+                try {
 
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
-                }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri);
-                        }
+                    UncachedKeyRing key = null;
 
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy)
-                                        .getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
-                            }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
-                        }
+                    // If there is already byte data, use that
+                    if (entry.mBytes != null) {
+                        key = UncachedKeyRing.decodeFromData(entry.mBytes);
                     }
+                    // Otherwise, we need to fetch the data from a server first
+                    else {
+                        ArrayList<UncachedKeyRing> fetched = new ArrayList<>(2);
+
+                        // We fetch from keyservers first, because we tend to get more certificates
+                        // from there, so the number of certificates which are merged in later is
+                        // smaller.
+
+                        // If we have a keyServerUri and a fingerprint or at least a keyId,
+                        // download from HKP
+                        if (keyServerUri != null
+                                && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                            // Make sure we have the keyserver instance cached
+                            if (keyServer == null) {
+                                entryLog.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+                                keyServer = new HkpKeyserver(keyServerUri);
+                            }
 
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver();
+                            long start = mTimings.start();
+                            fetched.add(fetchFromKeyserver(keyServer, entry, proxy, entryLog));
+                            mTimings.end(Phase.KEY_FETCH, start);
                         }
 
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
-
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
-                                key = keybaseKey;
+                        // If we have a keybase name, try to fetch from there
+                        if (entry.mKeybaseName != null) {
+                            // Make sure we have this cached
+                            if (keybaseServer == null) {
+                                keybaseServer = new KeybaseKeyserver();
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+
+                            long start = mTimings.start();
+                            fetched.add(fetchFromKeybase(keybaseServer, entry, proxy, entryLog));
+                            mTimings.end(Phase.KEY_FETCH, start);
                         }
-                    }
-                }
 
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
-                }
+                        key = mergeFetched(fetched, entryLog);
+                    }
 
-                // If we have an expected fingerprint, make sure it matches
-                if (entry.mExpectedFingerprint != null) {
-                    if (!key.containsSubkey(entry.mExpectedFingerprint)) {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
-                        badKeys += 1;
+                    if (key == null) {
+                        entryLog.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                        writer.addBad(entryLog);
                         continue;
-                    } else {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
                     }
-                }
 
-                // Another check if we have been cancelled
-                if (checkCancelled()) {
-                    cancelled = true;
-                    break;
-                }
+                    // If we have an expected fingerprint, make sure it matches
+                    if (entry.mExpectedFingerprint != null) {
+                        if (!key.containsSubkey(entry.mExpectedFingerprint)) {
+                            entryLog.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
+                            writer.addBad(entryLog);
+                            continue;
+                        } else {
+                            entryLog.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
+                        }
+                    }
 
-                SaveKeyringResult result;
-                mProviderHelper.clearLog();
-                if (key.isSecret()) {
-                    result = mProviderHelper.saveSecretKeyRing(key,
-                            new ProgressScaler(progressable, (int) (position * progSteps),
-                                    (int) ((position + 1) * progSteps), 100));
-                } else {
-                    result = mProviderHelper.savePublicKeyRing(key,
+                    // Another check if we have been cancelled
+                    if (checkCancelled()) {
+                        cancelled = true;
+                        break;
+                    }
+
+                    writer.add(key, null, entryLog,
                             new ProgressScaler(progressable, (int) (position * progSteps),
                                     (int) ((position + 1) * progSteps), 100));
+
+                } catch (IOException | PgpGeneralException e) {
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                    writer.addBad(entryLog);
                 }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else if (result.updated()) {
-                    updatedKeys += 1;
-                    importedMasterKeyIds.add(key.getMasterKeyId());
-                } else {
-                    newKeys += 1;
-                    if (key.isSecret()) {
-                        secret += 1;
-                    }
-                    importedMasterKeyIds.add(key.getMasterKeyId());
-                }
+                // update progress
+                position++;
+            }
+
+            // keys which were added before a cancel are still saved
+            writer.flush();
+        } finally {
+            mProviderHelper.setParallelCanonicalize(parallelCanonicalize);
+            mProviderHelper.setTimings(timings);
+        }
 
-                log.add(result, 2);
+        return buildImportResult(writer, progressable, cancelled);
+    }
 
-            } catch (IOException | PgpGeneralException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+    /**
+     * Fetches a keyring from an HKP keyserver, by fingerprint or key id - whichever is available.
+     *
+     * @return the fetched keyring, or null if it could not be retrieved
+     */
+    static UncachedKeyRing fetchFromKeyserver(HkpKeyserver keyServer, ParcelableKeyRing entry,
+                                              Proxy proxy, OperationLog log)
+            throws IOException, PgpGeneralException {
+        try {
+            byte[] data;
+            // Download by fingerprint, or keyId - whichever is available
+            if (entry.mExpectedFingerprint != null) {
+                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                        entry.mExpectedFingerprint.substring(24));
+                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy)
+                        .getBytes();
+            } else {
+                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
+            }
+            UncachedKeyRing key = UncachedKeyRing.decodeFromData(data);
+            if (key != null) {
+                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+            } else {
+                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
             }
-            // update progress
-            position++;
+            return key;
+        } catch (Keyserver.QueryFailedException e) {
+            Log.e(Constants.TAG, "query failed", e);
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a keyring from keybase.io.
+     *
+     * @return the fetched keyring, or null if it could not be retrieved
+     */
+    static UncachedKeyRing fetchFromKeybase(KeybaseKeyserver keybaseServer, ParcelableKeyRing entry,
+                                            Proxy proxy, OperationLog log)
+            throws IOException, PgpGeneralException {
+        try {
+            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
+            return UncachedKeyRing.decodeFromData(data);
+        } catch (Keyserver.QueryFailedException e) {
+            // download failed, too bad. just proceed
+            Log.e(Constants.TAG, "query failed", e);
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+            return null;
         }
+    }
+
+    /**
+     * Merges the keyrings fetched for a single entry from different sources, in one pass.
+     *
+     * @param fetched the fetched keyrings, in order of preference. null entries are ignored.
+     * @return the merged keyring, the first keyring if the merge failed, or null if none
+     */
+    static UncachedKeyRing mergeFetched(List<UncachedKeyRing> fetched, OperationLog log) {
+        ArrayList<UncachedKeyRing> keys = new ArrayList<>(fetched.size());
+        for (UncachedKeyRing key : fetched) {
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        if (keys.size() == 1) {
+            return keys.get(0);
+        }
+
+        log.add(LogType.MSG_IMPORT_MERGE, 3);
+        UncachedKeyRing first = keys.get(0);
+        UncachedKeyRing merged = first.mergeAll(keys.subList(1, keys.size()), log, 4);
+        // If the merge failed, use the first key
+        if (merged == null) {
+            log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+            return first;
+        }
+        return merged;
+    }
+
+    /**
+     * Builds the final result of an import, consolidating the database first if any secret
+     * keys were imported.
+     */
+    @NonNull
+    ImportKeyResult buildImportResult(ImportBatchWriter writer, Progressable progressable,
+                                      boolean cancelled) {
+
+        OperationLog log = writer.getLog();
+        int newKeys = writer.getNewKeys(), updatedKeys = writer.getUpdatedKeys();
+        int badKeys = writer.getBadKeys(), secret = writer.getSecret();
+        List<Long> importedMasterKeyIds = writer.getImportedMasterKeyIds();
 
         // Special: consolidate on secret key import (cannot be cancelled!)
         if (secret > 0) {
@@ -428,7 +485,12 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         }
 
         ContactSyncAdapterService.requestSync();
-        return result;
+        return withTimings(result);
+    }
+
+    /** Large imports log per key only what the user may want to look at. */
+    static LogLevel getMinLogLevel(int numKeys) {
+        return numKeys > DEBUG_LOG_MAX_KEYS ? LogLevel.INFO : LogLevel.DEBUG;
     }
 
     @NonNull
@@ -436,156 +498,26 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                                                    int totKeys, final String keyServer,
                                                    final Proxy proxy) {
         Log.d(Constants.TAG, "Multi-threaded key import starting");
-        if (keyListIterator != null) {
-            KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-
-            final ProgressScaler ignoreProgressable = new ProgressScaler();
-
-            final int maxThreads = 200;
-            ExecutorService importExecutor = new ThreadPoolExecutor(0, maxThreads,
-                    30L, TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>());
-
-            ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                    new ExecutorCompletionService<>(importExecutor);
-
-            while (keyListIterator.hasNext()) { // submit all key rings to be imported
-
-                final ParcelableKeyRing pkRing = keyListIterator.next();
-
-                Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                        () {
-
-                    @Override
-                    public ImportKeyResult call() {
-
-                        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                        list.add(pkRing);
-
-                        return serialKeyRingImport(list, keyServer, ignoreProgressable, proxy);
-                    }
-                };
-
-                importCompletionService.submit(importOperationCallable);
-            }
-
-            while (!accumulator.isImportFinished()) { // accumulate the results of each import
-                try {
-                    accumulator.accumulateKeyImport(importCompletionService.take().get());
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                            "import", e);
-                    // do nothing?
-                    if (e instanceof ExecutionException) {
-                        // Since serialKeyRingImport does not throw any exceptions, this is what
-                        // would have happened if
-                        // we were importing the key on this thread
-                        throw new RuntimeException();
-                    }
-                }
-            }
-            return accumulator.getConsolidatedResult();
-        }
-        return null; // TODO: Decide if we should just crash instead of returning null
-    }
-
-    /**
-     * Used to accumulate the results of individual key imports
-     */
-    private class KeyImportAccumulator {
-        private OperationResult.OperationLog mImportLog = new OperationResult.OperationLog();
-        Progressable mProgressable;
-        private int mTotalKeys;
-        private int mImportedKeys = 0;
-        ArrayList<Long> mImportedMasterKeyIds = new ArrayList<Long>();
-        private int mBadKeys = 0;
-        private int mNewKeys = 0;
-        private int mUpdatedKeys = 0;
-        private int mSecret = 0;
-        private int mResultType = 0;
-
-        /**
-         * Accumulates keyring imports and updates the progressable whenever a new key is imported.
-         * Also sets the progress to 0 on instantiation.
-         *
-         * @param totalKeys            total number of keys to be imported
-         * @param externalProgressable the external progressable to be updated every time a key
-         *                             is imported
-         */
-        public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
-            mTotalKeys = totalKeys;
-            mProgressable = externalProgressable;
-            mProgressable.setProgress(0, totalKeys);
-        }
 
-        public int getTotalKeys() {
-            return mTotalKeys;
-        }
+        OperationLog log = new OperationLog(getMinLogLevel(totKeys));
+        log.add(LogType.MSG_IMPORT, 0, totKeys);
 
-        public int getImportedKeys() {
-            return mImportedKeys;
+        if (keyListIterator == null || !keyListIterator.hasNext()) {
+            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
         }
 
-        public synchronized void accumulateKeyImport(ImportKeyResult result) {
-            mImportedKeys++;
-
-            mProgressable.setProgress(mImportedKeys, mTotalKeys);
-
-            mImportLog.addAll(result.getLog().toList());//accumulates log
-            mBadKeys += result.mBadKeys;
-            mNewKeys += result.mNewKeys;
-            mUpdatedKeys += result.mUpdatedKeys;
-            mSecret += result.mSecret;
-
-            long[] masterKeyIds = result.getImportedMasterKeyIds();
-            for (long masterKeyId : masterKeyIds) {
-                mImportedMasterKeyIds.add(masterKeyId);
-            }
-
-            // if any key import has been cancelled, set result type to cancelled
-            // resultType is added to in getConsolidatedKayImport to account for remaining factors
-            mResultType |= result.getResult() & ImportKeyResult.RESULT_CANCELLED;
+        if (keyServer != null) {
+            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServer);
         }
 
-        /**
-         * returns accumulated result of all imports so far
-         */
-        public ImportKeyResult getConsolidatedResult() {
-
-            // adding required information to mResultType
-            // special case,no keys requested for import
-            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0) {
-                mResultType = ImportKeyResult.RESULT_FAIL_NOTHING;
-            } else {
-                if (mNewKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
-                }
-                if (mUpdatedKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_UPDATED;
-                }
-                if (mBadKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                    if (mNewKeys == 0 && mUpdatedKeys == 0) {
-                        mResultType |= ImportKeyResult.RESULT_ERROR;
-                    }
-                }
-                if (mImportLog.containsWarnings()) {
-                    mResultType |= ImportKeyResult.RESULT_WARNINGS;
-                }
-            }
-
-            long masterKeyIds[] = new long[mImportedMasterKeyIds.size()];
-            for (int i = 0; i < masterKeyIds.length; i++) {
-                masterKeyIds[i] = mImportedMasterKeyIds.get(i);
-            }
+        ProviderHelper providerHelper = new ProviderHelper(mContext);
+        providerHelper.setTimings(mTimings);
+        ImportBatchWriter writer = new ImportBatchWriter(providerHelper, log);
+        ImportPipeline pipeline = new ImportPipeline(mContext, keyServer, proxy, mProgressable,
+                mCancelled, mTimings);
+        pipeline.run(keyListIterator, totKeys, writer);
 
-            return new ImportKeyResult(mResultType, mImportLog, mNewKeys, mUpdatedKeys, mBadKeys,
-                    mSecret, masterKeyIds);
-        }
-
-        public boolean isImportFinished() {
-            return mTotalKeys == mImportedKeys;
-        }
+        return buildImportResult(writer, mProgressable, pipeline.isCancelled());
     }
 
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.PreparedKeyRing;
+import org.sufficientlysecure.keychain.util.HttpClientRegistry;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+/**
+ * A pipelined engine for importing many keys at once, used by ImportOperation
+ * for imports from key lists.
+ *
+ * Every key passes through three stages:
+ * <ol>
+ * <li>fetch: download from keyserver and/or keybase.io, and decode. This is
+ * I/O bound, and runs on a small pool with a bounded number of concurrent
+ * connections per host.</li>
+ * <li>prepare: check the fingerprint, merge with the data in the database,
+ * canonicalize and build the database operations. This is cpu bound, and
+ * runs on a pool sized to the number of cores.</li>
+ * <li>save: write the prepared operations to the database, in batches of several
+ * keyrings per transaction. This happens exclusively on the calling thread through
+ * an ImportBatchWriter, so there is only ever a single writer.</li>
+ * </ol>
+ *
+ * The number of keys held between reading the input and writing to the
+ * database is limited, so that a slow stage throttles the ones before it.
+ *
+ * Every stage keeps a StageStats counter, which are logged after the import.
+ */
+class ImportPipeline {
+
+    private static final int MAX_CONNECTIONS_PER_HOST =
+            HttpClientRegistry.MAX_CONNECTIONS_PER_HOST;
+    private static final int FETCH_THREADS = 2 * MAX_CONNECTIONS_PER_HOST;
+    private static final int PREPARE_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    // number of keys in any stage of the pipeline at a time
+    private static final int MAX_IN_FLIGHT = 2 * (FETCH_THREADS + PREPARE_THREADS);
+
+    private final Context mContext;
+    private final Proxy mProxy;
+    private final Progressable mProgressable;
+    private final AtomicBoolean mCancelledFlag;
+    private final OperationTimings mTimings;
+
+    private final HkpKeyserver mKeyServer;
+    private final KeybaseKeyserver mKeybaseServer = new KeybaseKeyserver();
+    private final Semaphore mKeyServerPermits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+    private final Semaphore mKeybasePermits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+
+    private final LinkedBlockingQueue<PipelineItem> mPreparedQueue = new LinkedBlockingQueue<>();
+
+    final StageStats mFetchStats = new StageStats("fetch");
+    final StageStats mPrepareStats = new StageStats("prepare");
+    final StageStats mSaveStats = new StageStats("save");
+
+    private boolean mCancelled = false;
+
+    ImportPipeline(Context context, String keyServerUri, Proxy proxy, Progressable progressable,
+                   AtomicBoolean cancelled, OperationTimings timings) {
+        mContext = context;
+        mProxy = proxy;
+        mProgressable = progressable;
+        mCancelledFlag = cancelled;
+        mTimings = timings;
+        mKeyServer = keyServerUri != null ? new HkpKeyserver(keyServerUri) : null;
+    }
+
+    /**
+     * Runs all entries through the pipeline, and blocks until all of them are saved or the
+     * import was cancelled. The results end up in the given writer.
+     */
+    void run(Iterator<ParcelableKeyRing> entries, int numEntries, ImportBatchWriter writer) {
+
+        if (mProgressable != null) {
+            mProgressable.setProgress(0, numEntries);
+        }
+
+        // logs of the single keys drop what the import log drops
+        LogLevel minLevel = writer.getLog().getMinLevel();
+
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS);
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(PREPARE_THREADS);
+
+        try {
+            int inFlight = 0, position = 0;
+            while (true) {
+
+                if (mCancelledFlag != null && mCancelledFlag.get()) {
+                    mCancelled = true;
+                    break;
+                }
+
+                // keep the pipeline filled up, but never beyond MAX_IN_FLIGHT
+                while (inFlight < MAX_IN_FLIGHT && entries.hasNext()) {
+                    submitFetch(fetchExecutor, prepareExecutor,
+                            new PipelineItem(entries.next(), minLevel));
+                    inFlight += 1;
+                }
+
+                if (inFlight == 0) {
+                    break;
+                }
+
+                PipelineItem item = mPreparedQueue.take();
+                inFlight -= 1;
+
+                long start = System.nanoTime();
+                save(item, writer);
+                mSaveStats.add(System.nanoTime() - start);
+
+                position += 1;
+                if (mProgressable != null) {
+                    mProgressable.setProgress(position, numEntries);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "interrupted during import", e);
+            mCancelled = true;
+        } finally {
+            fetchExecutor.shutdownNow();
+            prepareExecutor.shutdownNow();
+        }
+
+        // keys which were taken from the queue before a cancel are still saved
+        writer.flush();
+
+        Log.d(Constants.TAG, "Import pipeline finished: " + mFetchStats + ", " + mPrepareStats
+                + ", " + mSaveStats);
+
+    }
+
+    private void submitFetch(final ExecutorService fetchExecutor,
+                             final ExecutorService prepareExecutor, final PipelineItem item) {
+        fetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // run() waits for every item, so it must end up in the queue no matter what
+                boolean handedOver = false;
+                try {
+                    long start = System.nanoTime();
+                    try {
+                        fetch(item);
+                    } catch (IOException | PgpGeneralException | InterruptedException
+                            | RuntimeException e) {
+                        Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                        item.mKeyRing = null;
+                    } finally {
+                        mFetchStats.add(System.nanoTime() - start);
+                    }
+
+                    if (item.mKeyRing == null) {
+                        return;
+                    }
+
+                    prepareExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            long start = System.nanoTime();
+                            try {
+                                prepare(item);
+                            } catch (RuntimeException e) {
+                                Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                                item.mFailed = true;
+                            } finally {
+                                mPrepareStats.add(System.nanoTime() - start);
+                                mPreparedQueue.add(item);
+                            }
+                        }
+                    });
+                    handedOver = true;
+                } catch (RejectedExecutionException e) {
+                    // only happens after the pipeline was shut down, nobody is waiting anymore
+                    handedOver = true;
+                } finally {
+                    if (!handedOver) {
+                        mPreparedQueue.add(item);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Stage 1: obtain the keyring, from byte data or by downloading it. */
+    private void fetch(PipelineItem item)
+            throws IOException, PgpGeneralException, InterruptedException {
+        ParcelableKeyRing entry = item.mEntry;
+
+        // If there is already byte data, use that
+        if (entry.mBytes != null) {
+            item.mKeyRing = UncachedKeyRing.decodeFromData(entry.mBytes);
+            return;
+        }
+
+        ArrayList<UncachedKeyRing> fetched = new ArrayList<>(2);
+
+        if (mKeyServer != null
+                && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+            mKeyServerPermits.acquire();
+            long start = mTimings.start();
+            try {
+                fetched.add(ImportOperation.fetchFromKeyserver(mKeyServer, entry, mProxy, item.mLog));
+            } finally {
+                mTimings.end(Phase.KEY_FETCH, start);
+                mKeyServerPermits.release();
+            }
+        }
+
+        if (entry.mKeybaseName != null) {
+            mKeybasePermits.acquire();
+            long start = mTimings.start();
+            try {
+                fetched.add(ImportOperation.fetchFromKeybase(mKeybaseServer, entry, mProxy, item.mLog));
+            } finally {
+                mTimings.end(Phase.KEY_FETCH, start);
+                mKeybasePermits.release();
+            }
+        }
+
+        item.mKeyRing = ImportOperation.mergeFetched(fetched, item.mLog);
+    }
+
+    /** Stage 2: check, merge and canonicalize the keyring, build database operations. */
+    private void prepare(PipelineItem item) {
+        ParcelableKeyRing entry = item.mEntry;
+        UncachedKeyRing key = item.mKeyRing;
+
+        // If we have an expected fingerprint, make sure it matches
+        if (entry.mExpectedFingerprint != null) {
+            if (!key.containsSubkey(entry.mExpectedFingerprint)) {
+                item.mLog.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
+                item.mKeyRing = null;
+                return;
+            } else {
+                item.mLog.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
+            }
+        }
+
+        // secret keys are rare here, they are saved as a whole by the writer
+        if (key.isSecret()) {
+            return;
+        }
+
+        ProviderHelper providerHelper =
+                new ProviderHelper(mContext, new OperationLog(item.mLog.getMinLevel()));
+        providerHelper.setTimings(mTimings);
+        item.mPrepared = providerHelper.preparePublicKeyRing(key, new ProgressScaler());
+    }
+
+    /**
+     * Stage 3: hand over to the writer, which writes to the database in batches. Only ever
+     * called from the thread executing run().
+     */
+    private void save(PipelineItem item, ImportBatchWriter writer) {
+        if (item.mFailed) {
+            item.mLog.add(LogType.MSG_IMPORT_ERROR, 2);
+            writer.addBad(item.mLog);
+            return;
+        }
+
+        if (item.mKeyRing == null) {
+            if (!item.mLog.containsType(LogType.MSG_IMPORT_FINGERPRINT_ERROR)) {
+                item.mLog.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+            }
+            writer.addBad(item.mLog);
+            return;
+        }
+
+        writer.add(item.mKeyRing, item.mPrepared, item.mLog, new ProgressScaler());
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** State of a single key on its way through the pipeline. */
+    private static class PipelineItem {
+        final ParcelableKeyRing mEntry;
+        final OperationLog mLog;
+
+        // these are handed from stage to stage via executors and a blocking queue,
+        // which takes care of visibility between threads
+        UncachedKeyRing mKeyRing;
+        PreparedKeyRing mPrepared;
+        // set if prepare failed, the writer must not see this item's keyring
+        boolean mFailed;
+
+        PipelineItem(ParcelableKeyRing entry, LogLevel minLevel) {
+            mEntry = entry;
+            mLog = new OperationLog(minLevel);
+        }
+    }
+
+    /** Throughput counter for a single stage. */
+    static class StageStats {
+        final String mName;
+        final AtomicInteger mCount = new AtomicInteger();
+        final AtomicLong mBusyNanos = new AtomicLong();
+
+        StageStats(String name) {
+            mName = name;
+        }
+
+        void add(long nanos) {
+            mCount.incrementAndGet();
+            mBusyNanos.addAndGet(nanos);
+        }
+
+        int getCount() {
+            return mCount.get();
+        }
+
+        long getBusyMillis() {
+            return mBusyNanos.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            long busyMillis = getBusyMillis();
+            int count = getCount();
+            return mName + ": " + count + " keys in " + busyMillis + "ms"
+                    + (busyMillis > 0 ? " (" + (count * 1000 / busyMillis) + "/s per thread)" : "");
+        }
+    }
+
+}
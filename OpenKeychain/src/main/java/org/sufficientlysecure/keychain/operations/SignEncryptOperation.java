@@ -22,11 +22,13 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.ResolvedKeys;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
@@ -47,6 +49,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** This is a high-level operation, which encapsulates one or more sign/encrypt
@@ -55,9 +62,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
  *
+ * The signing key and all recipient keys are resolved only once. If there are
+ * several input and output URIs, the files are signed/encrypted concurrently on a
+ * bounded number of threads. The per-file results are still returned in input
+ * order, and the first failure in that order determines the result. Note that
+ * files after a failed one may already have been written at that point.
+ *
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    private static final int MAX_PARALLEL_FILES =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+
     public SignEncryptOperation(Context context, ProviderHelper providerHelper,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -92,6 +108,25 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
+        // fetch and unlock the signing key and look up recipients once, for all inputs
+        ResolvedKeys keys = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                new ProgressScaler(mProgressable, 0, 0, 100), mCancelled)
+                .resolveKeys(input, cryptoInput);
+        if (keys.getResult() != null) {
+            PgpSignEncryptResult result = keys.getResult();
+            results.add(result);
+            log.add(result, 2);
+            if (result.isPending()) {
+                // only a passphrase can be pending here
+                return new SignEncryptResult(log, result.getRequiredInputParcel(), results, cryptoInput);
+            }
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        if (inputBytes == null && inputUris.size() > 1 && outputUris.size() >= inputUris.size()) {
+            return executeParallel(input, cryptoInput, keys, inputUris, outputUris, log);
+        }
+
         do {
 
             if (checkCancelled()) {
@@ -147,7 +182,7 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
                     new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
-            PgpSignEncryptResult result = op.execute(input, cryptoInput, inputData, outStream);
+            PgpSignEncryptResult result = op.execute(input, cryptoInput, keys, inputData, outStream);
             results.add(result);
             log.add(result, 2);
 
@@ -185,4 +220,131 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
     }
 
+    /**
+     * Signs/encrypts each input URI to the output URI at the same position, several
+     * files at a time. Results and log entries are collected in input order.
+     */
+    private SignEncryptResult executeParallel(final SignEncryptParcel input,
+            final CryptoInputParcel cryptoInput, final ResolvedKeys keys,
+            ArrayDeque<Uri> inputUris, ArrayDeque<Uri> outputUris, OperationLog log) {
+
+        int total = inputUris.size();
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+        NfcSignOperationsBuilder pendingInputBuilder = null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_FILES, total));
+        try {
+
+            ArrayList<Future<FileResult>> futures = new ArrayList<>(total);
+            while (!inputUris.isEmpty()) {
+                final Uri inputUri = inputUris.removeFirst();
+                final Uri outputUri = outputUris.removeFirst();
+                futures.add(executor.submit(new Callable<FileResult>() {
+                    @Override
+                    public FileResult call() {
+                        return signEncryptFile(input, cryptoInput, keys, inputUri, outputUri);
+                    }
+                }));
+            }
+
+            int count = 0;
+            for (Future<FileResult> future : futures) {
+
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+
+                FileResult fileResult;
+                try {
+                    fileResult = future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(Constants.TAG, "error in parallel sign/encrypt", e);
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+
+                log.addAll(fileResult.mLog);
+                PgpSignEncryptResult result = fileResult.mResult;
+                if (result == null) {
+                    // input or output could not be opened
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+                results.add(result);
+                log.add(result, 2);
+
+                if (result.isPending()) {
+                    // keys are unlocked at this point, so only nfc input can be pending
+                    RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+                    if (pendingInputBuilder == null) {
+                        pendingInputBuilder = new NfcSignOperationsBuilder(requiredInput.mSignatureTime,
+                                input.getSignatureMasterKeyId(), input.getSignatureSubKeyId());
+                    }
+                    pendingInputBuilder.addAll(requiredInput);
+                } else if (!result.success()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+
+                count += 1;
+                updateProgress(R.string.progress_encrypting, count, total);
+            }
+
+        } finally {
+            // on early return, don't start any more files
+            executor.shutdownNow();
+        }
+
+        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, null);
+
+    }
+
+    /** Runs on a worker thread of executeParallel. */
+    private FileResult signEncryptFile(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+            ResolvedKeys keys, Uri inputUri, Uri outputUri) {
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_SE_INPUT_URI, 1);
+
+        InputData inputData;
+        try {
+            InputStream is = mContext.getContentResolver().openInputStream(inputUri);
+            long fileSize = FileHelper.getFileSize(mContext, inputUri, 0);
+            String filename = FileHelper.getFilename(mContext, inputUri);
+            inputData = new InputData(is, fileSize, filename);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND, 1);
+            return new FileResult(log, null);
+        }
+
+        OutputStream outStream;
+        try {
+            outStream = mContext.getContentResolver().openOutputStream(outputUri);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND, 1);
+            return new FileResult(log, null);
+        }
+
+        // progress is reported per file by executeParallel. with resolved keys, the
+        // operation doesn't touch the ProviderHelper, so it is safe to share here
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                new ProgressScaler(), mCancelled);
+        return new FileResult(log, op.execute(input, cryptoInput, keys, inputData, outStream));
+    }
+
+    private static class FileResult {
+        final OperationLog mLog;
+        // null if the input or output could not be opened
+        final PgpSignEncryptResult mResult;
+
+        FileResult(OperationLog log, PgpSignEncryptResult result) {
+            mLog = log;
+            mResult = result;
+        }
+    }
+
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+/**
+ * Final result of a DecryptBatchOperation. The results of the single files are
+ * not part of this, they are reported individually while the batch runs.
+ */
+public class DecryptBatchResult extends OperationResult {
+
+    final public int mOk, mFail, mPending;
+
+    public DecryptBatchResult(int result, OperationLog log, int ok, int fail, int pending) {
+        super(result, log);
+        mOk = ok;
+        mFail = fail;
+        mPending = pending;
+    }
+
+    public DecryptBatchResult(Parcel source) {
+        super(source);
+        mOk = source.readInt();
+        mFail = source.readInt();
+        mPending = source.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeInt(mOk);
+        dest.writeInt(mFail);
+        dest.writeInt(mPending);
+    }
+
+    public static Creator<DecryptBatchResult> CREATOR = new Creator<DecryptBatchResult>() {
+        public DecryptBatchResult createFromParcel(final Parcel source) {
+            return new DecryptBatchResult(source);
+        }
+
+        public DecryptBatchResult[] newArray(final int size) {
+            return new DecryptBatchResult[size];
+        }
+    };
+
+}
@@ -32,14 +32,14 @@ import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Represent the result of an operation.
@@ -60,7 +60,14 @@ public abstract class OperationResult implements Parcelable {
      */
     private static ParcelableCache<OperationLog> logCache;
     static {
-        logCache = new ParcelableCache<>();
+        logCache = new ParcelableCache<>(ParcelableCache.DEFAULT_MAX_ENTRIES,
+                ParcelableCache.DEFAULT_MAX_BYTES, ParcelableCache.DEFAULT_MAX_AGE_MILLIS,
+                new ParcelableCache.Sizer<OperationLog>() {
+                    @Override
+                    public int sizeOf(OperationLog log) {
+                        return log.estimateSize();
+                    }
+                });
     }
 
     /** Holds the overall result, the number specifying varying degrees of success:
@@ -78,6 +85,9 @@ public abstract class OperationResult implements Parcelable {
     /// A list of log entries tied to the operation result.
     protected OperationLog mLog;
 
+    /// Time spent in the phases of the operation, null unless recorded. See OperationTimings
+    protected OperationTimings mTimings;
+
     public OperationResult(int result, OperationLog log) {
         mResult = result;
         mLog = log;
@@ -87,6 +97,12 @@ public abstract class OperationResult implements Parcelable {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
         mLog = logCache.readFromParcelAndGetFromCache(source);
+        if (mLog == null) {
+            // evicted from the cache, by age or to make room for newer logs
+            Log.w(Constants.TAG, "log of " + getClass().getSimpleName() + " is no longer cached");
+            mLog = new OperationLog();
+        }
+        mTimings = source.readParcelable(OperationTimings.class.getClassLoader());
     }
 
     public int getResult() {
@@ -110,6 +126,14 @@ public abstract class OperationResult implements Parcelable {
         return mLog;
     }
 
+    public OperationTimings getTimings() {
+        return mTimings;
+    }
+
+    public void setTimings(OperationTimings timings) {
+        mTimings = timings;
+    }
+
     /** One entry in the log. */
     public static class LogEntryParcel implements Parcelable {
         public final LogType mType;
@@ -120,12 +144,11 @@ public abstract class OperationResult implements Parcelable {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public LogEntryParcel(Parcel source) {
             mType = LogType.values()[source.readInt()];
-            mParameters = (Object[]) source.readSerializable();
+            mParameters = source.readArray(LogEntryParcel.class.getClassLoader());
             mIndent = source.readInt();
         }
 
@@ -138,7 +161,8 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(0);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            // a type tag and the value for common types, serialization only for others
+            dest.writeArray(mParameters);
             dest.writeInt(mIndent);
         }
 
@@ -175,8 +199,6 @@ public abstract class OperationResult implements Parcelable {
         public SubLogEntryParcel(@NonNull OperationResult subResult, LogType type, int indent, Object... parameters) {
             super(type, indent, parameters);
             mSubResult = subResult;
-
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -197,7 +219,7 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(1);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            dest.writeArray(mParameters);
             dest.writeInt(mIndent);
             dest.writeParcelable(mSubResult, 0);
         }
@@ -557,6 +579,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_RECURSIVE (LogLevel.OK, R.string.msg_con_recursive),
         MSG_CON_REIMPORT_PUBLIC (LogLevel.DEBUG, R.plurals.msg_con_reimport_public),
         MSG_CON_REIMPORT_PUBLIC_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_public_skip),
+        MSG_CON_REIMPORT_PUBLIC_RESUME (LogLevel.DEBUG, R.plurals.msg_con_reimport_public_resume),
         MSG_CON_REIMPORT_SECRET (LogLevel.DEBUG, R.plurals.msg_con_reimport_secret),
         MSG_CON_REIMPORT_SECRET_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_secret_skip),
         MSG_CON (LogLevel.START, R.string.msg_con),
@@ -635,6 +658,13 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_UNLOCKING (LogLevel.INFO, R.string.msg_dc_unlocking),
         MSG_DC_OLD_SYMMETRIC_ENCRYPTION_ALGO (LogLevel.WARN, R.string.msg_dc_old_symmetric_encryption_algo),
 
+        MSG_DC_BATCH (LogLevel.START, R.plurals.msg_dc_batch),
+        MSG_DC_BATCH_FAILED (LogLevel.WARN, R.plurals.msg_dc_batch_failed),
+        MSG_DC_BATCH_PENDING (LogLevel.INFO, R.plurals.msg_dc_batch_pending),
+        MSG_DC_BATCH_OK (LogLevel.OK, R.string.msg_dc_batch_ok),
+        MSG_DC_BATCH_PARTIAL (LogLevel.WARN, R.string.msg_dc_batch_partial),
+        MSG_DC_BATCH_ERROR (LogLevel.ERROR, R.string.msg_dc_batch_error),
+
         // verify signed literal data
         MSG_VL (LogLevel.INFO, R.string.msg_vl),
         MSG_VL_ERROR_MISSING_SIGLIST (LogLevel.ERROR, R.string.msg_vl_error_no_siglist),
@@ -821,44 +851,138 @@ public abstract class OperationResult implements Parcelable {
         dest.writeInt(mResult);
         // cache log and write UUID to dest
         logCache.cacheAndWriteToParcel(mLog, dest);
+        dest.writeParcelable(mTimings, 0);
     }
 
+    /**
+     * The log of an operation. Imports of many keys produce hundreds of thousands of
+     * entries, so entries are not stored as objects but packed into arrays, and only
+     * materialized as LogEntryParcel when they are read.
+     * <p/>
+     * A log may have a minimum level, below which DEBUG and INFO entries are dropped
+     * as they are added. Entries of other levels are always kept, since they carry the
+     * outcome of the operation.
+     */
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
-        private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        private static final LogType[] LOG_TYPES = LogType.values();
+
+        private static final int INITIAL_CAPACITY = 8;
+        private static final int INDENT_BITS = 16;
+        private static final int INDENT_MASK = (1 << INDENT_BITS) - 1;
+
+        private final LogLevel mMinLevel;
+        // verbose logging of entries, decided once since it means formatting every entry
+        private final boolean mVerbose;
+
+        private int mSize;
+        // type ordinal in the upper, indent in the lower bits
+        private int[] mEntries = new int[INITIAL_CAPACITY];
+        private Object[][] mParameters = new Object[INITIAL_CAPACITY][];
+        // only allocated once there is a sub result
+        private OperationResult[] mSubResults;
+
+        public OperationLog() {
+            this(LogLevel.DEBUG);
+        }
+
+        /** @param minLevel DEBUG and INFO entries below this level are dropped */
+        public OperationLog(LogLevel minLevel) {
+            mMinLevel = minLevel;
+            mVerbose = Constants.DEBUG && android.util.Log.isLoggable(Constants.TAG, android.util.Log.VERBOSE);
+        }
+
+        public LogLevel getMinLevel() {
+            return mMinLevel;
+        }
+
+        public boolean isLogged(LogType type) {
+            LogLevel level = type.mLevel;
+            return (level != LogLevel.DEBUG && level != LogLevel.INFO)
+                    || level.ordinal() >= mMinLevel.ordinal();
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            if (isLogged(type)) {
+                append(type, indent, parameters, null);
+            }
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            if (isLogged(type)) {
+                append(type, indent, null, null);
+            }
         }
 
+        /**
+         * Adds the log of a sub result, represented by its first entry. A sub result
+         * with an empty log has nothing to show, and is not added.
+         */
         public void add(OperationResult subResult, int indent) {
-            OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            LogEntryParcel first = subResult.getLog().getFirst();
+            if (first == null) {
+                return;
+            }
+            append(first.mType, indent, first.mParameters, subResult);
+        }
+
+        private void append(LogType type, int indent, Object[] parameters, OperationResult subResult) {
+            if (mSize == mEntries.length) {
+                int capacity = mSize + (mSize >> 1);
+                mEntries = Arrays.copyOf(mEntries, capacity);
+                mParameters = Arrays.copyOf(mParameters, capacity);
+                if (mSubResults != null) {
+                    mSubResults = Arrays.copyOf(mSubResults, capacity);
+                }
+            }
+            if (subResult != null && mSubResults == null) {
+                mSubResults = new OperationResult[mEntries.length];
+            }
+
+            mEntries[mSize] = (type.ordinal() << INDENT_BITS) | (indent & INDENT_MASK);
+            mParameters[mSize] = parameters != null && parameters.length > 0 ? parameters : null;
+            if (mSubResults != null) {
+                mSubResults[mSize] = subResult;
+            }
+            mSize += 1;
+
+            if (mVerbose) {
+                Log.v(Constants.TAG, "log: " + get(mSize - 1));
+            }
+        }
+
+        private LogType getType(int i) {
+            return LOG_TYPES[mEntries[i] >>> INDENT_BITS];
+        }
+
+        private LogEntryParcel get(int i) {
+            LogType type = getType(i);
+            int indent = mEntries[i] & INDENT_MASK;
+            if (mSubResults != null && mSubResults[i] != null) {
+                return new SubLogEntryParcel(mSubResults[i], type, indent, mParameters[i]);
+            }
+            return new LogEntryParcel(type, indent, mParameters[i]);
         }
 
         public SubLogEntryParcel getSubResultIfSingle() {
-            if (mParcels.size() != 1) {
+            if (mSize != 1 || mSubResults == null || mSubResults[0] == null) {
                 return null;
             }
-            LogEntryParcel first = getFirst();
-            if (first instanceof SubLogEntryParcel) {
-                return (SubLogEntryParcel) first;
-            }
-            return null;
+            return (SubLogEntryParcel) get(0);
         }
 
         public void clear() {
-            mParcels.clear();
+            Arrays.fill(mParameters, 0, mSize, null);
+            if (mSubResults != null) {
+                Arrays.fill(mSubResults, 0, mSize, null);
+            }
+            mSize = 0;
         }
 
         public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType == type) {
+            for (int i = 0; i < mSize; i++) {
+                if (getType(i) == type) {
                     return true;
                 }
             }
@@ -866,8 +990,9 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
+            for (int i = 0; i < mSize; i++) {
+                LogLevel level = getType(i).mLevel;
+                if (level == LogLevel.WARN || level == LogLevel.ERROR) {
                     return true;
                 }
             }
@@ -875,38 +1000,114 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel entry : parcels) {
+                if (entry instanceof SubLogEntryParcel) {
+                    append(entry.mType, entry.mIndent, entry.mParameters,
+                            ((SubLogEntryParcel) entry).getSubResult());
+                } else if (isLogged(entry.mType)) {
+                    append(entry.mType, entry.mIndent, entry.mParameters, null);
+                }
+            }
         }
 
+        /** Appends all entries of another log, without materializing them. */
+        public void addAll(OperationLog log) {
+            for (int i = 0; i < log.mSize; i++) {
+                OperationResult subResult = log.mSubResults != null ? log.mSubResults[i] : null;
+                if (subResult != null || isLogged(log.getType(i))) {
+                    append(log.getType(i), log.mEntries[i] & INDENT_MASK, log.mParameters[i], subResult);
+                }
+            }
+        }
+
+        /** Returns a read-only view of this log, which materializes entries as they are read. */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            return new AbstractList<LogEntryParcel>() {
+                @Override
+                public LogEntryParcel get(int location) {
+                    if (location < 0 || location >= mSize) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    return OperationLog.this.get(location);
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
+        }
+
+        public int size() {
+            return mSize;
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return mSize == 0;
+        }
+
+        /**
+         * Rough estimate of the memory used by this log, including sub logs, in bytes.
+         * Parameters are counted by their string length.
+         */
+        public int estimateSize() {
+            int size = 16 + 12 * mEntries.length;
+            for (int i = 0; i < mSize; i++) {
+                if (mParameters[i] != null) {
+                    for (Object parameter : mParameters[i]) {
+                        size += 16 + (parameter instanceof String ? 2 * ((String) parameter).length() : 8);
+                    }
+                }
+                if (mSubResults != null && mSubResults[i] != null) {
+                    OperationLog subLog = mSubResults[i].getLog();
+                    if (subLog != null) {
+                        size += subLog.estimateSize();
+                    }
+                }
+            }
+            return size;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            return mParcels.get(0);
+            return get(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            LogEntryParcel last = mParcels.get(mParcels.size() -1);
-            if (last instanceof SubLogEntryParcel) {
-                return ((SubLogEntryParcel) last).getSubResult().getLog().getLast();
+            if (mSubResults != null && mSubResults[mSize - 1] != null) {
+                return mSubResults[mSize - 1].getLog().getLast();
             }
-            return last;
+            return get(mSize - 1);
         }
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            return new Iterator<LogEntryParcel>() {
+                int mNext = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < mSize;
+                }
+
+                @Override
+                public LogEntryParcel next() {
+                    if (mNext >= mSize) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(mNext++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+/**
+ * Time spent in the phases of an operation, to tell where a slow operation spends
+ * its time. For every phase, the number of spans, their total duration in
+ * nanoseconds and the number of bytes processed in them are summed up.
+ * <p/>
+ * Timings are only recorded if enabled, which can be done on a device with
+ * "adb shell setprop log.tag.KeychainTimings DEBUG". Otherwise, start() and end()
+ * return right away, so instrumented code paths pay no more than a field read.
+ * <p/>
+ * Timings may be recorded from several threads at once.
+ */
+public class OperationTimings implements Parcelable {
+
+    public static final String TAG = "KeychainTimings";
+
+    /** Shared instance for code which has no operation to record timings for. */
+    public static final OperationTimings DISABLED = new OperationTimings(false);
+
+    public enum Phase {
+        KEY_LOOKUP,
+        PASSPHRASE_CACHE,
+        KEY_UNLOCK,
+        SESSION_KEY,
+        STREAM,
+        SIGN,
+        VERIFY,
+        KEY_FETCH,
+        MERGE,
+        CANONICALIZE,
+        DATABASE_WRITE,
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final boolean mEnabled;
+    private final int[] mCounts = new int[PHASES.length];
+    private final long[] mNanos = new long[PHASES.length];
+    private final long[] mBytes = new long[PHASES.length];
+
+    public OperationTimings(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /** Returns new timings, which are enabled if the TAG is loggable at DEBUG level. */
+    public static OperationTimings create() {
+        return new OperationTimings(android.util.Log.isLoggable(TAG, android.util.Log.DEBUG));
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Starts a span, to be passed to end(). */
+    public long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    public void end(Phase phase, long start) {
+        end(phase, start, 0);
+    }
+
+    public void end(Phase phase, long start, long bytes) {
+        if (!mEnabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            int i = phase.ordinal();
+            mCounts[i] += 1;
+            mNanos[i] += nanos;
+            mBytes[i] += bytes;
+        }
+    }
+
+    /** Adds the timings of a sub operation to these. */
+    public void addAll(OperationTimings timings) {
+        if (!mEnabled || timings == null || timings == this) {
+            return;
+        }
+        // copy first, so we never hold both locks
+        OperationTimings other = timings.copy();
+        synchronized (this) {
+            for (int i = 0; i < PHASES.length; i++) {
+                mCounts[i] += other.mCounts[i];
+                mNanos[i] += other.mNanos[i];
+                mBytes[i] += other.mBytes[i];
+            }
+        }
+    }
+
+    public synchronized int getCount(Phase phase) {
+        return mCounts[phase.ordinal()];
+    }
+
+    public synchronized long getNanos(Phase phase) {
+        return mNanos[phase.ordinal()];
+    }
+
+    public synchronized long getBytes(Phase phase) {
+        return mBytes[phase.ordinal()];
+    }
+
+    /** Returns a copy of the timings recorded so far. */
+    public synchronized OperationTimings copy() {
+        OperationTimings copy = new OperationTimings(mEnabled);
+        System.arraycopy(mCounts, 0, copy.mCounts, 0, PHASES.length);
+        System.arraycopy(mNanos, 0, copy.mNanos, 0, PHASES.length);
+        System.arraycopy(mBytes, 0, copy.mBytes, 0, PHASES.length);
+        return copy;
+    }
+
+    /** Writes the recorded phases to logcat, if enabled. */
+    public void log(String operation) {
+        if (mEnabled) {
+            android.util.Log.d(TAG, operation + ": " + toString());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PHASES.length; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format(Locale.ENGLISH, "%s %dx %.3fms",
+                    PHASES[i].name().toLowerCase(Locale.ENGLISH), mCounts[i], mNanos[i] / 1e6));
+            if (mBytes[i] > 0) {
+                builder.append(' ').append(mBytes[i]).append('b');
+            }
+        }
+        return builder.length() > 0 ? builder.toString() : "no phases recorded";
+    }
+
+    protected OperationTimings(Parcel source) {
+        mEnabled = source.readInt() != 0;
+        source.readIntArray(mCounts);
+        source.readLongArray(mNanos);
+        source.readLongArray(mBytes);
+    }
+
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mEnabled ? 1 : 0);
+        dest.writeIntArray(mCounts);
+        dest.writeLongArray(mNanos);
+        dest.writeLongArray(mBytes);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<OperationTimings> CREATOR = new Creator<OperationTimings>() {
+        public OperationTimings createFromParcel(final Parcel source) {
+            return new OperationTimings(source);
+        }
+
+        public OperationTimings[] newArray(final int size) {
+            return new OperationTimings[size];
+        }
+    };
+
+}
@@ -162,6 +162,15 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return true;
         }
 
+        // skip the S2K if this key was recently unlocked with the same passphrase
+        UnlockedKeyCache keyCache = UnlockedKeyCache.getInstance();
+        PGPPrivateKey cachedKey = keyCache.get(getKeyId(), mSecretKey, passphrase);
+        if (cachedKey != null) {
+            mPrivateKey = cachedKey;
+            mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+            return true;
+        }
+
         // try to extract keys using the passphrase
         try {
             PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
@@ -174,6 +183,7 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         if (mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+        keyCache.put(getRing().getMasterKeyId(), getKeyId(), mSecretKey, passphrase, mPrivateKey);
         return true;
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+/**
+ * Set of certificates by the SHA-256 digest of their encoding, used to recognize
+ * certificates which are already part of a keyring during a merge.
+ * <p/>
+ * Only the digests are kept, in an open addressing table of longs with linear
+ * probing. Since digests are uniformly distributed, their first word serves as
+ * hash directly. Keys with tens of thousands of certificates need a single array
+ * for this, rather than a tree of byte arrays compared byte by byte.
+ * <p/>
+ * This class is not thread safe.
+ */
+class CertificateDigestSet {
+
+    private static final int WORDS = 4;
+    private static final int MIN_CAPACITY = 16;
+
+    private final SHA256Digest mDigest = new SHA256Digest();
+    private final byte[] mBuffer = new byte[WORDS * 8];
+
+    // WORDS longs per slot, a slot of all zeroes is empty
+    private long[] mTable;
+    private int mMask;
+    private int mSize;
+
+    CertificateDigestSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // keep the load factor at or below one half
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        mTable = new long[capacity * WORDS];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Adds the certificate with this encoding.
+     *
+     * @return true if it was not part of the set before
+     */
+    boolean add(byte[] encoded) {
+        mDigest.update(encoded, 0, encoded.length);
+        mDigest.doFinal(mBuffer, 0);
+
+        long w0 = readLong(0), w1 = readLong(8), w2 = readLong(16), w3 = readLong(24);
+        // the one digest we cannot represent, as unlikely as any other
+        if (w0 == 0 && w1 == 0 && w2 == 0 && w3 == 0) {
+            w3 = 1;
+        }
+
+        int slot = (int) (w0 ^ (w0 >>> 32)) & mMask;
+        while (true) {
+            int i = slot * WORDS;
+            if (mTable[i] == 0 && mTable[i + 1] == 0 && mTable[i + 2] == 0 && mTable[i + 3] == 0) {
+                break;
+            }
+            if (mTable[i] == w0 && mTable[i + 1] == w1 && mTable[i + 2] == w2 && mTable[i + 3] == w3) {
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        insert(slot, w0, w1, w2, w3);
+        mSize += 1;
+        if (2 * mSize > mMask + 1) {
+            grow();
+        }
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void insert(int slot, long w0, long w1, long w2, long w3) {
+        int i = slot * WORDS;
+        mTable[i] = w0;
+        mTable[i + 1] = w1;
+        mTable[i + 2] = w2;
+        mTable[i + 3] = w3;
+    }
+
+    private void grow() {
+        long[] old = mTable;
+        int capacity = 2 * (mMask + 1);
+        mTable = new long[capacity * WORDS];
+        mMask = capacity - 1;
+
+        for (int i = 0; i < old.length; i += WORDS) {
+            long w0 = old[i];
+            if (w0 == 0 && old[i + 1] == 0 && old[i + 2] == 0 && old[i + 3] == 0) {
+                continue;
+            }
+            int slot = (int) (w0 ^ (w0 >>> 32)) & mMask;
+            while (mTable[slot * WORDS] != 0 || mTable[slot * WORDS + 1] != 0
+                    || mTable[slot * WORDS + 2] != 0 || mTable[slot * WORDS + 3] != 0) {
+                slot = (slot + 1) & mMask;
+            }
+            insert(slot, w0, old[i + 1], old[i + 2], old[i + 3]);
+        }
+    }
+
+    private long readLong(int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (mBuffer[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+}
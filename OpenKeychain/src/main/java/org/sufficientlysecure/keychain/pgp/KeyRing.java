@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 
 import java.io.Serializable;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -77,6 +78,48 @@ public abstract class KeyRing {
         return new UserId(null, null, null);
     }
 
+    /**
+     * Returns the email address of a user id in normalized form, for lookups by email.
+     * This is the part in angle brackets at the end of the user id, or the entire user
+     * id if it is only an email address. Returns null if there is no email address.
+     */
+    public static String getNormalizedEmail(String userId) {
+        if (TextUtils.isEmpty(userId)) {
+            return null;
+        }
+        userId = userId.trim();
+        if (userId.endsWith(">")) {
+            int start = userId.lastIndexOf('<');
+            if (start < 0) {
+                return null;
+            }
+            return normalizeEmail(userId.substring(start + 1, userId.length() - 1));
+        }
+        if (userId.indexOf('@') > 0 && userId.indexOf(' ') < 0) {
+            return normalizeEmail(userId);
+        }
+        return null;
+    }
+
+    /** Normalizes an email address for comparison, see getNormalizedEmail. */
+    public static String normalizeEmail(String email) {
+        email = email.trim();
+        return email.isEmpty() ? null : email.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the long and short hex form of a key id, lower case and without 0x, as
+     * indexed for the key search. Same format as KeyFormattingUtils.convertKeyIdToHex.
+     */
+    public static String getSearchKeyIds(long keyId) {
+        String shortId = String.format(Locale.ENGLISH, "%08x", keyId & 0xffffffffL);
+        if (keyId >> 32 == 0) {
+            return shortId + " " + shortId;
+        }
+        return String.format(Locale.ENGLISH, "%08x", (keyId >> 32) & 0xffffffffL) + shortId
+                + " " + shortId;
+    }
+
     /**
      * Returns a composed user id. Returns null if name is null!
      */
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Digests of encoded keyrings, to recognize keyrings which bring nothing new.
+ * <p/>
+ * Besides a digest of the whole encoding, every packet of a keyring is digested
+ * on its own, over its tag and body. A keyring all of whose packets are part of a
+ * canonicalized keyring in the database cannot change it: merging adds nothing,
+ * and a packet which appears in a different place than in the stored keyring, eg.
+ * a certificate on another user id, does not verify there and is dropped again
+ * by canonicalization. Such a keyring can be skipped without parsing the stored
+ * keyring or verifying a single signature.
+ * <p/>
+ * Packet digests are stored sorted and concatenated, DIGEST_LENGTH bytes each.
+ */
+public class KeyRingDigest {
+
+    public static final int DIGEST_LENGTH = 32;
+
+    private KeyRingDigest() {
+    }
+
+    /** Returns the digest of the whole encoded keyring. */
+    public static byte[] digest(byte[] encoded) {
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(encoded, 0, encoded.length);
+        byte[] result = new byte[DIGEST_LENGTH];
+        digest.doFinal(result, 0);
+        return result;
+    }
+
+    /**
+     * Returns the sorted digests of all packets of the encoded keyring, or null if the
+     * encoding could not be split into packets, eg. because of partial body lengths,
+     * which do not occur in keyrings.
+     */
+    public static byte[] packetDigests(byte[] encoded) {
+        byte[][] digests = new byte[16][];
+        int count = 0;
+
+        SHA256Digest digest = new SHA256Digest();
+        int pos = 0;
+        while (pos < encoded.length) {
+            int header = encoded[pos++] & 0xff;
+            if ((header & 0x80) == 0) {
+                return null;
+            }
+
+            int tag;
+            long length;
+            if ((header & 0x40) != 0) {
+                // new format
+                tag = header & 0x3f;
+                if (pos >= encoded.length) {
+                    return null;
+                }
+                int first = encoded[pos++] & 0xff;
+                if (first < 192) {
+                    length = first;
+                } else if (first < 224) {
+                    if (pos >= encoded.length) {
+                        return null;
+                    }
+                    length = ((first - 192) << 8) + (encoded[pos++] & 0xff) + 192;
+                } else if (first == 255) {
+                    if (pos + 4 > encoded.length) {
+                        return null;
+                    }
+                    length = readLength(encoded, pos, 4);
+                    pos += 4;
+                } else {
+                    // partial body length
+                    return null;
+                }
+            } else {
+                // old format
+                tag = (header >> 2) & 0xf;
+                int lengthType = header & 0x3;
+                if (lengthType == 3) {
+                    // indeterminate length
+                    return null;
+                }
+                int lengthBytes = 1 << lengthType;
+                if (pos + lengthBytes > encoded.length) {
+                    return null;
+                }
+                length = readLength(encoded, pos, lengthBytes);
+                pos += lengthBytes;
+            }
+
+            if (length > encoded.length - pos) {
+                return null;
+            }
+
+            if (count == digests.length) {
+                digests = Arrays.copyOf(digests, count * 2);
+            }
+            byte[] packetDigest = new byte[DIGEST_LENGTH];
+            digest.update((byte) tag);
+            digest.update(encoded, pos, (int) length);
+            digest.doFinal(packetDigest, 0);
+            digests[count++] = packetDigest;
+
+            pos += length;
+        }
+
+        Arrays.sort(digests, 0, count, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] lhs, byte[] rhs) {
+                return compareDigests(lhs, 0, rhs, 0);
+            }
+        });
+
+        byte[] result = new byte[count * DIGEST_LENGTH];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(digests[i], 0, result, i * DIGEST_LENGTH, DIGEST_LENGTH);
+        }
+        return result;
+    }
+
+    /** Returns true if all of the sorted packet digests are contained in the sorted known ones. */
+    public static boolean containsAll(byte[] known, byte[] digests) {
+        if (known == null || digests == null
+                || known.length % DIGEST_LENGTH != 0 || digests.length % DIGEST_LENGTH != 0) {
+            return false;
+        }
+
+        // both are sorted, so walk them side by side
+        int k = 0;
+        for (int d = 0; d < digests.length; d += DIGEST_LENGTH) {
+            int cmp = -1;
+            while (k < known.length && (cmp = compareDigests(known, k, digests, d)) < 0) {
+                k += DIGEST_LENGTH;
+            }
+            if (cmp != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readLength(byte[] encoded, int pos, int bytes) {
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (encoded[pos + i] & 0xff);
+        }
+        return length;
+    }
+
+    private static int compareDigests(byte[] lhs, int lhsOffset, byte[] rhs, int rhsOffset) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int cmp = (lhs[lhsOffset + i] & 0xff) - (rhs[rhsOffset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+}
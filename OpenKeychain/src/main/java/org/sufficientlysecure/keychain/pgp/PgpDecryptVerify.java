@@ -25,6 +25,7 @@ import android.webkit.MimeTypeMap;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPDataValidationException;
 import org.spongycastle.openpgp.PGPEncryptedData;
@@ -41,11 +42,13 @@ import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.jcajce.JcaPGPObjectFactory;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.spongycastle.openpgp.operator.jcajce.StreamingPGPContentVerifierBuilderProvider;
 import org.spongycastle.util.encoders.DecoderException;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Constants.key;
@@ -58,6 +61,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -67,23 +71,46 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
+    // names of hash algorithms in the "Hash" armor header of cleartext signatures
+    private static final HashMap<String, Integer> CLEARTEXT_HASH_ALGORITHMS = new HashMap<>();
+    static {
+        CLEARTEXT_HASH_ALGORITHMS.put("MD5", HashAlgorithmTags.MD5);
+        CLEARTEXT_HASH_ALGORITHMS.put("SHA1", HashAlgorithmTags.SHA1);
+        CLEARTEXT_HASH_ALGORITHMS.put("RIPEMD160", HashAlgorithmTags.RIPEMD160);
+        CLEARTEXT_HASH_ALGORITHMS.put("SHA224", HashAlgorithmTags.SHA224);
+        CLEARTEXT_HASH_ALGORITHMS.put("SHA256", HashAlgorithmTags.SHA256);
+        CLEARTEXT_HASH_ALGORITHMS.put("SHA384", HashAlgorithmTags.SHA384);
+        CLEARTEXT_HASH_ALGORITHMS.put("SHA512", HashAlgorithmTags.SHA512);
+    }
+
+    private SharedKeyLookups mSharedKeyLookups;
+
     public PgpDecryptVerify(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    /**
+     * Shares secret keyring and passphrase lookups with other operations using the
+     * same SharedKeyLookups, as in a batch of files encrypted to the same key.
+     */
+    public void setSharedKeyLookups(SharedKeyLookups sharedKeyLookups) {
+        mSharedKeyLookups = sharedKeyLookups;
+    }
+
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
@@ -119,7 +146,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             }
         }
 
-        DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
+        DecryptVerifyResult result = withTimings(executeInternal(input, cryptoInput, inputData, outputStream));
         if (outputStream instanceof ByteArrayOutputStream) {
             byte[] outputData = ((ByteArrayOutputStream) outputStream).toByteArray();
             result.setOutputBytes(outputData);
@@ -132,7 +159,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
-        return executeInternal(input, cryptoInput, inputData, outputStream);
+        return withTimings(executeInternal(input, cryptoInput, inputData, outputStream));
     }
 
     @NonNull
@@ -396,9 +423,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 CanonicalizedSecretKeyRing secretKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
+                    secretKeyRing = getSecretKeyRingBySubkey(subKeyId);
                 } catch (ProviderHelper.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
@@ -541,12 +566,15 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                     digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                     passphrase.getCharArray());
 
+            long start = mTimings.start();
             try {
                 clear = encryptedDataSymmetric.getDataStream(decryptorFactory);
             } catch (PGPDataValidationException e) {
                 log.add(LogType.MSG_DC_ERROR_SYM_PASSPHRASE, indent +1);
                 return new DecryptVerifyResult(log,
                         RequiredInputParcel.createRequiredSymmetricPassphrase(), cryptoInput);
+            } finally {
+                mTimings.end(Phase.SESSION_KEY, start);
             }
 
             encryptedData = encryptedDataSymmetric;
@@ -558,7 +586,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             try {
                 log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!secretEncryptionKey.unlock(passphrase)) {
+                long start = mTimings.start();
+                boolean unlocked = secretEncryptionKey.unlock(passphrase);
+                mTimings.end(Phase.KEY_UNLOCK, start);
+                if (!unlocked) {
                     log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
                 }
@@ -587,11 +618,14 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             }
 
+            long start = mTimings.start();
             try {
                 clear = encryptedDataAsymmetric.getDataStream(decryptorFactory);
             } catch (PGPKeyValidationException | ArrayIndexOutOfBoundsException e) {
                 log.add(LogType.MSG_DC_ERROR_CORRUPT_DATA, indent + 1);
                 return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            } finally {
+                mTimings.end(Phase.SESSION_KEY, start);
             }
 
             symmetricEncryptionAlgo = encryptedDataAsymmetric.getSymmetricAlgorithm(decryptorFactory);
@@ -773,6 +807,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             long wholeSize = 0; // TODO inputData.getSize() - inputData.getStreamPosition();
             int length;
             byte[] buffer = new byte[1 << 16];
+            long streamStart = mTimings.start();
             while ((length = dataIn.read(buffer)) > 0) {
                 // Log.d(Constants.TAG, "read bytes: " + length);
                 if (out != null) {
@@ -795,6 +830,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 }
                 // TODO: slow annealing to fake a progress?
             }
+            mTimings.end(Phase.STREAM, streamStart, alreadyWritten);
 
             metadata = new OpenPgpMetadata(
                     originalFilename,
@@ -814,7 +850,9 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 signatureResultBuilder.setSignatureOnly(false);
 
                 // Verify signature and check binding signatures
+                long start = mTimings.start();
                 boolean validSignature = signature.verify(messageSignature);
+                mTimings.end(Phase.VERIFY, start);
                 if (validSignature) {
                     log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
                 } else {
@@ -839,7 +877,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         if (encryptedData.isIntegrityProtected()) {
             updateProgress(R.string.progress_verifying_integrity, 95, 100);
 
-            if (encryptedData.verify()) {
+            long start = mTimings.start();
+            boolean integrityOk = encryptedData.verify();
+            mTimings.end(Phase.VERIFY, start);
+            if (integrityOk) {
                 log.add(LogType.MSG_DC_INTEGRITY_CHECK_OK, indent);
             } else {
                 log.add(LogType.MSG_DC_ERROR_INTEGRITY_CHECK, indent);
@@ -877,6 +918,11 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
      * <p/>
      * The method is heavily based on
      * pg/src/main/java/org/spongycastle/openpgp/examples/ClearSignedFileProcessor.java
+     * <p/>
+     * The signed text is processed in a single pass, holding only one line in memory at a
+     * time: since the signature follows the text, the text is hashed as it is written out,
+     * with all hash algorithms announced in the armor headers or supported by us. The
+     * signature is checked against the matching digest afterwards.
      */
     @NonNull
     private DecryptVerifyResult verifyCleartextSignature(
@@ -888,30 +934,34 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         // cleartext signatures are never encrypted ;)
         signatureResultBuilder.setSignatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_reading_data, 0, 100);
 
+        StreamingPGPContentVerifierBuilderProvider verifierBuilderProvider =
+                new StreamingPGPContentVerifierBuilderProvider(
+                        getClearTextHashAlgorithms(aIn), Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        OutputStream sigOut = verifierBuilderProvider.getOutputStream();
+
         ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
         int lookAhead = readInputLine(lineOut, aIn);
         byte[] lineSep = getLineSeparator();
+        long clearTextLength = 0;
 
         byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+        clearTextLength += writeClearTextLine(outputStream, line, lineSep);
+        processLine(sigOut, line);
 
         while (lookAhead != -1 && aIn.isClearText()) {
             lookAhead = readInputLine(lineOut, lookAhead, aIn);
             line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-        }
+            clearTextLength += writeClearTextLine(outputStream, line, lineSep);
 
-        out.close();
+            // lines are separated by canonical line endings for the signature
+            sigOut.write('\r');
+            sigOut.write('\n');
+            processLine(sigOut, line);
+        }
 
-        byte[] clearText = out.toByteArray();
         if (outputStream != null) {
-            outputStream.write(clearText);
             outputStream.close();
         }
 
@@ -924,50 +974,32 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
-        PGPSignature signature = processPGPSignatureList(sigList, signatureResultBuilder);
+        PGPSignature signature =
+                processPGPSignatureList(sigList, signatureResultBuilder, verifierBuilderProvider);
 
         if (signature != null) {
-            try {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
-                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
-
-                InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-                lookAhead = readInputLine(lineOut, sigIn);
-
-                processLine(signature, lineOut.toByteArray());
-
-                if (lookAhead != -1) {
-                    do {
-                        lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                        signature.update((byte) '\r');
-                        signature.update((byte) '\n');
-
-                        processLine(signature, lineOut.toByteArray());
-                    } while (lookAhead != -1);
-                }
+            updateProgress(R.string.progress_verifying_signature, 90, 100);
+            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-                // Verify signature and check binding signatures
-                boolean validSignature = signature.verify();
+            // Verify signature and check binding signatures. The text was hashed with all
+            // supported algorithms, a signature using any other one is rejected below anyway
+            boolean validSignature = false;
+            if (verifierBuilderProvider.isHashed(signature.getHashAlgorithm())) {
+                validSignature = signature.verify();
                 if (validSignature) {
                     log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
                 } else {
                     log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
                 }
+            }
 
-                // Don't allow verification of old hash algorithms!
-                if (!PgpConstants.sPreferredHashAlgorithms.contains(signature.getHashAlgorithm())) {
-                    validSignature = false;
-                    log.add(LogType.MSG_DC_ERROR_UNSUPPORTED_HASH_ALGO, indent + 1);
-                }
-
-                signatureResultBuilder.setValidSignature(validSignature);
-
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            // Don't allow verification of old hash algorithms!
+            if (!PgpConstants.sPreferredHashAlgorithms.contains(signature.getHashAlgorithm())) {
+                validSignature = false;
+                log.add(LogType.MSG_DC_ERROR_UNSUPPORTED_HASH_ALGO, indent + 1);
             }
+
+            signatureResultBuilder.setValidSignature(validSignature);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -978,7 +1010,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 "",
                 "text/plain",
                 -1,
-                clearText.length);
+                clearTextLength);
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setDecryptMetadata(metadata);
@@ -1079,9 +1111,75 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         return result;
     }
 
+    private CanonicalizedSecretKeyRing getSecretKeyRingBySubkey(long subKeyId)
+            throws ProviderHelper.NotFoundException {
+        if (mSharedKeyLookups != null) {
+            CanonicalizedSecretKeyRing secretKeyRing = mSharedKeyLookups.mSecretKeyRings.get(subKeyId);
+            if (secretKeyRing != null) {
+                return secretKeyRing;
+            }
+        }
+
+        // two indexed lookups, instead of a search through the unified keyrings
+        long start = mTimings.start();
+        CanonicalizedSecretKeyRing secretKeyRing;
+        try {
+            secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
+                    mProviderHelper.getMasterKeyId(subKeyId));
+        } finally {
+            mTimings.end(Phase.KEY_LOOKUP, start);
+        }
+        if (mSharedKeyLookups != null && secretKeyRing != null) {
+            mSharedKeyLookups.mSecretKeyRings.put(subKeyId, secretKeyRing);
+        }
+        return secretKeyRing;
+    }
+
+    @Override
+    public Passphrase getCachedPassphrase(long subKeyId) throws PassphraseCacheInterface.NoSecretKeyException {
+        if (mSharedKeyLookups == null) {
+            return super.getCachedPassphrase(subKeyId);
+        }
+
+        Passphrase passphrase = mSharedKeyLookups.mPassphrases.get(subKeyId);
+        if (passphrase != null) {
+            return passphrase;
+        }
+
+        passphrase = super.getCachedPassphrase(subKeyId);
+        // a missing passphrase is not remembered, it may be entered in the meantime
+        if (passphrase != null) {
+            mSharedKeyLookups.mPassphrases.put(subKeyId, passphrase);
+        }
+        return passphrase;
+    }
+
+    /**
+     * Lookups of secret keyrings and cached passphrases which can be shared by several
+     * operations, also concurrently. Rings are only shared as read-only objects, every
+     * operation still unlocks its own CanonicalizedSecretKey instance (which is cheap
+     * with the UnlockedKeyCache).
+     */
+    public static class SharedKeyLookups {
+        // by subkey id
+        final ConcurrentHashMap<Long, CanonicalizedSecretKeyRing> mSecretKeyRings =
+                new ConcurrentHashMap<>();
+        // by subkey id, or key.symmetric
+        final ConcurrentHashMap<Long, Passphrase> mPassphrases = new ConcurrentHashMap<>();
+    }
+
     private PGPSignature processPGPSignatureList(
             PGPSignatureList sigList, OpenPgpSignatureResultBuilder signatureResultBuilder)
             throws PGPException {
+        return processPGPSignatureList(sigList, signatureResultBuilder,
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+    }
+
+    private PGPSignature processPGPSignatureList(
+            PGPSignatureList sigList, OpenPgpSignatureResultBuilder signatureResultBuilder,
+            PGPContentVerifierBuilderProvider contentVerifierBuilderProvider)
+            throws PGPException {
         CanonicalizedPublicKeyRing signingRing = null;
         CanonicalizedPublicKey signingKey = null;
         int signatureIndex = -1;
@@ -1109,9 +1207,6 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             signatureResultBuilder.initValid(signingRing, signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
             signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
         } else {
             // no key in our database -> return "unknown pub key" status including the first key id
@@ -1128,14 +1223,64 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
     /**
      * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
+    private static void processLine(OutputStream sigOut, byte[] line)
+            throws IOException {
         int length = getLengthWithoutWhiteSpace(line);
         if (length > 0) {
-            sig.update(line, 0, length);
+            sigOut.write(line, 0, length);
         }
     }
 
+    /**
+     * Writes a line of cleartext to the output, with the platform line separator.
+     *
+     * @return the number of bytes written
+     */
+    private static int writeClearTextLine(OutputStream out, byte[] line, byte[] lineSep)
+            throws IOException {
+        int length = getLengthWithoutSeparator(line);
+        if (out != null) {
+            out.write(line, 0, length);
+            out.write(lineSep);
+        }
+        return length + lineSep.length;
+    }
+
+    /**
+     * Returns the hash algorithms to hash the text of a cleartext signature with: those
+     * announced in its "Hash" armor headers, which defaults to MD5 if there are none
+     * (RFC 4880, section 7), plus all algorithms we accept signatures with. Other
+     * implementations don't always announce the algorithm they signed with.
+     */
+    private static int[] getClearTextHashAlgorithms(ArmoredInputStream aIn) {
+        ArrayList<Integer> hashAlgorithms = new ArrayList<>();
+
+        String[] headers = aIn.getArmorHeaders();
+        if (headers != null) {
+            for (String header : headers) {
+                if (!header.startsWith("Hash:")) {
+                    continue;
+                }
+                for (String name : header.substring("Hash:".length()).split(",")) {
+                    Integer hashAlgorithm = CLEARTEXT_HASH_ALGORITHMS.get(name.trim());
+                    if (hashAlgorithm != null) {
+                        hashAlgorithms.add(hashAlgorithm);
+                    }
+                }
+            }
+        }
+        if (hashAlgorithms.isEmpty()) {
+            hashAlgorithms.add(HashAlgorithmTags.MD5);
+        }
+        hashAlgorithms.addAll(PgpConstants.sPreferredHashAlgorithms);
+
+        int[] result = new int[hashAlgorithms.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = hashAlgorithms.get(i);
+        }
+        return result;
+    }
+
     private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
             throws IOException {
         bOut.reset();
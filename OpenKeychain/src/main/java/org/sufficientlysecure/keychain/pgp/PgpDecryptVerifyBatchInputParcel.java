@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.util.ArrayList;
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Input for a DecryptBatchOperation: a number of input/output URI pairs, all of
+ * which are decrypted with the same parameters.
+ */
+public class PgpDecryptVerifyBatchInputParcel implements Parcelable {
+
+    private ArrayList<PgpDecryptVerifyInputParcel> mInputs;
+
+    public PgpDecryptVerifyBatchInputParcel() {
+        mInputs = new ArrayList<>();
+    }
+
+    PgpDecryptVerifyBatchInputParcel(Parcel source) {
+        mInputs = source.createTypedArrayList(PgpDecryptVerifyInputParcel.CREATOR);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedList(mInputs);
+    }
+
+    /** Adds a file to decrypt, results are reported with the index of this input. */
+    public PgpDecryptVerifyBatchInputParcel addInput(Uri inputUri, Uri outputUri,
+                                                     boolean allowSymmetricDecryption) {
+        mInputs.add(new PgpDecryptVerifyInputParcel(inputUri, outputUri)
+                .setAllowSymmetricDecryption(allowSymmetricDecryption));
+        return this;
+    }
+
+    public ArrayList<PgpDecryptVerifyInputParcel> getInputs() {
+        return mInputs;
+    }
+
+    public static final Creator<PgpDecryptVerifyBatchInputParcel> CREATOR =
+            new Creator<PgpDecryptVerifyBatchInputParcel>() {
+        public PgpDecryptVerifyBatchInputParcel createFromParcel(final Parcel source) {
+            return new PgpDecryptVerifyBatchInputParcel(source);
+        }
+
+        public PgpDecryptVerifyBatchInputParcel[] newArray(final int size) {
+            return new PgpDecryptVerifyBatchInputParcel[size];
+        }
+    };
+
+}
@@ -41,6 +41,7 @@ import org.sufficientlysecure.keychain.operations.BaseOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
@@ -114,6 +115,24 @@ public class PgpSignEncryptOperation extends BaseOperation {
      */
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
                                      InputData inputData, OutputStream outputStream) {
+        ResolvedKeys keys = resolveKeys(input, cryptoInput);
+        if (keys.mResult != null) {
+            return withTimings(keys.mResult);
+        }
+        return execute(input, cryptoInput, keys, inputData, outputStream);
+    }
+
+    /**
+     * Fetches and unlocks the signing key, and looks up the encryption keys of all
+     * recipients. The returned keys can be used for any number of sign/encrypt
+     * operations with the same input and cryptoInput, also concurrently.
+     * <p/>
+     * Note that this adds the additional encryption key id to the input, so it must
+     * only be called once per input.
+     *
+     * @return the resolved keys, or a ResolvedKeys holding an error or pending result
+     */
+    public ResolvedKeys resolveKeys(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
 
         int indent = 0;
         OperationLog log = new OperationLog();
@@ -138,22 +157,6 @@ public class PgpSignEncryptOperation extends BaseOperation {
             input.getEncryptionMasterKeyIds()[input.getEncryptionMasterKeyIds().length - 1] = input.getAdditionalEncryptId();
         }
 
-        ArmoredOutputStream armorOut = null;
-        OutputStream out;
-        if (input.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
-            if (input.getVersionHeader() != null) {
-                armorOut.setHeader("Version", input.getVersionHeader());
-            }
-            // if we have a charset, put it in the header
-            if (input.getCharset() != null) {
-                armorOut.setHeader("Charset", input.getCharset());
-            }
-            out = armorOut;
-        } else {
-            out = outputStream;
-        }
-
         /* Get keys for signature generation for later usage */
         CanonicalizedSecretKey signingKey = null;
         if (enableSignature) {
@@ -162,8 +165,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             try {
                 // fetch the indicated master key id (the one whose name we sign in)
+                long lookupStart = mTimings.start();
                 CanonicalizedSecretKeyRing signingKeyRing =
                         mProviderHelper.getCanonicalizedSecretKeyRing(input.getSignatureMasterKeyId());
+                mTimings.end(Phase.KEY_LOOKUP, lookupStart);
 
                 // fetch the specific subkey to sign with, or just use the master key if none specified
                 signingKey = signingKeyRing.getSecretKey(input.getSignatureSubKeyId());
@@ -171,7 +176,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // Make sure we are allowed to sign here!
                 if (!signingKey.canSign()) {
                     log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                 }
 
                 switch (signingKey.getSecretKeyType()) {
@@ -197,20 +202,24 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         }
                         if (localPassphrase == null) {
                             log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
-                                    signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
+                            return new ResolvedKeys(new PgpSignEncryptResult(log,
+                                    RequiredInputParcel.createRequiredSignPassphrase(
+                                            signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
+                                            cryptoInput.getSignatureTime()), cryptoInput));
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        long unlockStart = mTimings.start();
+                        boolean unlocked = signingKey.unlock(localPassphrase);
+                        mTimings.end(Phase.KEY_UNLOCK, unlockStart);
+                        if (!unlocked) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                         }
                         break;
                     }
 
                     case GNU_DUMMY: {
                         log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                     }
                     default: {
                         throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
@@ -220,10 +229,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             } catch (ProviderHelper.NotFoundException e) {
                 log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             }
 
             // Use preferred hash algo
@@ -234,49 +243,27 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 input.setSignatureHashAlgorithm(supported.get(0));
             } else if (!supported.contains(requestedAlgorithm)) {
                 log.add(LogType.MSG_PSE_ERROR_HASH_ALGO, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             }
         }
-        updateProgress(R.string.progress_preparing_streams, 2, 100);
 
-        /* Initialize PGPEncryptedDataGenerator for later usage */
-        PGPEncryptedDataGenerator cPk = null;
+        /* Look up the encryption subkeys of all recipients */
+        ArrayList<CanonicalizedPublicKey> encryptionKeys = new ArrayList<>();
         if (enableEncryption) {
-
-            // Use preferred encryption algo
-            int algo = input.getSymmetricEncryptionAlgorithm();
-            if (algo == PgpConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_PREFERRED) {
-                // get most preferred
-                // TODO: get from recipients
-                algo = PgpConstants.sPreferredSymmetricAlgorithms.get(0);
-            }
-            // has Integrity packet enabled!
-            JcePGPDataEncryptorBuilder encryptorBuilder =
-                    new JcePGPDataEncryptorBuilder(algo)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
-                            .setWithIntegrityPacket(true);
-
-            cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
-
             if (input.getSymmetricPassphrase() != null) {
-                // Symmetric encryption
                 log.add(LogType.MSG_PSE_SYMMETRIC, indent);
-
-                JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator =
-                        new JcePBEKeyEncryptionMethodGenerator(input.getSymmetricPassphrase().getCharArray());
-                cPk.addMethod(symmetricEncryptionGenerator);
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
-                // Asymmetric encryption
                 for (long id : input.getEncryptionMasterKeyIds()) {
                     try {
+                        long lookupStart = mTimings.start();
                         CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
                                 KeyRings.buildUnifiedKeyRingUri(id));
+                        mTimings.end(Phase.KEY_LOOKUP, lookupStart);
                         Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
                         for (Long subKeyId : encryptSubKeyIds) {
-                            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                            cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                            encryptionKeys.add(keyRing.getPublicKey(subKeyId));
                             log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(subKeyId));
                         }
@@ -284,20 +271,98 @@ public class PgpSignEncryptOperation extends BaseOperation {
                             log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(id));
                             if (input.isFailOnMissingEncryptionKeyIds()) {
-                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                                return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                             }
                         }
                     } catch (ProviderHelper.NotFoundException e) {
                         log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
                                 KeyFormattingUtils.convertKeyIdToHex(id));
                         if (input.isFailOnMissingEncryptionKeyIds()) {
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return new ResolvedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                         }
                     }
                 }
             }
         }
 
+        return new ResolvedKeys(log, signingKey, encryptionKeys);
+    }
+
+    /**
+     * Signs and/or encrypts data based on parameters of class, using keys obtained
+     * from resolveKeys. This method does not access the database, and may be called
+     * from several threads at once.
+     */
+    public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+                                     ResolvedKeys keys, InputData inputData, OutputStream outputStream) {
+        return withTimings(executeInternal(input, cryptoInput, keys, inputData, outputStream));
+    }
+
+    @NonNull
+    private PgpSignEncryptResult executeInternal(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+                                              ResolvedKeys keys, InputData inputData, OutputStream outputStream) {
+
+        int indent = 1;
+        OperationLog log = new OperationLog();
+        // every result carries the log of the key lookup, as if it was done for this operation
+        log.addAll(keys.mLog);
+
+        boolean enableSignature = keys.mSigningKey != null;
+        boolean enableEncryption = ((input.getEncryptionMasterKeyIds() != null && input.getEncryptionMasterKeyIds().length > 0)
+                || input.getSymmetricPassphrase() != null);
+        boolean enableCompression = (input.getCompressionId() != CompressionAlgorithmTags.UNCOMPRESSED);
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (input.isEnableAsciiArmorOutput()) {
+            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            if (input.getVersionHeader() != null) {
+                armorOut.setHeader("Version", input.getVersionHeader());
+            }
+            // if we have a charset, put it in the header
+            if (input.getCharset() != null) {
+                armorOut.setHeader("Charset", input.getCharset());
+            }
+            out = armorOut;
+        } else {
+            out = outputStream;
+        }
+
+        CanonicalizedSecretKey signingKey = keys.mSigningKey;
+        updateProgress(R.string.progress_preparing_streams, 2, 100);
+
+        /* Initialize PGPEncryptedDataGenerator for later usage */
+        PGPEncryptedDataGenerator cPk = null;
+        if (enableEncryption) {
+
+            // Use preferred encryption algo
+            int algo = input.getSymmetricEncryptionAlgorithm();
+            if (algo == PgpConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_PREFERRED) {
+                // get most preferred
+                // TODO: get from recipients
+                algo = PgpConstants.sPreferredSymmetricAlgorithms.get(0);
+            }
+            // has Integrity packet enabled!
+            JcePGPDataEncryptorBuilder encryptorBuilder =
+                    new JcePGPDataEncryptorBuilder(algo)
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .setWithIntegrityPacket(true);
+
+            cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
+
+            if (input.getSymmetricPassphrase() != null) {
+                // Symmetric encryption
+                JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator =
+                        new JcePBEKeyEncryptionMethodGenerator(input.getSymmetricPassphrase().getCharArray());
+                cPk.addMethod(symmetricEncryptionGenerator);
+            } else {
+                // Asymmetric encryption
+                for (CanonicalizedPublicKey key : keys.mEncryptionKeys) {
+                    cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                }
+            }
+        }
+
         /* Initialize signature generator object for later usage */
         PGPSignatureGenerator signatureGenerator = null;
         if (enableSignature) {
@@ -337,7 +402,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
+                // encrypts the session key for all recipients
+                long sessionKeyStart = mTimings.start();
                 encryptionOut = cPk.open(out, new byte[1 << 16]);
+                mTimings.end(Phase.SESSION_KEY, sessionKeyStart);
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
@@ -365,6 +433,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 int length;
                 byte[] buffer = new byte[1 << 16];
                 InputStream in = inputData.getInputStream();
+                long streamStart = mTimings.start();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -379,6 +448,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                mTimings.end(Phase.STREAM, streamStart, alreadyWritten);
 
                 literalGen.close();
                 indent -= 1;
@@ -395,6 +465,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 InputStream in = inputData.getInputStream();
                 final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
+                long streamStart = mTimings.start();
                 // update signature buffer with first line
                 processLine(reader.readLine(), armorOut, signatureGenerator);
 
@@ -416,6 +487,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 }
 
                 armorOut.endClearText();
+                mTimings.end(Phase.STREAM, streamStart);
 
                 pOut = new BCPGOutputStream(armorOut);
             } else if (enableSignature && input.isDetachedSignature()) {
@@ -442,6 +514,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
+                long streamStart = mTimings.start();
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -453,6 +526,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                mTimings.end(Phase.STREAM, streamStart, alreadyWritten);
 
                 pOut = null;
             } else if (enableSignature && !input.isCleartextSignature() && !input.isDetachedSignature()) {
@@ -480,6 +554,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
+                long streamStart = mTimings.start();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -491,6 +566,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                mTimings.end(Phase.STREAM, streamStart, alreadyWritten);
 
                 literalGen.close();
             } else {
@@ -501,12 +577,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             if (enableSignature) {
                 updateProgress(R.string.progress_generating_signature, 95, 100);
+                long signStart = mTimings.start();
                 try {
                     if (detachedBcpgOut != null) {
                         signatureGenerator.generate().encode(detachedBcpgOut);
                     } else {
                         signatureGenerator.generate().encode(pOut);
                     }
+                    mTimings.end(Phase.SIGN, signStart);
                 } catch (NfcSyncPGPContentSignerBuilder.NfcInteractionNeeded e) {
                     // this secret key diverts to a OpenPGP card, throw exception with hash that will be signed
                     log.add(LogType.MSG_PSE_PENDING_NFC, indent);
@@ -571,6 +649,38 @@ public class PgpSignEncryptOperation extends BaseOperation {
         return result;
     }
 
+    /**
+     * The keys for a sign/encrypt operation, as returned by resolveKeys. Holds an
+     * error or pending result instead if the keys could not be resolved.
+     */
+    public static class ResolvedKeys {
+        final OperationLog mLog;
+        final CanonicalizedSecretKey mSigningKey;
+        final ArrayList<CanonicalizedPublicKey> mEncryptionKeys;
+        // if this is set, the keys can not be used
+        final PgpSignEncryptResult mResult;
+
+        ResolvedKeys(OperationLog log, CanonicalizedSecretKey signingKey,
+                     ArrayList<CanonicalizedPublicKey> encryptionKeys) {
+            mLog = log;
+            mSigningKey = signingKey;
+            mEncryptionKeys = encryptionKeys;
+            mResult = null;
+        }
+
+        ResolvedKeys(PgpSignEncryptResult result) {
+            mLog = null;
+            mSigningKey = null;
+            mEncryptionKeys = null;
+            mResult = result;
+        }
+
+        /** Returns null if the keys are usable, otherwise an error or pending result. */
+        public PgpSignEncryptResult getResult() {
+            return mResult;
+        }
+    }
+
     /**
      * Remove whitespaces on line endings
      */
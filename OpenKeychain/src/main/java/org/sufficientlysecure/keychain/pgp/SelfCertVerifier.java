@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureList;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the self certificates of a keyring for UncachedKeyRing.canonicalize().
+ * <p/>
+ * By default, every certificate is verified at the time canonicalize asks for it. A
+ * verifier created by verifyInParallel verifies all certificates canonicalize will ask
+ * for in advance instead, with one task per user id, user attribute and subkey on a
+ * shared thread pool. canonicalize itself still runs sequentially and only looks up
+ * the results, so its log is exactly the same either way.
+ * <p/>
+ * Results are looked up by signature object. Any certificate without a result from
+ * the parallel run is verified on demand, just like in sequential mode.
+ */
+class SelfCertVerifier {
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /** Verifies every certificate on demand. */
+    static final SelfCertVerifier SEQUENTIAL = new SelfCertVerifier(null, null);
+
+    // Boolean or PgpGeneralException, by certificate
+    private final IdentityHashMap<PGPSignature, Object> mResults;
+    // per embedded signature of a subkey binding certificate, null if not a primary key binding
+    private final IdentityHashMap<PGPSignature, Object[]> mBindingResults;
+
+    private SelfCertVerifier(IdentityHashMap<PGPSignature, Object> results,
+                             IdentityHashMap<PGPSignature, Object[]> bindingResults) {
+        mResults = results;
+        mBindingResults = bindingResults;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "canonicalize");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Verifies all self certificates of this keyring in parallel, and returns a verifier
+     * which answers from the results. Blocks until all verifications are done.
+     */
+    @SuppressWarnings("unchecked")
+    static SelfCertVerifier verifyInParallel(PGPKeyRing ring) {
+        final PGPPublicKey masterKey = ring.getPublicKey();
+        final long masterKeyId = masterKey.getKeyID();
+
+        ArrayList<Callable<Task>> tasks = new ArrayList<>();
+
+        tasks.add(new Callable<Task>() {
+            @Override
+            public Task call() {
+                Task task = new Task();
+                for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+                    int type = zert.getSignatureType();
+                    if (type == PGPSignature.KEY_REVOCATION || type == PGPSignature.DIRECT_KEY) {
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        try {
+                            cert.init(masterKey);
+                            task.put(zert, cert.verifySignature(masterKey));
+                        } catch (PgpGeneralException e) {
+                            task.put(zert, e);
+                        }
+                    }
+                }
+                return task;
+            }
+        });
+
+        for (final byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            tasks.add(new Callable<Task>() {
+                @Override
+                public Task call() {
+                    Task task = new Task();
+                    Iterator<PGPSignature> it = masterKey.getSignaturesForID(rawUserId);
+                    if (it == null) {
+                        return task;
+                    }
+                    for (PGPSignature zert : new IterableIterator<>(it)) {
+                        if (zert.getKeyID() != masterKeyId || !isCertification(zert.getSignatureType())) {
+                            continue;
+                        }
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        try {
+                            cert.init(masterKey);
+                            task.put(zert, cert.verifySignature(masterKey, rawUserId));
+                        } catch (PgpGeneralException e) {
+                            task.put(zert, e);
+                        }
+                    }
+                    return task;
+                }
+            });
+        }
+
+        for (final PGPUserAttributeSubpacketVector attribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            tasks.add(new Callable<Task>() {
+                @Override
+                public Task call() {
+                    Task task = new Task();
+                    Iterator<PGPSignature> it = masterKey.getSignaturesForUserAttribute(attribute);
+                    if (it == null) {
+                        return task;
+                    }
+                    for (PGPSignature zert : new IterableIterator<>(it)) {
+                        if (zert.getKeyID() != masterKeyId || !isCertification(zert.getSignatureType())) {
+                            continue;
+                        }
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        try {
+                            cert.init(masterKey);
+                            task.put(zert, cert.verifySignature(masterKey, attribute));
+                        } catch (PgpGeneralException e) {
+                            task.put(zert, e);
+                        }
+                    }
+                    return task;
+                }
+            });
+        }
+
+        for (final PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            tasks.add(new Callable<Task>() {
+                @Override
+                public Task call() {
+                    Task task = new Task();
+                    for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                        int type = zert.getSignatureType();
+                        if (zert.getKeyID() != masterKeyId || (type != PGPSignature.SUBKEY_BINDING
+                                && type != PGPSignature.SUBKEY_REVOCATION)) {
+                            continue;
+                        }
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        try {
+                            cert.init(masterKey);
+                            task.put(zert, cert.verifySignature(masterKey, key));
+                        } catch (PgpGeneralException e) {
+                            task.put(zert, e);
+                        }
+                        if (type == PGPSignature.SUBKEY_BINDING) {
+                            task.putBindings(zert, verifyPrimaryKeyBindings(zert, masterKey, key));
+                        }
+                    }
+                    return task;
+                }
+            });
+        }
+
+        // nothing to gain from a single task
+        if (tasks.size() < 2) {
+            return SEQUENTIAL;
+        }
+
+        IdentityHashMap<PGPSignature, Object> results = new IdentityHashMap<>();
+        IdentityHashMap<PGPSignature, Object[]> bindingResults = new IdentityHashMap<>();
+        ThreadPoolExecutor executor = getExecutor();
+        ArrayList<Future<Task>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Task> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+
+        // the tasks use the signature objects of the keyring, which the caller verifies on
+        // demand if their result is missing. verification doesn't respond to interrupts, so
+        // every task which started must be waited for, only those still queued are dropped
+        boolean interrupted = false;
+        for (Future<Task> future : futures) {
+            if (interrupted && executor.remove((Runnable) future)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    Task task = future.get();
+                    results.putAll(task.mResults);
+                    bindingResults.putAll(task.mBindingResults);
+                    break;
+                } catch (InterruptedException e) {
+                    // whatever is missing is verified on demand
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "parallel verification failed", e);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return new SelfCertVerifier(results, bindingResults);
+    }
+
+    private static boolean isCertification(int type) {
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    /** Returns results for all embedded signatures, or null if they could not be read. */
+    private static Object[] verifyPrimaryKeyBindings(PGPSignature zert, PGPPublicKey masterKey,
+                                                     PGPPublicKey key) {
+        if (zert.getUnhashedSubPackets() == null) {
+            return null;
+        }
+        PGPSignatureList list;
+        try {
+            list = zert.getUnhashedSubPackets().getEmbeddedSignatures();
+        } catch (Exception e) {
+            return null;
+        }
+        Object[] results = new Object[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            WrappedSignature subsig = new WrappedSignature(list.get(i));
+            if (subsig.getSignatureType() != PGPSignature.PRIMARYKEY_BINDING) {
+                continue;
+            }
+            try {
+                subsig.init(key);
+                results[i] = subsig.verifySignature(masterKey, key);
+            } catch (Exception e) {
+                results[i] = e;
+            }
+        }
+        return results;
+    }
+
+    private Object getResult(PGPSignature zert) {
+        return mResults != null ? mResults.get(zert) : null;
+    }
+
+    private static boolean toBoolean(Object result) throws PgpGeneralException {
+        if (result instanceof PgpGeneralException) {
+            throw (PgpGeneralException) result;
+        }
+        return (Boolean) result;
+    }
+
+    /** Verifies a key revocation or direct key signature on the master key. */
+    boolean verifyKeySignature(WrappedSignature cert, PGPPublicKey masterKey)
+            throws PgpGeneralException {
+        Object result = getResult(cert.mSig);
+        if (result != null) {
+            return toBoolean(result);
+        }
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey);
+    }
+
+    /** Verifies a self certification or revocation of a user id. */
+    boolean verifyUserIdSignature(WrappedSignature cert, PGPPublicKey masterKey, byte[] rawUserId)
+            throws PgpGeneralException {
+        Object result = getResult(cert.mSig);
+        if (result != null) {
+            return toBoolean(result);
+        }
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, rawUserId);
+    }
+
+    /** Verifies a self certification or revocation of a user attribute. */
+    boolean verifyUserAttributeSignature(WrappedSignature cert, PGPPublicKey masterKey,
+                                         PGPUserAttributeSubpacketVector attribute)
+            throws PgpGeneralException {
+        Object result = getResult(cert.mSig);
+        if (result != null) {
+            return toBoolean(result);
+        }
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, attribute);
+    }
+
+    /** Verifies a subkey binding or revocation signature. */
+    boolean verifySubkeySignature(WrappedSignature cert, PGPPublicKey masterKey, PGPPublicKey key)
+            throws PgpGeneralException {
+        Object result = getResult(cert.mSig);
+        if (result != null) {
+            return toBoolean(result);
+        }
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, key);
+    }
+
+    /**
+     * Verifies a primary key binding signature, embedded at the given index in the
+     * unhashed subpackets of a subkey binding certificate.
+     */
+    boolean verifyPrimaryKeyBinding(PGPSignature zert, int index, WrappedSignature subsig,
+                                    PGPPublicKey masterKey, PGPPublicKey key) throws Exception {
+        Object[] results = mBindingResults != null ? mBindingResults.get(zert) : null;
+        if (results != null && index < results.length && results[index] != null) {
+            if (results[index] instanceof Exception) {
+                throw (Exception) results[index];
+            }
+            return (Boolean) results[index];
+        }
+        subsig.init(key);
+        return subsig.verifySignature(masterKey, key);
+    }
+
+    /** Results of a single task, merged into the verifier once it is done. */
+    private static class Task {
+        final IdentityHashMap<PGPSignature, Object> mResults = new IdentityHashMap<>();
+        final IdentityHashMap<PGPSignature, Object[]> mBindingResults = new IdentityHashMap<>();
+
+        void put(PGPSignature zert, Object result) {
+            mResults.put(zert, result);
+        }
+
+        void putBindings(PGPSignature zert, Object[] results) {
+            if (results != null) {
+                mBindingResults.put(zert, results);
+            }
+        }
+    }
+
+}
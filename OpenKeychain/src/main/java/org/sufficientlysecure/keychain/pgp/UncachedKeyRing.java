@@ -52,13 +52,13 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
  *
@@ -305,8 +305,22 @@ public class UncachedKeyRing implements Serializable {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, false);
+    }
+
+    /** "Canonicalizes" a public key, removing inconsistencies in the process.
+     *
+     * Same as canonicalize(log, indent, forExport), but optionally verifies all self
+     * certificates in parallel beforehand, one task per user id, user attribute and
+     * subkey. The result and the written log are the same either way.
+     *
+     * @param parallel if this is true, self certificates are verified in parallel
+     * @see SelfCertVerifier
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+                                             boolean parallel) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -335,6 +349,9 @@ public class UncachedKeyRing implements Serializable {
             return null;
         }
 
+        SelfCertVerifier verifier = parallel
+                ? SelfCertVerifier.verifyInParallel(ring) : SelfCertVerifier.SEQUENTIAL;
+
         {
             log.add(LogType.MSG_KC_MASTER,
                     indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
@@ -376,8 +393,7 @@ public class UncachedKeyRing implements Serializable {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!verifier.verifyKeySignature(cert, masterKey)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -529,8 +545,7 @@ public class UncachedKeyRing implements Serializable {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!verifier.verifyUserIdSignature(cert, masterKey, rawUserId)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -694,8 +709,7 @@ public class UncachedKeyRing implements Serializable {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!verifier.verifyUserAttributeSignature(cert, masterKey, userAttribute)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -884,8 +898,7 @@ public class UncachedKeyRing implements Serializable {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verifySubkeySignature(cert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -925,8 +938,7 @@ public class UncachedKeyRing implements Serializable {
                             for (int i = 0; i < list.size(); i++) {
                                 WrappedSignature subsig = new WrappedSignature(list.get(i));
                                 if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                                    subsig.init(key);
-                                    if (subsig.verifySignature(masterKey, key)) {
+                                    if (verifier.verifyPrimaryKeyBinding(zert, i, subsig, masterKey, key)) {
                                         ok = true;
                                     } else {
                                         log.add(LogType.MSG_KC_SUB_PRIMARY_BAD, indent);
@@ -968,8 +980,7 @@ public class UncachedKeyRing implements Serializable {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verifySubkeySignature(cert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1060,40 +1071,43 @@ public class UncachedKeyRing implements Serializable {
      *
      */
     public UncachedKeyRing merge(UncachedKeyRing other, OperationLog log, int indent) {
+        return mergeAll(Collections.singletonList(other), log, indent);
+    }
+
+    /** This operation merges information from several different keyrings, returning a
+     * combined UncachedKeyRing.
+     *
+     * This is equivalent to merging the keyrings one after the other, but known
+     * certificates are only collected once, which matters for keys with many certificates.
+     *
+     * @param others The UncachedKeyRings to merge, in order. Each must not be empty, and of
+     *               the same masterKeyId
+     * @return A consolidated UncachedKeyRing with the data of all input keyrings. Same type as
+     * this object, or null on error.
+     *
+     */
+    public UncachedKeyRing mergeAll(List<UncachedKeyRing> others, OperationLog log, int indent) {
 
         // This is logged in the calling method to provide more meta info
         // log.add(isSecret() ? LogType.MSG_MG_SECRET : LogType.MSG_MG_PUBLIC,
                 // indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
         indent += 1;
 
-        long masterKeyId = other.getMasterKeyId();
+        long masterKeyId = getMasterKeyId();
 
-        if (getMasterKeyId() != masterKeyId
-                || !Arrays.equals(getFingerprint(), other.getFingerprint())) {
-            log.add(LogType.MSG_MG_ERROR_HETEROGENEOUS, indent);
-            return null;
+        for (UncachedKeyRing other : others) {
+            if (other.getMasterKeyId() != masterKeyId
+                    || !Arrays.equals(getFingerprint(), other.getFingerprint())) {
+                log.add(LogType.MSG_MG_ERROR_HETEROGENEOUS, indent);
+                return null;
+            }
         }
 
-        // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
-
         try {
             PGPKeyRing result = mRing;
-            PGPKeyRing candidate = other.mRing;
+
+            // remember which certs we already added. this is cheaper than semantic deduplication
+            CertificateDigestSet certs = new CertificateDigestSet(64);
 
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
@@ -1105,104 +1119,105 @@ public class UncachedKeyRing implements Serializable {
             // keep track of the number of new certs we add
             int newCerts = 0;
 
-            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(candidate.getPublicKeys())) {
+            for (UncachedKeyRing other : others) {
+                PGPKeyRing candidate = other.mRing;
 
-                final PGPPublicKey resultKey = result.getPublicKey(key.getKeyID());
-                if (resultKey == null) {
-                    log.add(LogType.MSG_MG_NEW_SUBKEY, indent);
-                    // special case: if both rings are secret, copy over the secret key
-                    if (isSecret() && other.isSecret()) {
-                        PGPSecretKey sKey = ((PGPSecretKeyRing) candidate).getSecretKey(key.getKeyID());
-                        result = PGPSecretKeyRing.insertSecretKey((PGPSecretKeyRing) result, sKey);
-                    } else {
-                        // otherwise, just insert the public key
-                        result = replacePublicKey(result, key);
-                    }
-                    continue;
-                }
-
-                // Modifiable version of the old key, which we merge stuff into (keep old for comparison)
-                PGPPublicKey modified = resultKey;
-
-                // Iterate certifications
-                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getKeySignatures())) {
-                    // Don't merge foreign stuff into secret keys
-                    if (cert.getKeyID() != masterKeyId && isSecret()) {
-                        continue;
-                    }
+                for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(candidate.getPublicKeys())) {
 
-                    byte[] encoded = cert.getEncoded();
-                    // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    final PGPPublicKey resultKey = result.getPublicKey(key.getKeyID());
+                    if (resultKey == null) {
+                        log.add(LogType.MSG_MG_NEW_SUBKEY, indent);
+                        // special case: if both rings are secret, copy over the secret key
+                        if (isSecret() && other.isSecret()) {
+                            PGPSecretKey sKey = ((PGPSecretKeyRing) candidate).getSecretKey(key.getKeyID());
+                            result = PGPSecretKeyRing.insertSecretKey((PGPSecretKeyRing) result, sKey);
+                        } else {
+                            // otherwise, just insert the public key
+                            result = replacePublicKey(result, key);
+                        }
+                        // its certs are known from now on, in case a later keyring has them too
+                        for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                            certs.add(cert.getEncoded());
+                        }
                         continue;
                     }
-                    certs.add(encoded);
-                    modified = PGPPublicKey.addCertification(modified, cert);
-                    newCerts += 1;
-                }
 
-                // If this is a subkey, merge it in and stop here
-                if (!key.isMasterKey()) {
-                    if (modified != resultKey) {
-                        result = replacePublicKey(result, modified);
-                    }
-                    continue;
-                }
+                    // Modifiable version of the old key, which we merge stuff into (keep old for comparison)
+                    PGPPublicKey modified = resultKey;
 
-                // Copy over all user id certificates
-                for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
-                    @SuppressWarnings("unchecked")
-                    Iterator<PGPSignature> signaturesIt = key.getSignaturesForID(rawUserId);
-                    // no signatures for this User ID, skip it
-                    if (signaturesIt == null) {
-                        continue;
-                    }
-                    for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                    // Iterate certifications
+                    for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getKeySignatures())) {
                         // Don't merge foreign stuff into secret keys
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(cert.getEncoded())) {
                             continue;
                         }
+                        modified = PGPPublicKey.addCertification(modified, cert);
                         newCerts += 1;
-                        certs.add(encoded);
-                        modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
-                }
 
-                // Copy over all user attribute certificates
-                for (PGPUserAttributeSubpacketVector vector :
-                        new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
-                    @SuppressWarnings("unchecked")
-                    Iterator<PGPSignature> signaturesIt = key.getSignaturesForUserAttribute(vector);
-                    // no signatures for this user attribute attribute, skip it
-                    if (signaturesIt == null) {
+                    // If this is a subkey, merge it in and stop here
+                    if (!key.isMasterKey()) {
+                        if (modified != resultKey) {
+                            result = replacePublicKey(result, modified);
+                        }
                         continue;
                     }
-                    for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
-                        // Don't merge foreign stuff into secret keys
-                        if (cert.getKeyID() != masterKeyId && isSecret()) {
+
+                    // Copy over all user id certificates
+                    for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
+                        @SuppressWarnings("unchecked")
+                        Iterator<PGPSignature> signaturesIt = key.getSignaturesForID(rawUserId);
+                        // no signatures for this User ID, skip it
+                        if (signaturesIt == null) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
-                        // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                            // Don't merge foreign stuff into secret keys
+                            if (cert.getKeyID() != masterKeyId && isSecret()) {
+                                continue;
+                            }
+                            // Known cert, skip it
+                            if (!certs.add(cert.getEncoded())) {
+                                continue;
+                            }
+                            newCerts += 1;
+                            modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
+                        }
+                    }
+
+                    // Copy over all user attribute certificates
+                    for (PGPUserAttributeSubpacketVector vector :
+                            new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
+                        @SuppressWarnings("unchecked")
+                        Iterator<PGPSignature> signaturesIt = key.getSignaturesForUserAttribute(vector);
+                        // no signatures for this user attribute attribute, skip it
+                        if (signaturesIt == null) {
                             continue;
                         }
-                        newCerts += 1;
-                        certs.add(encoded);
-                        modified = PGPPublicKey.addCertification(modified, vector, cert);
+                        for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                            // Don't merge foreign stuff into secret keys
+                            if (cert.getKeyID() != masterKeyId && isSecret()) {
+                                continue;
+                            }
+                            // Known cert, skip it
+                            if (!certs.add(cert.getEncoded())) {
+                                continue;
+                            }
+                            newCerts += 1;
+                            modified = PGPPublicKey.addCertification(modified, vector, cert);
+                        }
                     }
-                }
 
-                // If anything change, save the updated (sub)key
-                if (modified != resultKey) {
-                    result = replacePublicKey(result, modified);
-                }
+                    // If anything change, save the updated (sub)key
+                    if (modified != resultKey) {
+                        result = replacePublicKey(result, modified);
+                    }
 
+                }
             }
 
             if (newCerts > 0) {
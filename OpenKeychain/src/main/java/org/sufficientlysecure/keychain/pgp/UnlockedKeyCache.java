@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.os.SystemClock;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A process-wide cache of unlocked private keys.
+ *
+ * Extracting a private key runs the S2K of the secret key, which for keys
+ * created by us is 65536 iterations of the hash function. This cache holds
+ * on to extracted keys, so that a burst of operations with the same key
+ * only pays for the S2K once.
+ *
+ * An entry can only be retrieved with the same passphrase and the same
+ * encrypted secret key it was unlocked from: both are stored as a salted
+ * digest and compared on every lookup. This way, a wrong passphrase will
+ * never unlock a key, and a passphrase change immediately invalidates the
+ * entry.
+ *
+ * Keys are only cached once a ttl is set for them, which is done by the
+ * PassphraseCache of the process when it caches their passphrase. Entries are
+ * also dropped whenever their passphrase is dropped from the PassphraseCache,
+ * so the lifetime of unlocked keys follows the lifetime of cached passphrases.
+ *
+ */
+public class UnlockedKeyCache {
+
+    private static final UnlockedKeyCache sInstance = new UnlockedKeyCache();
+
+    private final ConcurrentHashMap<Long, CachedKey> mKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, KeyTtl> mTtls = new ConcurrentHashMap<>();
+    private final byte[] mSalt = new byte[16];
+
+    public static UnlockedKeyCache getInstance() {
+        return sInstance;
+    }
+
+    UnlockedKeyCache() {
+        new SecureRandom().nextBytes(mSalt);
+    }
+
+    /** Sets the time in seconds that the given subkey is cached once unlocked.
+     * A value of zero disables caching for this subkey and drops its entry.
+     */
+    public void setTtl(long masterKeyId, long subKeyId, long ttl) {
+        if (ttl <= 0) {
+            mTtls.remove(subKeyId);
+            CachedKey cachedKey = mKeys.remove(subKeyId);
+            if (cachedKey != null) {
+                cachedKey.wipe();
+            }
+            return;
+        }
+        mTtls.put(subKeyId, new KeyTtl(masterKeyId, ttl * 1000));
+    }
+
+    PGPPrivateKey get(long subKeyId, PGPSecretKey secretKey, Passphrase passphrase) {
+        CachedKey cachedKey = mKeys.get(subKeyId);
+        if (cachedKey == null) {
+            return null;
+        }
+
+        if (SystemClock.elapsedRealtime() >= cachedKey.mExpiry) {
+            mKeys.remove(subKeyId, cachedKey);
+            return null;
+        }
+
+        byte[] digest = digest(secretKey, passphrase);
+        if (digest == null || !MessageDigest.isEqual(digest, cachedKey.mDigest)) {
+            return null;
+        }
+
+        return cachedKey.mPrivateKey;
+    }
+
+    void put(long masterKeyId, long subKeyId, PGPSecretKey secretKey, Passphrase passphrase,
+             PGPPrivateKey privateKey) {
+        KeyTtl ttl = mTtls.get(subKeyId);
+        if (ttl == null) {
+            return;
+        }
+
+        byte[] digest = digest(secretKey, passphrase);
+        if (digest == null) {
+            return;
+        }
+
+        mKeys.put(subKeyId, new CachedKey(masterKeyId, digest, privateKey,
+                SystemClock.elapsedRealtime() + ttl.mTtlMillis));
+    }
+
+    /** Drops all unlocked keys for the given key id, which may be either a
+     * master key id or a subkey id.
+     */
+    public void remove(long keyId) {
+        Iterator<Map.Entry<Long, KeyTtl>> ttls = mTtls.entrySet().iterator();
+        while (ttls.hasNext()) {
+            Map.Entry<Long, KeyTtl> entry = ttls.next();
+            if (entry.getKey() == keyId || entry.getValue().mMasterKeyId == keyId) {
+                ttls.remove();
+            }
+        }
+
+        Iterator<Map.Entry<Long, CachedKey>> it = mKeys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CachedKey> entry = it.next();
+            if (entry.getKey() == keyId || entry.getValue().mMasterKeyId == keyId) {
+                entry.getValue().wipe();
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        mTtls.clear();
+
+        Iterator<CachedKey> it = mKeys.values().iterator();
+        while (it.hasNext()) {
+            it.next().wipe();
+            it.remove();
+        }
+    }
+
+    public int size() {
+        return mKeys.size();
+    }
+
+    private byte[] digest(PGPSecretKey secretKey, Passphrase passphrase) {
+        char[] chars = passphrase.getCharArray();
+        byte[] passphraseBytes = new byte[chars.length * 2];
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mSalt);
+            digest.update(secretKey.getEncoded());
+            for (int i = 0; i < chars.length; i++) {
+                passphraseBytes[2 * i] = (byte) (chars[i] >> 8);
+                passphraseBytes[2 * i + 1] = (byte) chars[i];
+            }
+            digest.update(passphraseBytes);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(Constants.TAG, "could not digest secret key, not caching", e);
+            return null;
+        } finally {
+            Arrays.fill(passphraseBytes, (byte) 0);
+        }
+    }
+
+    private static class KeyTtl {
+        final long mMasterKeyId;
+        final long mTtlMillis;
+
+        KeyTtl(long masterKeyId, long ttlMillis) {
+            mMasterKeyId = masterKeyId;
+            mTtlMillis = ttlMillis;
+        }
+    }
+
+    private static class CachedKey {
+        final long mMasterKeyId;
+        final byte[] mDigest;
+        final PGPPrivateKey mPrivateKey;
+        final long mExpiry;
+
+        CachedKey(long masterKeyId, byte[] digest, PGPPrivateKey privateKey, long expiry) {
+            mMasterKeyId = masterKeyId;
+            mDigest = digest;
+            mPrivateKey = privateKey;
+            mExpiry = expiry;
+        }
+
+        void wipe() {
+            // the key material itself is held in immutable BigIntegers, all we can do is to
+            // make sure this entry can never match again
+            Arrays.fill(mDigest, (byte) 0);
+        }
+    }
+
+}
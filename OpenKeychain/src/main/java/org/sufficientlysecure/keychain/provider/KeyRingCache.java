@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.List;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+
+/**
+ * Process-wide LRU cache of parsed public and secret keyrings, by master key
+ * id. Parsing a keyring blob is expensive, and the same few keyrings tend to
+ * be requested many times in a row, eg. once per recipient and again for
+ * signing.
+ * <p/>
+ * The size of the cache is bounded by the summed size of the cached blobs,
+ * which is a good estimate for the memory used by the parsed keyrings.
+ * <p/>
+ * KeychainProvider invalidates the cached keyrings of a master key id when it
+ * sends a change notification for them, which in the main process happens
+ * directly, after the change was committed. Other processes observe the change
+ * notifications, which are delivered asynchronously.
+ * <p/>
+ * The cached objects are shared, so they must not be modified. Hit and miss
+ * counts are available to check the cache size.
+ */
+public class KeyRingCache {
+
+    // a typical keyring is 2 to 20 kb, so this holds a few hundred of them
+    private static final int MAX_SIZE_BYTES =
+            (int) Math.min(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+
+    private static final LruCache<RingKey, Entry> sCache =
+            new LruCache<RingKey, Entry>(MAX_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(RingKey key, Entry entry) {
+                    return entry.mSize;
+                }
+            };
+
+    // incremented on every invalidation, so that a load which raced with an
+    // invalidation is not published
+    private static int sGeneration = 0;
+    private static boolean sObserverRegistered = false;
+
+    private KeyRingCache() {
+    }
+
+    /** Makes sure this process learns about changes made by other processes. */
+    static synchronized void registerObserver(Context context) {
+        if (sObserverRegistered) {
+            return;
+        }
+        sObserverRegistered = true;
+
+        // a null handler delivers notifications on the binder thread, which is fine here
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                KeychainContract.KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // only called directly before api 16, which has no uri
+                        invalidate();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onChangeNotification(uri);
+                    }
+                });
+    }
+
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    static synchronized CanonicalizedPublicKeyRing getPublic(long masterKeyId) {
+        Entry entry = sCache.get(new RingKey(masterKeyId, false));
+        return entry != null ? (CanonicalizedPublicKeyRing) entry.mRing : null;
+    }
+
+    static synchronized CanonicalizedSecretKeyRing getSecret(long masterKeyId) {
+        Entry entry = sCache.get(new RingKey(masterKeyId, true));
+        return entry != null ? (CanonicalizedSecretKeyRing) entry.mRing : null;
+    }
+
+    /**
+     * Publishes a freshly parsed keyring, unless the cache was invalidated since
+     * the load started at the given generation.
+     */
+    static synchronized void put(CanonicalizedKeyRing ring, int blobSize, int generation) {
+        if (generation != sGeneration) {
+            return;
+        }
+        boolean secret = ring instanceof CanonicalizedSecretKeyRing;
+        sCache.put(new RingKey(ring.getMasterKeyId(), secret), new Entry(ring, blobSize));
+    }
+
+    static synchronized void invalidate() {
+        sGeneration += 1;
+        sCache.evictAll();
+    }
+
+    static synchronized void invalidate(long masterKeyId) {
+        sGeneration += 1;
+        sCache.remove(new RingKey(masterKeyId, false));
+        sCache.remove(new RingKey(masterKeyId, true));
+    }
+
+    /**
+     * Invalidates the keyrings affected by a change notification. Notifications for a
+     * single keyring have the form key_rings/(master key id)/..., all others under
+     * key_rings invalidate the entire cache.
+     */
+    static void onChangeNotification(Uri uri) {
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments == null || segments.isEmpty()) {
+            invalidate();
+            return;
+        }
+        if (!KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            return;
+        }
+        if (segments.size() > 1) {
+            try {
+                invalidate(Long.parseLong(segments.get(1)));
+                return;
+            } catch (NumberFormatException e) {
+                // not about a single keyring
+            }
+        }
+        invalidate();
+    }
+
+    public static synchronized int hitCount() {
+        return sCache.hitCount();
+    }
+
+    public static synchronized int missCount() {
+        return sCache.missCount();
+    }
+
+    public static synchronized int evictionCount() {
+        return sCache.evictionCount();
+    }
+
+    /** Size of the cached keyrings, in bytes. */
+    public static synchronized int size() {
+        return sCache.size();
+    }
+
+    public static synchronized int maxSize() {
+        return sCache.maxSize();
+    }
+
+    private static class RingKey {
+        final long mMasterKeyId;
+        final boolean mSecret;
+
+        RingKey(long masterKeyId, boolean secret) {
+            mMasterKeyId = masterKeyId;
+            mSecret = secret;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RingKey)) {
+                return false;
+            }
+            RingKey other = (RingKey) o;
+            return mMasterKeyId == other.mMasterKeyId && mSecret == other.mSecret;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mMasterKeyId ^ (mMasterKeyId >>> 32)) + (mSecret ? 1 : 0);
+        }
+    }
+
+    private static class Entry {
+        final CanonicalizedKeyRing mRing;
+        final int mSize;
+
+        Entry(CanonicalizedKeyRing ring, int blobSize) {
+            mRing = ring;
+            // count at least one byte, entries of size zero would never be evicted
+            mSize = Math.max(1, blobSize);
+        }
+    }
+
+}
@@ -28,6 +28,9 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        // public keyrings only, see KeyRingDigest
+        String KEY_RING_DIGEST = "key_ring_digest";
+        String PACKET_DIGESTS = "packet_digests";
     }
 
     interface KeysColumns {
@@ -59,6 +62,14 @@ public class KeychainContract {
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
+        String EMAIL = "email"; // normalized email part of the user id, for lookups
+    }
+
+    interface KeyRingsSearchColumns {
+        String MASTER_KEY_ID = "master_key_id"; // stored as the docid of the fts table
+        String USER_IDS = "user_ids"; // all user ids, one per line
+        String KEY_IDS = "key_ids"; // long and short hex key ids of all subkeys
+        String FINGERPRINTS = "fingerprints"; // hex fingerprints of all subkeys
     }
 
     interface CertsColumns {
@@ -102,6 +113,7 @@ public class KeychainContract {
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_SEARCH = "search";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -171,6 +183,25 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /**
+         * Keyrings matching all words of the query, by prefix of any word in their user ids,
+         * key ids or fingerprints.
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
+    }
+
+    public static class KeyRingsSearch implements KeyRingsSearchColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildKeyRingSearchUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SEARCH).build();
+        }
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -232,6 +263,15 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_KEYS).build();
         }
 
+        /**
+         * The (sub)keys with the given key id, from the keys table only. Much cheaper than
+         * KeyRings.buildUnifiedKeyRingsFindBySubkeyUri if only key data is needed.
+         */
+        public static Uri buildKeysFindBySubkeyUri(long subkey) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY)
+                    .appendPath(Long.toString(subkey)).appendPath(PATH_KEYS).build();
+        }
+
     }
 
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
@@ -262,6 +302,16 @@ public class KeychainContract {
         public static Uri buildUserIdsUri(Uri uri) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_USER_IDS).build();
         }
+
+        /**
+         * User ids with any of the given emails, which are separated by commas. Yields the
+         * EMAIL and MASTER_KEY_ID of each match, as well as IS_REVOKED and IS_EXPIRED of
+         * its keyring.
+         */
+        public static Uri buildUserIdsFindByEmailUri(String emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_EMAIL)
+                    .appendPath(emails).appendPath(PATH_USER_IDS).build();
+        }
     }
 
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
@@ -18,14 +18,18 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
+import org.spongycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
@@ -33,6 +37,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedK
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
@@ -42,6 +47,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -53,7 +60,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 11;
+    private static final int DATABASE_VERSION = 15;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -66,12 +73,15 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
+        String KEY_RINGS_SEARCH = "keyrings_search";
     }
 
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.KEY_RING_DIGEST + " BLOB,"
+                + KeyRingsColumns.PACKET_DIGESTS + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
@@ -108,6 +118,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    // for lookups by subkey id, see KeyRings.buildUnifiedKeyRingsFindBySubkeyUri
+    private static final String CREATE_KEYS_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_by_key_id ON " + Tables.KEYS
+                + "(" + KeysColumns.KEY_ID + ")";
+
     private static final String CREATE_USER_PACKETS =
             "CREATE TABLE IF NOT EXISTS " + Tables.USER_PACKETS + "("
                 + UserPacketsColumns.MASTER_KEY_ID + " INTEGER, "
@@ -118,12 +133,25 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.IS_PRIMARY + " INTEGER, "
                 + UserPacketsColumns.IS_REVOKED + " INTEGER, "
                 + UserPacketsColumns.RANK+ " INTEGER, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
 
                 + "PRIMARY KEY(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + "), "
                 + "FOREIGN KEY(" + UserPacketsColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_USER_PACKETS_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS user_packets_by_email ON " + Tables.USER_PACKETS
+                + "(" + UserPacketsColumns.EMAIL + ")";
+
+    // full text index for the key list search, the docid is the master key id
+    private static final String CREATE_KEYRINGS_SEARCH =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.KEY_RINGS_SEARCH + " USING fts4("
+                + KeyRingsSearchColumns.USER_IDS + ", "
+                + KeyRingsSearchColumns.KEY_IDS + ", "
+                + KeyRingsSearchColumns.FINGERPRINTS
+            + ")";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -204,11 +232,18 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_PUBLIC);
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+        db.execSQL(CREATE_KEYRINGS_SEARCH);
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
+
+        // nothing cached from a previous database is valid anymore
+        TrustedKeysCache.invalidate();
+        KeyRingCache.invalidate();
     }
 
     @Override
@@ -278,8 +313,33 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 // fix problems in database, see #1402 for details
                 // https://github.com/open-keychain/open-keychain/issues/1402
                 db.execSQL("DELETE FROM api_accounts WHERE key_id BETWEEN 0 AND 3");
-                if (oldVersion == 10) {
-                    // no consolidate if we are updating from 10, we're just here for the api_accounts fix
+                // index for lookups by subkey id
+                db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+            case 12:
+                // indexed email column for lookups by email
+                try {
+                    db.execSQL("ALTER TABLE user_packets ADD COLUMN email TEXT");
+                } catch (Exception e) {
+                    // never mind, the column probably already existed
+                }
+                db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+                fillUserPacketEmails(db);
+            case 13:
+                // full text search for the key list
+                db.execSQL(CREATE_KEYRINGS_SEARCH);
+                fillKeyRingsSearch(db);
+            case 14:
+                // digests to recognize keyrings which did not change
+                try {
+                    db.execSQL("ALTER TABLE keyrings_public ADD COLUMN key_ring_digest BLOB");
+                    db.execSQL("ALTER TABLE keyrings_public ADD COLUMN packet_digests BLOB");
+                } catch (Exception e) {
+                    // never mind, the columns probably already existed
+                }
+                // digests of existing keyrings are filled in lazily, see ProviderHelper
+                if (oldVersion >= 10) {
+                    // no consolidate if we are updating from 10 or later, we're just here for
+                    // the api_accounts fix and the indices
                     return;
                 }
 
@@ -292,6 +352,101 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /** Fills the email column from the user ids already in the database. */
+    private static void fillUserPacketEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[]{
+                UserPacketsColumns.MASTER_KEY_ID, UserPacketsColumns.RANK, UserPacketsColumns.USER_ID
+        }, UserPacketsColumns.USER_ID + " IS NOT NULL", null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                String email = KeyRing.getNormalizedEmail(cursor.getString(2));
+                if (email == null) {
+                    continue;
+                }
+                values.put(UserPacketsColumns.EMAIL, email);
+                db.update(Tables.USER_PACKETS, values,
+                        UserPacketsColumns.MASTER_KEY_ID + " = ? AND " + UserPacketsColumns.RANK + " = ?",
+                        new String[]{ cursor.getString(0), cursor.getString(1) });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Fills the search table from the keys and user ids already in the database. */
+    private static void fillKeyRingsSearch(SQLiteDatabase db) {
+        db.delete(Tables.KEY_RINGS_SEARCH, null, null);
+
+        // both ordered by master key id, so they can be walked side by side
+        Cursor keys = db.query(Tables.KEYS, new String[]{
+                KeysColumns.MASTER_KEY_ID, KeysColumns.KEY_ID, KeysColumns.FINGERPRINT
+        }, null, null, null, null, KeysColumns.MASTER_KEY_ID + ", " + KeysColumns.RANK);
+        Cursor userIds = db.query(Tables.USER_PACKETS, new String[]{
+                UserPacketsColumns.MASTER_KEY_ID, UserPacketsColumns.USER_ID
+        }, UserPacketsColumns.USER_ID + " IS NOT NULL", null, null, null,
+                UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK);
+
+        try {
+            boolean hasUserId = userIds.moveToFirst();
+            boolean hasKey = keys.moveToFirst();
+            while (hasKey) {
+                long masterKeyId = keys.getLong(0);
+
+                ArrayList<Long> keyIds = new ArrayList<>();
+                ArrayList<byte[]> fingerprints = new ArrayList<>();
+                do {
+                    keyIds.add(keys.getLong(1));
+                    fingerprints.add(keys.getBlob(2));
+                    hasKey = keys.moveToNext();
+                } while (hasKey && keys.getLong(0) == masterKeyId);
+
+                ArrayList<String> uids = new ArrayList<>();
+                while (hasUserId && userIds.getLong(0) <= masterKeyId) {
+                    if (userIds.getLong(0) == masterKeyId) {
+                        uids.add(userIds.getString(1));
+                    }
+                    hasUserId = userIds.moveToNext();
+                }
+
+                ContentValues values = buildKeyRingSearchValues(uids, keyIds, fingerprints);
+                values.put("docid", masterKeyId);
+                db.insert(Tables.KEY_RINGS_SEARCH, null, values);
+            }
+        } finally {
+            keys.close();
+            userIds.close();
+        }
+    }
+
+    /**
+     * Builds the text columns of a row in the search table. The fts tokenizer splits
+     * these at every non-alphanumeric character, so that eg. every part of an email
+     * address can be found by prefix.
+     */
+    static ContentValues buildKeyRingSearchValues(List<String> userIds, List<Long> keyIds,
+                                                  List<byte[]> fingerprints) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRingsSearchColumns.USER_IDS, TextUtils.join("\n", userIds));
+
+        StringBuilder keyIdsText = new StringBuilder();
+        for (long keyId : keyIds) {
+            // long and short key ids without 0x, fingerprints only match by prefix
+            keyIdsText.append(KeyRing.getSearchKeyIds(keyId)).append(' ');
+        }
+        values.put(KeyRingsSearchColumns.KEY_IDS, keyIdsText.toString());
+
+        StringBuilder fingerprintsText = new StringBuilder();
+        for (byte[] fingerprint : fingerprints) {
+            if (fingerprint != null) {
+                fingerprintsText.append(Hex.toHexString(fingerprint)).append(' ');
+            }
+        }
+        values.put(KeyRingsSearchColumns.FINGERPRINTS, fingerprintsText.toString());
+
+        return values;
+    }
+
     /** This method tries to import data from a provided database.
      *
      * The sole assumptions made on this db are that there is a key_rings table
@@ -440,9 +595,12 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_SEARCH);
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        TrustedKeysCache.invalidate();
+        KeyRingCache.invalidate();
     }
 
 }
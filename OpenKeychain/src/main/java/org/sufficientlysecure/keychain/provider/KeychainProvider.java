@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -31,21 +34,25 @@ import android.net.Uri;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -62,6 +69,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_SEARCH = 207;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -71,6 +79,9 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEYS_FIND_BY_SUBKEY = 402;
+    private static final int USER_IDS_FIND_BY_EMAIL = 403;
+    private static final int KEY_RINGS_SEARCH = 404;
 
     protected UriMatcher mUriMatcher;
 
@@ -110,15 +121,29 @@ public class KeychainProvider extends ContentProvider {
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
+         * key_rings/find/email/_/user_ids
          * key_rings/find/subkey/_
+         * key_rings/find/subkey/_/keys
+         * key_rings/find/search/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAIL + "/*",
                 KEY_RINGS_FIND_BY_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAIL + "/*/"
+                + KeychainContract.PATH_USER_IDS,
+                USER_IDS_FIND_BY_EMAIL);
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*/"
+                + KeychainContract.PATH_KEYS,
+                KEYS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_SEARCH + "/*",
+                KEY_RINGS_SEARCH);
 
         /**
          * list key_ring specifics
@@ -131,6 +156,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/search
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -154,6 +180,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
 
         /**
          * API apps
@@ -184,12 +213,16 @@ public class KeychainProvider extends ContentProvider {
 
     private KeychainDatabase mKeychainDatabase;
 
+    // uris to notify after the batch running on this thread is committed, see applyBatch
+    private final ThreadLocal<HashSet<Uri>> mBatchNotifyUris = new ThreadLocal<>();
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
+        TrustedKeysCache.setProviderProcess();
         return true;
     }
 
@@ -210,9 +243,11 @@ public class KeychainProvider extends ContentProvider {
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY:
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
+            case USER_IDS_FIND_BY_EMAIL:
                 return UserPackets.CONTENT_TYPE;
 
             case KEY_RING_SECRET:
@@ -257,7 +292,8 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_SEARCH: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -394,11 +430,11 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // an uncorrelated subquery, so both lookups can use an index
+                            // (keys_by_key_id and the primary key) instead of a scan
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -406,29 +442,28 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
-                    case KEY_RINGS_FIND_BY_EMAIL: {
-                        String chunks[] = uri.getLastPathSegment().split(" *, *");
-                        boolean gotCondition = false;
-                        String emailWhere = "";
-                        // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
-                                continue;
-                            }
-                            if (i != 0) {
-                                emailWhere += " OR ";
-                            }
-                            emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                            gotCondition = true;
+                    case KEY_RINGS_SEARCH: {
+                        String searchMatch = buildSearchMatch(uri.getLastPathSegment());
+                        if (searchMatch != null) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT docid FROM " + Tables.KEY_RINGS_SEARCH
+                                    + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH ");
+                            qb.appendWhereEscapeString(searchMatch);
+                            qb.appendWhere(")");
+                        } else {
+                            Log.e(Constants.TAG, "Malformed search query!");
+                            qb.appendWhere(" AND 0");
                         }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                        break;
+                    }
+                    case KEY_RINGS_FIND_BY_EMAIL: {
+                        String emailIn = buildEmailInClause(uri.getLastPathSegment());
+                        if (emailIn != null) {
+                            // an uncorrelated subquery on the user_packets_by_email index
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                    + " WHERE tmp." + UserPackets.EMAIL + " " + emailIn
                                 + ")");
                         } else {
                             // TODO better way to do this?
@@ -449,7 +484,8 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
-            case KEY_RING_KEYS: {
+            case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(Keys.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -470,8 +506,19 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                } else {
+                    // key_rings/find/subkey/_/keys, a plain lookup in the keys_by_key_id index
+                    try {
+                        String subkey = Long.valueOf(uri.getPathSegments().get(3)).toString();
+                        qb.appendWhere(Keys.KEY_ID + " = " + subkey);
+                    } catch (NumberFormatException e) {
+                        Log.e(Constants.TAG, "Malformed find by subkey query!", e);
+                        qb.appendWhere("0");
+                    }
+                }
 
                 break;
             }
@@ -522,12 +569,54 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case USER_IDS_FIND_BY_EMAIL: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(UserPackets._ID, Tables.USER_PACKETS + ".oid AS _id");
+                projectionMap.put(UserPackets.MASTER_KEY_ID, Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID);
+                projectionMap.put(UserPackets.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
+                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                qb.setProjectionMap(projectionMap);
+
+                // the master key of each keyring, for its revocation and expiry
+                qb.setTables(Tables.USER_PACKETS
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
+                            + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = "
+                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                            + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
+                        + ")");
+                // a keyring may have several user ids with the same email
+                groupBy = Tables.USER_PACKETS + "." + UserPackets.EMAIL
+                        + ", " + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID;
+
+                String emailIn = buildEmailInClause(uri.getPathSegments().get(3));
+                if (emailIn != null) {
+                    qb.appendWhere(Tables.USER_PACKETS + "." + UserPackets.EMAIL + " " + emailIn);
+                } else {
+                    Log.e(Constants.TAG, "Malformed find by email query!");
+                    qb.appendWhere("0");
+                }
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.EMAIL + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
             case KEY_RINGS_PUBLIC:
             case KEY_RING_PUBLIC: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DIGEST, KeyRingData.KEY_RING_DIGEST);
+                projectionMap.put(KeyRingData.PACKET_DIGESTS, KeyRingData.PACKET_DIGESTS);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -692,11 +781,13 @@ public class KeychainProvider extends ContentProvider {
                 case KEY_RING_PUBLIC: {
                     db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    TrustedKeysCache.invalidate(keyId);
                     break;
                 }
                 case KEY_RING_SECRET: {
                     db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    TrustedKeysCache.invalidate();
                     break;
                 }
                 case KEY_RING_KEYS: {
@@ -704,6 +795,14 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Keys.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SEARCH: {
+                    keyId = values.getAsLong(KeyRingsSearch.MASTER_KEY_ID);
+                    ContentValues searchValues = new ContentValues(values);
+                    searchValues.remove(KeyRingsSearch.MASTER_KEY_ID);
+                    searchValues.put("docid", keyId);
+                    db.replaceOrThrow(Tables.KEY_RINGS_SEARCH, null, searchValues);
+                    break;
+                }
                 case KEY_RING_USER_IDS: {
                     // iff TYPE is null, user_id MUST be null as well
                     if (!(values.get(UserPacketsColumns.TYPE) == null
@@ -759,7 +858,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -784,6 +883,8 @@ public class KeychainProvider extends ContentProvider {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                db.delete(Tables.KEY_RINGS_SEARCH, null, null);
+                TrustedKeysCache.invalidate();
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -794,6 +895,12 @@ public class KeychainProvider extends ContentProvider {
                 }
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                // the fts table has no foreign keys, delete its row explicitly
+                if (count > 0) {
+                    db.delete(Tables.KEY_RINGS_SEARCH,
+                            "docid = " + Long.parseLong(uri.getPathSegments().get(1)), null);
+                }
+                TrustedKeysCache.invalidate(Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -804,6 +911,7 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                TrustedKeysCache.invalidate();
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -829,7 +937,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -859,8 +967,26 @@ public class KeychainProvider extends ContentProvider {
                         actualSelection += " AND (" + selection + ")";
                     }
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    TrustedKeysCache.invalidate();
                     break;
                 }
+                case KEY_RING_PUBLIC: {
+                    for (String column : values.keySet()) {
+                        if (!KeyRingData.KEY_RING_DIGEST.equals(column)
+                                && !KeyRingData.PACKET_DIGESTS.equals(column)) {
+                            throw new UnsupportedOperationException(
+                                    "Only digest columns may be updated!");
+                        }
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    // digests are not shown anywhere, so no need to notify
+                    return db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                }
                 case API_APPS_BY_PACKAGE_NAME: {
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -877,7 +1003,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -886,6 +1012,89 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in a single database transaction. Either all of them are
+     * applied, or none at all. Change notifications are sent once per uri after the
+     * transaction was committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> notifyUris = new HashSet<>();
+        mBatchNotifyUris.set(notifyUris);
+
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifyUris.remove();
+        }
+
+        for (Uri uri : notifyUris) {
+            KeyRingCache.onChangeNotification(uri);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> notifyUris = mBatchNotifyUris.get();
+        if (notifyUris != null) {
+            notifyUris.add(uri);
+            return;
+        }
+        // invalidate parsed keyrings right away, the observer is only notified asynchronously
+        KeyRingCache.onChangeNotification(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Builds an fts MATCH expression which requires every word of the query as a
+     * prefix, or returns null if there are no words. Hex ids may be given with 0x.
+     */
+    private static String buildSearchMatch(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            // quotes would end the phrase, everything else is split by the tokenizer
+            word = word.replace("\"", "");
+            if (word.startsWith("0x") || word.startsWith("0X")) {
+                word = word.substring(2);
+            }
+            // words without any letter or digit yield no tokens at all
+            if (!word.matches(".*[\\p{L}\\p{N}].*")) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append("*\"");
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Builds an "IN (...)" clause for the normalized form of comma separated emails, or
+     * returns null if there are none.
+     */
+    private static String buildEmailInClause(String emails) {
+        StringBuilder in = new StringBuilder();
+        for (String email : emails.split(",")) {
+            email = KeyRing.normalizeEmail(email);
+            if (email == null) {
+                continue;
+            }
+            in.append(in.length() == 0 ? "IN (" : ", ");
+            in.append(DatabaseUtils.sqlEscapeString(email));
+        }
+        return in.length() == 0 ? null : in.append(")").toString();
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
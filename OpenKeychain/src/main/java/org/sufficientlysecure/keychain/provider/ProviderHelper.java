@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -37,14 +38,19 @@ import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRingDigest;
 import org.sufficientlysecure.keychain.pgp.PgpConstants;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
@@ -57,6 +63,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
@@ -98,6 +105,8 @@ public class ProviderHelper {
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
     private int mIndent;
+    private boolean mParallelCanonicalize;
+    private OperationTimings mTimings = OperationTimings.DISABLED;
 
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
@@ -111,6 +120,8 @@ public class ProviderHelper {
         mContext = context;
         mContentResolver = context.getContentResolver();
         mLog = log;
+        KeyRingCache.registerObserver(context);
+        TrustedKeysCache.registerObserver(context);
         mIndent = indent;
     }
 
@@ -139,8 +150,35 @@ public class ProviderHelper {
         }
     }
 
+    /** Starts a new log, which drops the same entries as the previous one. */
     public void clearLog() {
-        mLog = new OperationLog();
+        mLog = mLog != null ? new OperationLog(mLog.getMinLevel()) : new OperationLog();
+    }
+
+    /** Starts a new log, which drops DEBUG and INFO entries below the given level. */
+    public void clearLog(LogLevel minLevel) {
+        mLog = new OperationLog(minLevel);
+    }
+
+    /**
+     * Verifies the self certificates of public keyrings in parallel while preparing them.
+     * This only pays off if keyrings are not already prepared on several threads.
+     */
+    public void setParallelCanonicalize(boolean parallel) {
+        mParallelCanonicalize = parallel;
+    }
+
+    public boolean isParallelCanonicalize() {
+        return mParallelCanonicalize;
+    }
+
+    /** Records the time spent merging, canonicalizing and writing keyrings in these timings. */
+    public void setTimings(OperationTimings timings) {
+        mTimings = timings != null ? timings : OperationTimings.DISABLED;
+    }
+
+    public OperationTimings getTimings() {
+        return mTimings;
     }
 
     // If we ever switch to api level 11, we can ditch this whole mess!
@@ -215,7 +253,25 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /**
+     * Returns the master keys of all keyrings with a secret key. The result is cached
+     * process-wide, and must not be modified.
+     *
+     * @see TrustedKeysCache
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = TrustedKeysCache.get();
+        if (trustedKeys != null) {
+            return trustedKeys;
+        }
+
+        int generation = TrustedKeysCache.getGeneration();
+        trustedKeys = loadTrustedMasterKeys();
+        TrustedKeysCache.put(trustedKeys, generation);
+        return trustedKeys;
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -247,9 +303,10 @@ public class ProviderHelper {
 
     }
 
+    /** Looks up the master key id for a subkey id, without building the unified keyring. */
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
-        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
-                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+        return (Long) getGenericData(Keys.buildKeysFindBySubkeyUri(subKeyId),
+                Keys.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
     }
 
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) {
@@ -261,22 +318,37 @@ public class ProviderHelper {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
+        CanonicalizedPublicKeyRing ring = KeyRingCache.getPublic(id);
+        if (ring != null) {
+            return ring;
+        }
+        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(
+                KeyRings.buildUnifiedKeyRingUri(id), false, KeyRingCache.getGeneration());
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
-        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(queryUri, false);
+        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(queryUri, false, null);
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), true);
+        CanonicalizedSecretKeyRing ring = KeyRingCache.getSecret(id);
+        if (ring != null) {
+            return ring;
+        }
+        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(
+                KeyRings.buildUnifiedKeyRingUri(id), true, KeyRingCache.getGeneration());
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
-        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(queryUri, true);
+        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(queryUri, true, null);
     }
 
-    private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+    /**
+     * @param cacheGeneration if not null, the parsed keyring is added to the KeyRingCache,
+     *                        unless it was invalidated since this generation
+     */
+    private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret, Integer cacheGeneration)
+            throws NotFoundException {
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
                         // we pick from cache only information that is not easily available from keyrings
@@ -294,9 +366,13 @@ public class ProviderHelper {
                 if (secret & !hasAnySecret) {
                     throw new NotFoundException("Secret key not available!");
                 }
-                return secret
+                CanonicalizedKeyRing ring = secret
                         ? new CanonicalizedSecretKeyRing(blob, true, verified)
                         : new CanonicalizedPublicKeyRing(blob, verified);
+                if (cacheGeneration != null) {
+                    KeyRingCache.put(ring, blob.length, cacheGeneration);
+                }
+                return ring;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -338,12 +414,30 @@ public class ProviderHelper {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
                                                Progressable progress, boolean selfCertsAreTrusted) {
 
-        // start with ok result
-        int result = SaveKeyringResult.SAVED_PUBLIC;
+        ArrayList<ContentProviderOperation> operations =
+                buildPublicKeyRingOperations(keyRing, progress, selfCertsAreTrusted);
+        if (operations == null) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        return applyPublicKeyRingOperations(keyRing.getMasterKeyId(), operations, progress);
+
+    }
+
+    /**
+     * Builds the database operations to insert a canonicalized public keyring, without
+     * touching the database other than for reading. This is the cpu-bound part of
+     * saveCanonicalizedPublicKeyRing, which includes verification of certificates made by
+     * our own secret keys.
+     *
+     * @return the list of operations, or null if there was an error
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<ContentProviderOperation> buildPublicKeyRingOperations(
+            CanonicalizedPublicKeyRing keyRing, Progressable progress, boolean selfCertsAreTrusted) {
 
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
@@ -362,10 +456,13 @@ public class ProviderHelper {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    byte[] encoded = keyRing.getEncoded();
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                    values.put(KeyRingData.KEY_RING_DIGEST, KeyRingDigest.digest(encoded));
+                    values.put(KeyRingData.PACKET_DIGESTS, KeyRingDigest.packetDigests(encoded));
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
-                    return SaveKeyringResult.RESULT_ERROR;
+                    return null;
                 }
 
                 Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
@@ -677,14 +774,30 @@ public class ProviderHelper {
                 }
             }
 
+            operations.add(buildSearchOperation(keyRing, uids));
+
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
+            return null;
         } finally {
             mIndent -= 1;
         }
 
+        return operations;
+
+    }
+
+    /**
+     * Writes a public keyring to the database, using operations previously obtained from
+     * buildPublicKeyRingOperations.
+     */
+    private int applyPublicKeyRingOperations(long masterKeyId,
+            ArrayList<ContentProviderOperation> operations, Progressable progress) {
+
+        // start with ok result
+        int result = SaveKeyringResult.SAVED_PUBLIC;
+
         try {
             // delete old version of this keyRing, which also deletes all keys and userIds on cascade
             int deleted = mContentResolver.delete(
@@ -698,7 +811,9 @@ public class ProviderHelper {
 
             log(LogType.MSG_IP_APPLY_BATCH);
             progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            long start = mTimings.start();
             mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            mTimings.end(Phase.DATABASE_WRITE, start);
 
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
@@ -855,6 +970,120 @@ public class ProviderHelper {
      * keep public and secret keyrings in sync.
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress) {
+        PreparedKeyRing prepared = preparePublicKeyRing(publicRing, progress);
+        return savePreparedKeyRing(prepared, progress);
+    }
+
+    /**
+     * Returns true if the stored public keyring with the same master key id is identical
+     * to this one, or contains all of its packets. Saving such a keyring cannot change the
+     * stored one, see KeyRingDigest.
+     */
+    private boolean isKnownPublicKeyRing(UncachedKeyRing publicRing) {
+        HashMap<String, Object> data;
+        try {
+            data = getGenericData(KeyRingData.buildPublicKeyRingUri(publicRing.getMasterKeyId()),
+                    new String[]{ KeyRingData.KEY_RING_DIGEST, KeyRingData.PACKET_DIGESTS },
+                    new int[]{ FIELD_TYPE_BLOB, FIELD_TYPE_BLOB });
+        } catch (NotFoundException e) {
+            return false;
+        }
+        byte[] knownDigest = (byte[]) data.get(KeyRingData.KEY_RING_DIGEST);
+        byte[] knownPacketDigests = (byte[]) data.get(KeyRingData.PACKET_DIGESTS);
+        if (knownDigest == null) {
+            // stored before digests were introduced, they are computed on first use
+            ContentValues digests = updateKeyRingDigests(publicRing.getMasterKeyId());
+            if (digests == null) {
+                return false;
+            }
+            knownDigest = digests.getAsByteArray(KeyRingData.KEY_RING_DIGEST);
+            knownPacketDigests = digests.getAsByteArray(KeyRingData.PACKET_DIGESTS);
+        }
+
+        byte[] encoded;
+        try {
+            encoded = publicRing.getEncoded();
+        } catch (IOException e) {
+            return false;
+        }
+        if (Arrays.equals(knownDigest, KeyRingDigest.digest(encoded))) {
+            return true;
+        }
+
+        byte[] packetDigests = KeyRingDigest.packetDigests(encoded);
+        return packetDigests != null && packetDigests.length > 0
+                && KeyRingDigest.containsAll(knownPacketDigests, packetDigests);
+    }
+
+    /**
+     * Computes and stores the digests of a stored public keyring which has none yet.
+     * Keyrings which are imported again unchanged are not written, so they would never
+     * get them otherwise.
+     *
+     * @return the stored digests, or null if the keyring could not be read
+     */
+    private ContentValues updateKeyRingDigests(long masterKeyId) {
+        Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
+        byte[] data;
+        try {
+            data = (byte[]) getGenericData(uri, KeyRingData.KEY_RING_DATA, FIELD_TYPE_BLOB);
+        } catch (NotFoundException e) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.KEY_RING_DIGEST, KeyRingDigest.digest(data));
+        values.put(KeyRingData.PACKET_DIGESTS, KeyRingDigest.packetDigests(data));
+        mContentResolver.update(uri, values, null, null);
+        return values;
+    }
+
+    /**
+     * A public keyring which has been merged with the data in the database and
+     * canonicalized, with all operations to save it built but not yet applied.
+     *
+     * @see #preparePublicKeyRing(UncachedKeyRing, Progressable)
+     */
+    public static class PreparedKeyRing {
+        final long mMasterKeyId;
+        final ArrayList<ContentProviderOperation> mOperations;
+        final CanonicalizedSecretKeyRing mSecretRing;
+        // if this is set, there is nothing left to write
+        final SaveKeyringResult mResult;
+        // the log this keyring was prepared with, which is continued on save
+        final OperationLog mLog;
+
+        PreparedKeyRing(long masterKeyId, ArrayList<ContentProviderOperation> operations,
+                        CanonicalizedSecretKeyRing secretRing, OperationLog log) {
+            mMasterKeyId = masterKeyId;
+            mOperations = operations;
+            mSecretRing = secretRing;
+            mResult = null;
+            mLog = log;
+        }
+
+        PreparedKeyRing(SaveKeyringResult result) {
+            mMasterKeyId = Constants.key.none;
+            mOperations = null;
+            mSecretRing = null;
+            mResult = result;
+            mLog = null;
+        }
+
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+
+    }
+
+    /**
+     * First half of savePublicKeyRing: merges the keyring with the data in the database,
+     * canonicalizes it and builds the operations to save it. This only reads from the
+     * database, and may be called concurrently from several threads, each using its own
+     * ProviderHelper. The result must be passed to savePreparedKeyRing of the same
+     * ProviderHelper, which performs the actual write.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing, Progressable progress) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -863,7 +1092,13 @@ public class ProviderHelper {
 
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
+            }
+
+            // Early breakout if there is nothing new, before any merging or verification
+            if (isKnownPublicKeyRing(publicRing)) {
+                log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null));
             }
 
             CanonicalizedPublicKeyRing canPublicRing;
@@ -874,32 +1109,40 @@ public class ProviderHelper {
 
                 // Merge data from new public ring into the old one
                 log(LogType.MSG_IP_MERGE_PUBLIC);
+                long start = mTimings.start();
                 publicRing = oldPublicRing.merge(publicRing, mLog, mIndent);
+                mTimings.end(Phase.MERGE, start);
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                long canonicalizeStart = mTimings.start();
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent,
+                        false, mParallelCanonicalize);
+                mTimings.end(Phase.CANONICALIZE, canonicalizeStart);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
                 // Early breakout if nothing changed
                 if (Arrays.hashCode(publicRing.getEncoded())
                         == Arrays.hashCode(oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null));
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                long canonicalizeStart = mTimings.start();
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent,
+                        false, mParallelCanonicalize);
+                mTimings.end(Phase.CANONICALIZE, canonicalizeStart);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
             }
@@ -914,12 +1157,12 @@ public class ProviderHelper {
                 log(LogType.MSG_IP_MERGE_SECRET);
                 secretRing = secretRing.merge(publicRing, mLog, mIndent);
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
                 // This has always been a secret key ring, this is a safe cast
                 canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
             } catch (NotFoundException e) {
@@ -927,28 +1170,205 @@ public class ProviderHelper {
                 canSecretRing = null;
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
-                }
+            ArrayList<ContentProviderOperation> operations =
+                    buildPublicKeyRingOperations(canPublicRing, progress, canSecretRing != null);
+            if (operations == null) {
+                return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
             }
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
+            return new PreparedKeyRing(publicRing.getMasterKeyId(), operations, canSecretRing, mLog);
 
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            return new PreparedKeyRing(new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
+        } finally {
+            mIndent -= 1;
+        }
+
+    }
+
+    /**
+     * Second half of savePublicKeyRing: writes a keyring obtained from preparePublicKeyRing
+     * to the database.
+     */
+    public SaveKeyringResult savePreparedKeyRing(PreparedKeyRing prepared, Progressable progress) {
+
+        if (prepared.mResult != null) {
+            return prepared.mResult;
+        }
+
+        mIndent += 1;
+        try {
+
+            int result = applyPublicKeyRingOperations(prepared.mMasterKeyId, prepared.mOperations, progress);
+            result = reinsertSecretKeyRing(prepared.mSecretRing, result, progress);
+
+            return new SaveKeyringResult(result, mLog, prepared.mSecretRing);
+
         } finally {
             mIndent -= 1;
         }
 
     }
 
+    /**
+     * Writes a number of keyrings obtained from preparePublicKeyRing to the database, all in
+     * a single transaction. The keyrings may have been prepared by different ProviderHelpers,
+     * but their master key ids must be distinct. Log entries for each keyring are added to
+     * the log it was prepared with.
+     * <p/>
+     * If the transaction fails, the keyrings are written one by one instead, so a single
+     * bad keyring does not take the rest of the batch down with it.
+     *
+     * @return a result for each keyring, in the same order
+     */
+    public List<SaveKeyringResult> savePreparedKeyRings(List<PreparedKeyRing> preparedRings,
+                                                        Progressable progress) {
+
+        int size = preparedRings.size();
+        ArrayList<SaveKeyringResult> results = new ArrayList<>(size);
+        if (size == 0) {
+            return results;
+        }
+
+        // one delete plus the prepared operations per keyring. remember where each
+        // keyring starts, so we can find the number of deleted rows later
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int[] deleteIndexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            PreparedKeyRing prepared = preparedRings.get(i);
+            if (prepared.mResult != null) {
+                continue;
+            }
+            deleteIndexes[i] = operations.size();
+            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+            operations.add(ContentProviderOperation.newDelete(
+                    KeyRingData.buildPublicKeyRingUri(prepared.mMasterKeyId)).build());
+            operations.addAll(prepared.mOperations);
+        }
+
+        ContentProviderResult[] batchResults = null;
+        if (!operations.isEmpty()) {
+            long start = mTimings.start();
+            try {
+                batchResults = mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Saving batch of " + size + " keyrings failed, saving one by one", e);
+            } finally {
+                mTimings.end(Phase.DATABASE_WRITE, start);
+            }
+        }
+
+        OperationLog log = mLog;
+        try {
+            for (int i = 0; i < size; i++) {
+                PreparedKeyRing prepared = preparedRings.get(i);
+                if (prepared.mResult != null) {
+                    results.add(prepared.mResult);
+                    continue;
+                }
+
+                mLog = prepared.mLog;
+                if (batchResults == null) {
+                    results.add(savePreparedKeyRing(prepared, new ProgressScaler()));
+                } else {
+                    results.add(logPreparedKeyRingBatch(prepared, batchResults[deleteIndexes[i]]));
+                }
+
+                progress.setProgress(i + 1, size);
+            }
+        } finally {
+            mLog = log;
+        }
+
+        return results;
+
+    }
+
+    /** Finishes a keyring which was written as part of a batch, see savePreparedKeyRings. */
+    private SaveKeyringResult logPreparedKeyRingBatch(PreparedKeyRing prepared,
+                                                      ContentProviderResult deleteResult) {
+        mIndent += 1;
+        try {
+            // start with ok result
+            int result = SaveKeyringResult.SAVED_PUBLIC;
+
+            if (deleteResult.count != null && deleteResult.count > 0) {
+                log(LogType.MSG_IP_DELETE_OLD_OK);
+                result |= SaveKeyringResult.UPDATED;
+            } else {
+                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            }
+            log(LogType.MSG_IP_APPLY_BATCH);
+            log(LogType.MSG_IP_SUCCESS);
+
+            result = reinsertSecretKeyRing(prepared.mSecretRing, result, new ProgressScaler());
+
+            return new SaveKeyringResult(result, mLog, prepared.mSecretRing);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    /** Saves the secret keyring of a freshly saved public keyring (if any). */
+    private int reinsertSecretKeyRing(CanonicalizedSecretKeyRing canSecretRing, int result,
+                                      Progressable progress) {
+        if (canSecretRing != null) {
+            progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+            int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+            if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                result |= SaveKeyringResult.SAVED_SECRET;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Saves a number of keyrings, committing up to batchSize public keyrings per database
+     * transaction. Secret keyrings are saved on their own. Each keyring is logged to a log
+     * of its own, which can be obtained from its result.
+     *
+     * @return a result for each keyring, in iteration order
+     */
+    public List<SaveKeyringResult> saveKeyRings(Iterator<UncachedKeyRing> keyRings, int batchSize) {
+
+        ArrayList<SaveKeyringResult> results = new ArrayList<>();
+        ArrayList<PreparedKeyRing> batch = new ArrayList<>(batchSize);
+        HashSet<Long> batchMasterKeyIds = new HashSet<>();
+
+        OperationLog log = mLog;
+        try {
+            while (keyRings.hasNext()) {
+                UncachedKeyRing keyRing = keyRings.next();
+                long masterKeyId = keyRing.getMasterKeyId();
+
+                // keyrings are merged with the database on prepare, so a keyring which is
+                // already part of the batch must be committed before preparing it again
+                if (batch.size() >= batchSize || keyRing.isSecret()
+                        || batchMasterKeyIds.contains(masterKeyId)) {
+                    results.addAll(savePreparedKeyRings(batch, new ProgressScaler()));
+                    batch.clear();
+                    batchMasterKeyIds.clear();
+                }
+
+                clearLog();
+                if (keyRing.isSecret()) {
+                    results.add(saveSecretKeyRing(keyRing, new ProgressScaler()));
+                } else {
+                    batch.add(preparePublicKeyRing(keyRing, new ProgressScaler()));
+                    batchMasterKeyIds.add(masterKeyId);
+                }
+            }
+
+            results.addAll(savePreparedKeyRings(batch, new ProgressScaler()));
+        } finally {
+            mLog = log;
+        }
+
+        return results;
+
+    }
+
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
         try {
@@ -1201,6 +1621,7 @@ public class ProviderHelper {
         }
 
         log.add(LogType.MSG_CON_CRITICAL_IN, indent);
+        Preferences.getPreferences(mContext).setConsolidateResumePoint(-1);
         Preferences.getPreferences(mContext).setCachedConsolidate(true);
 
         return consolidateDatabaseStep2(log, indent, progress, false);
@@ -1213,6 +1634,9 @@ public class ProviderHelper {
 
     private static boolean mConsolidateCritical = false;
 
+    // number of public keyrings reimported per transaction during consolidation
+    private static final int CONSOLIDATE_BATCH_SIZE = 100;
+
     @NonNull
     private ConsolidateResult consolidateDatabaseStep2(
             OperationLog log, int indent, Progressable progress, boolean recovery) {
@@ -1238,70 +1662,120 @@ public class ProviderHelper {
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             }
 
-            // 2. wipe database (IT'S DANGEROUS)
-            log.add(LogType.MSG_CON_DB_CLEAR, indent);
-            mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            // if we crashed during reimport before, the database holds the first resumePoint
+            // public keyrings of the cache. committing a batch of public keyrings deletes
+            // their secret keyrings until they are reinserted, so those may be missing.
+            int resumePoint = prefs.getConsolidateResumePoint();
 
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
+            ParcelableFileCache.CacheReader<ParcelableKeyRing> readerPublics = null;
+            cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
 
-            // Set flag that we have a cached consolidation here
-            try {
-                cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
-                IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
-                int numSecrets = itSecrets.getSize();
+            if (resumePoint < 0) {
+                // 2. wipe database (IT'S DANGEROUS)
+                log.add(LogType.MSG_CON_DB_CLEAR, indent);
+                mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            }
 
-                log.add(LogType.MSG_CON_REIMPORT_SECRET, indent, numSecrets);
-                indent += 1;
+            // nothing was committed after the secret keyrings if we stopped at 0, otherwise
+            // (re-)import all of them. importing a keyring twice merges it, so this is safe
+            if (resumePoint != 0) {
+                try {
+                    IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
+                    int numSecrets = itSecrets.getSize();
 
-                // 3. Re-Import secret keyrings from cache
-                if (numSecrets > 0) {
+                    log.add(LogType.MSG_CON_REIMPORT_SECRET, indent, numSecrets);
+                    indent += 1;
 
-                    ImportKeyResult result = new ImportOperation(mContext, this,
-                            new ProgressFixedScaler(progress, 10, 25, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itSecrets, numSecrets, null, null);
-                    log.add(result, indent);
-                } else {
-                    log.add(LogType.MSG_CON_REIMPORT_SECRET_SKIP, indent);
+                    // 3. Re-Import secret keyrings from cache
+                    if (numSecrets > 0) {
+
+                        ImportKeyResult result = new ImportOperation(mContext, this,
+                                new ProgressFixedScaler(progress, 10, 25, 100, R.string.progress_con_reimport))
+                                .serialKeyRingImport(itSecrets, numSecrets, null, null);
+                        log.add(result, indent);
+                    } else {
+                        log.add(LogType.MSG_CON_REIMPORT_SECRET_SKIP, indent);
+                    }
+
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error importing secret", e);
+                    log.add(LogType.MSG_CON_ERROR_SECRET, indent);
+                    return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+                } finally {
+                    indent -= 1;
                 }
+            }
 
-            } catch (IOException e) {
-                Log.e(Constants.TAG, "error importing secret", e);
-                log.add(LogType.MSG_CON_ERROR_SECRET, indent);
-                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
-            } finally {
-                indent -= 1;
+            if (resumePoint < 0) {
+                resumePoint = 0;
+                prefs.setConsolidateResumePoint(resumePoint);
             }
 
             try {
 
                 cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
-                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache();
-                int numPublics = itPublics.getSize();
+                // keep the file until we are done, it is needed to resume after a crash
+                readerPublics = cachePublic.openCache();
+                int numPublics = readerPublics.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_PUBLIC, indent, numPublics);
                 indent += 1;
 
-                // 4. Re-Import public keyrings from cache
+                // 4. Re-Import public keyrings from cache, CONSOLIDATE_BATCH_SIZE per transaction
                 if (numPublics > 0) {
+                    if (resumePoint > 0) {
+                        log.add(LogType.MSG_CON_REIMPORT_PUBLIC_RESUME, indent, resumePoint);
+                    }
 
-                    ImportKeyResult result = new ImportOperation(mContext, this,
-                            new ProgressFixedScaler(progress, 25, 99, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itPublics, numPublics, null, null);
-                    log.add(result, indent);
+                    Progressable reimportProgress =
+                            new ProgressFixedScaler(progress, 25, 99, 100, R.string.progress_con_reimport);
+
+                    // skip the keyrings saved before the crash without reading them
+                    int position = Math.min(resumePoint, numPublics);
+                    Iterator<ParcelableKeyRing> itPublics =
+                            readerPublics.iterator(position, numPublics);
+                    ArrayList<UncachedKeyRing> batch = new ArrayList<>(CONSOLIDATE_BATCH_SIZE);
+                    while (itPublics.hasNext()) {
+                        ParcelableKeyRing entry = itPublics.next();
+                        position += 1;
+
+                        try {
+                            batch.add(UncachedKeyRing.decodeFromData(entry.mBytes));
+                        } catch (IOException | PgpGeneralException e) {
+                            Log.e(Constants.TAG, "Encountered bad key on consolidate!", e);
+                        }
+
+                        if (batch.size() >= CONSOLIDATE_BATCH_SIZE || !itPublics.hasNext()) {
+                            for (SaveKeyringResult result
+                                    : saveKeyRings(batch.iterator(), CONSOLIDATE_BATCH_SIZE)) {
+                                log.add(result, indent);
+                            }
+                            batch.clear();
+
+                            // everything up to here is committed, no need to redo it after a crash
+                            prefs.setConsolidateResumePoint(position);
+                            reimportProgress.setProgress(position, numPublics);
+                        }
+                    }
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_PUBLIC_SKIP, indent);
                 }
 
-            } catch (IOException e) {
+            } catch (IOException | ParcelableFileCache.CacheReadException e) {
                 Log.e(Constants.TAG, "error importing public", e);
                 log.add(LogType.MSG_CON_ERROR_PUBLIC, indent);
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             } finally {
                 indent -= 1;
+                if (readerPublics != null) {
+                    readerPublics.close();
+                }
             }
 
             log.add(LogType.MSG_CON_CRITICAL_OUT, indent);
-            Preferences.getPreferences(mContext).setCachedConsolidate(false);
+            prefs.setCachedConsolidate(false);
+            prefs.setConsolidateResumePoint(-1);
 
             // 5. Delete caches
             try {
@@ -1368,6 +1842,7 @@ public class ProviderHelper {
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
         values.put(UserPackets.USER_ID, item.userId);
+        values.put(UserPackets.EMAIL, KeyRing.getNormalizedEmail(item.userId));
         values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
         values.put(UserPackets.IS_PRIMARY, item.isPrimary);
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
@@ -1378,6 +1853,33 @@ public class ProviderHelper {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
+    /**
+     * Build ContentProviderOperation to add a keyring to the search table
+     */
+    private ContentProviderOperation
+    buildSearchOperation(CanonicalizedPublicKeyRing keyRing, List<UserPacketItem> uids) {
+        ArrayList<String> userIds = new ArrayList<>();
+        for (UserPacketItem item : uids) {
+            if (item.userId != null) {
+                userIds.add(item.userId);
+            }
+        }
+        ArrayList<Long> keyIds = new ArrayList<>();
+        ArrayList<byte[]> fingerprints = new ArrayList<>();
+        for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
+            keyIds.add(key.getKeyId());
+            fingerprints.add(key.getFingerprint());
+        }
+
+        ContentValues values =
+                KeychainDatabase.buildKeyRingSearchValues(userIds, keyIds, fingerprints);
+        values.put(KeyRingsSearch.MASTER_KEY_ID, keyRing.getMasterKeyId());
+
+        Uri uri = KeyRingsSearch.buildKeyRingSearchUri(keyRing.getMasterKeyId());
+
+        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    }
+
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
         UncachedKeyRing keyRing = UncachedKeyRing.decodeFromData(data);
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+
+/**
+ * Process-wide cache of the trusted certifiers, ie. the master keys of all
+ * keyrings we have a secret key for. These are needed to verify certificates
+ * on every saved public keyring, but change very rarely.
+ * <p/>
+ * In the process of KeychainProvider, the cached set is invalidated directly
+ * whenever a secret keyring is inserted or deleted, whenever the has_secret
+ * state of keys changes, and whenever the public keyring of a trusted key is
+ * replaced. Other processes, eg. :remote_api, observe the change notifications
+ * of all keyrings instead. These don't tell which change was made, so every
+ * notification invalidates the entire set there, and they are delivered
+ * asynchronously.
+ * <p/>
+ * The published array is never modified, callers must not modify it either.
+ */
+class TrustedKeysCache {
+
+    private static LongSparseArray<CanonicalizedPublicKey> sTrustedKeys;
+    // incremented on every invalidation, so that a load which raced with an
+    // invalidation is not published
+    private static int sGeneration = 0;
+    private static boolean sObserverRegistered = false;
+    // set if KeychainProvider runs in this process, and invalidates the cache itself
+    private static boolean sProviderProcess = false;
+
+    private TrustedKeysCache() {
+    }
+
+    /** Called by KeychainProvider, notifications need not be observed in its process. */
+    static synchronized void setProviderProcess() {
+        sProviderProcess = true;
+    }
+
+    /** Makes sure this process learns about changes made by other processes. */
+    static synchronized void registerObserver(Context context) {
+        if (sObserverRegistered) {
+            return;
+        }
+        sObserverRegistered = true;
+
+        // a null handler delivers notifications on the binder thread, which is fine here
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                KeychainContract.KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChangeNotification();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onChangeNotification();
+                    }
+                });
+    }
+
+    static synchronized void onChangeNotification() {
+        if (!sProviderProcess) {
+            invalidate();
+        }
+    }
+
+    static synchronized LongSparseArray<CanonicalizedPublicKey> get() {
+        return sTrustedKeys;
+    }
+
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Publishes a freshly loaded set of trusted keys, unless the cache was
+     * invalidated since the load started at the given generation.
+     */
+    static synchronized void put(LongSparseArray<CanonicalizedPublicKey> trustedKeys,
+                                 int generation) {
+        if (generation == sGeneration) {
+            sTrustedKeys = trustedKeys;
+        }
+    }
+
+    static synchronized void invalidate() {
+        sGeneration += 1;
+        sTrustedKeys = null;
+    }
+
+    /** Invalidates the cache only if the given master key is one of the trusted keys. */
+    static synchronized void invalidate(long masterKeyId) {
+        if (sTrustedKeys != null && sTrustedKeys.indexOfKey(masterKeyId) < 0) {
+            return;
+        }
+        invalidate();
+    }
+
+}
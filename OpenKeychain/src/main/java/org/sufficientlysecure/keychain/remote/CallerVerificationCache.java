@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+
+/**
+ * Remembers which calling uids passed the check in RemoteService, ie. are
+ * registered api apps whose package certificate matches the one in the
+ * database. Without this, every api call costs a query for the registered
+ * apps, a PackageManager lookup of all signatures and a query for the stored
+ * certificate.
+ * <p/>
+ * Entries are keyed by uid, and hold the package that was verified for it.
+ * Only successful checks are cached. The cache is dropped whenever the
+ * api_apps table changes, and the entries of a package when it is replaced
+ * or removed, since its uid may then be reused or its certificate changed.
+ * <p/>
+ * Hit and miss counts, along with the time spent on checks of each kind, are
+ * kept to compare the cost of cached and uncached checks.
+ */
+class CallerVerificationCache {
+
+    private static CallerVerificationCache sInstance;
+
+    private final SparseArray<String> mVerifiedPackages = new SparseArray<>();
+    // incremented on every invalidation, so that a check which raced with an
+    // invalidation is not cached
+    private int mGeneration = 0;
+
+    private long mHits, mMisses, mHitNanos, mMissNanos;
+
+    static synchronized CallerVerificationCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallerVerificationCache();
+            sInstance.registerListeners(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CallerVerificationCache() {
+    }
+
+    private void registerListeners(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null) {
+                    invalidate();
+                    return;
+                }
+                invalidate(data.getSchemeSpecificPart());
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(receiver, filter);
+
+        // a null handler delivers notifications on the binder thread, which is fine here
+        context.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /** Returns the package verified for this uid, or null if there is none. */
+    synchronized String get(int uid) {
+        return mVerifiedPackages.get(uid);
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Caches a successful check, unless the cache was invalidated since it started. */
+    synchronized void put(int uid, String packageName, int generation) {
+        if (generation == mGeneration) {
+            mVerifiedPackages.put(uid, packageName);
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration += 1;
+        mVerifiedPackages.clear();
+    }
+
+    synchronized void invalidate(String packageName) {
+        mGeneration += 1;
+        for (int i = mVerifiedPackages.size() - 1; i >= 0; i--) {
+            if (mVerifiedPackages.valueAt(i).equals(packageName)) {
+                mVerifiedPackages.removeAt(i);
+            }
+        }
+    }
+
+    synchronized void addTiming(boolean hit, long nanos) {
+        if (hit) {
+            mHits += 1;
+            mHitNanos += nanos;
+        } else {
+            mMisses += 1;
+            mMissNanos += nanos;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "caller checks: " + mHits + " cached"
+                + (mHits > 0 ? " (avg " + (mHitNanos / mHits / 1000) + "us)" : "")
+                + ", " + mMisses + " uncached"
+                + (mMisses > 0 ? " (avg " + (mMissNanos / mMisses / 1000) + "us)" : "");
+    }
+
+}
@@ -36,6 +36,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpConstants;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -45,6 +46,7 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.ui.RemoteServiceActivity;
@@ -65,13 +67,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class OpenPgpService extends RemoteService {
 
     static final String[] EMAIL_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
+            UserPackets.EMAIL,
+            UserPackets.MASTER_KEY_ID,
             KeyRings.IS_EXPIRED,
             KeyRings.IS_REVOKED,
     };
@@ -80,6 +83,33 @@ public class OpenPgpService extends RemoteService {
     static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
             + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
 
+    /**
+     * Looks up the master key ids for all emails in a single query, by normalized email.
+     */
+    private HashMap<String, ArrayList<Long>> findKeyIdsByEmails(String[] emails) {
+        HashMap<String, ArrayList<Long>> result = new HashMap<>();
+
+        Uri uri = UserPackets.buildUserIdsFindByEmailUri(TextUtils.join(",", emails));
+        Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String email = cursor.getString(0);
+                ArrayList<Long> ids = result.get(email);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    result.put(email, ids);
+                }
+                ids.add(cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Search database for key ids based on emails.
      */
@@ -92,34 +122,26 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
+            HashMap<String, ArrayList<Long>> keyIdsByEmail = findKeyIdsByEmails(encryptionUserIds);
             for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                String normalizedEmail = KeyRing.normalizeEmail(email);
+                ArrayList<Long> ids = normalizedEmail != null ? keyIdsByEmail.get(normalizedEmail) : null;
+                // result should be one entry containing the key id
+                if (ids != null) {
+                    keyIds.add(ids.get(0));
+                } else {
+                    missingUserIdsCheck = true;
+                    missingEmails.add(email);
+                    Log.d(Constants.TAG, "user id missing");
+                }
+                // another entry for this email -> two keys with the same email inside user id
+                if (ids != null && ids.size() > 1) {
+                    duplicateUserIdsCheck = true;
+                    duplicateEmails.add(email);
+
+                    // also pre-select
+                    keyIds.add(ids.get(1));
+                    Log.d(Constants.TAG, "more than one user id with the same email");
                 }
             }
         }
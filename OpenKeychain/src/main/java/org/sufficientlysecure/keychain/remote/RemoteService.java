@@ -58,6 +58,7 @@ public abstract class RemoteService extends Service {
 
     Context mContext;
     ProviderHelper mProviderHelper;
+    CallerVerificationCache mCallerCache;
 
     public Context getContext() {
         return mContext;
@@ -156,6 +157,12 @@ public abstract class RemoteService extends Service {
      * @return package name
      */
     protected String getCurrentCallingPackage() {
+        // a uid which passed isAllowed has exactly this package
+        String verifiedPkg = mCallerCache.get(Binder.getCallingUid());
+        if (verifiedPkg != null) {
+            return verifiedPkg;
+        }
+
         String[] callingPackages = getPackageManager().getPackagesForUid(Binder.getCallingUid());
 
         // NOTE: No support for sharedUserIds
@@ -215,17 +222,34 @@ public abstract class RemoteService extends Service {
      * @throws WrongPackageCertificateException
      */
     private boolean isCallerAllowed() throws WrongPackageCertificateException {
-        return isUidAllowed(Binder.getCallingUid());
+        int uid = Binder.getCallingUid();
+        long start = System.nanoTime();
+
+        if (mCallerCache.get(uid) != null) {
+            mCallerCache.addTiming(true, System.nanoTime() - start);
+            return true;
+        }
+
+        try {
+            return isUidAllowed(uid);
+        } finally {
+            mCallerCache.addTiming(false, System.nanoTime() - start);
+            if (Constants.DEBUG) {
+                Log.d(Constants.TAG, mCallerCache.toString());
+            }
+        }
     }
 
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
+        int generation = mCallerCache.getGeneration();
         String[] callingPackages = getPackageManager().getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mCallerCache.put(uid, currentPkg, generation);
                 return true;
             }
         }
@@ -278,6 +302,7 @@ public abstract class RemoteService extends Service {
         super.onCreate();
         mContext = this;
         mProviderHelper = new ProviderHelper(this);
+        mCallerCache = CallerVerificationCache.getInstance(this);
     }
 
 }
@@ -31,6 +31,8 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.BaseOperation;
 import org.sufficientlysecure.keychain.operations.CertifyOperation;
 import org.sufficientlysecure.keychain.operations.ConsolidateOperation;
+import org.sufficientlysecure.keychain.operations.DecryptBatchOperation;
+import org.sufficientlysecure.keychain.operations.DecryptBatchOperation.PartialResultListener;
 import org.sufficientlysecure.keychain.operations.DeleteOperation;
 import org.sufficientlysecure.keychain.operations.EditKeyOperation;
 import org.sufficientlysecure.keychain.operations.ExportOperation;
@@ -39,8 +41,10 @@ import org.sufficientlysecure.keychain.operations.KeybaseVerificationOperation;
 import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyBatchInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
@@ -112,6 +116,14 @@ public class KeychainService extends Service implements Progressable {
                             outerThis, mActionCanceled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
                     op = new PgpDecryptVerify(outerThis, new ProviderHelper(outerThis), outerThis);
+                } else if (inputParcel instanceof PgpDecryptVerifyBatchInputParcel) {
+                    op = new DecryptBatchOperation(outerThis, new ProviderHelper(outerThis),
+                            outerThis, mActionCanceled, new PartialResultListener() {
+                        @Override
+                        public void onPartialResult(int index, DecryptVerifyResult result) {
+                            sendMessageToHandler(MessageStatus.PARTIAL_RESULT, index, result);
+                        }
+                    });
                 } else if (inputParcel instanceof SaveKeyringParcel) {
                     op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis,
                             mActionCanceled);
@@ -176,13 +188,17 @@ public class KeychainService extends Service implements Progressable {
     }
 
     private void sendMessageToHandler(MessageStatus status, OperationResult data) {
+        sendMessageToHandler(status, null, data);
+    }
+
+    private void sendMessageToHandler(MessageStatus status, Integer arg2, OperationResult data) {
         Bundle bundle = new Bundle();
         bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
-        sendMessageToHandler(status, null, bundle);
+        sendMessageToHandler(status, arg2, bundle);
     }
 
     private void sendMessageToHandler(MessageStatus status) {
-        sendMessageToHandler(status, null, null);
+        sendMessageToHandler(status, null, (Bundle) null);
     }
 
     /**
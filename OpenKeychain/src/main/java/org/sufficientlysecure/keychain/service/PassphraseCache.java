@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/**
+ * In-process mirror of the passphrases held by PassphraseCacheService.
+ *
+ * The PassphraseCacheService runs in its own process, so every lookup through
+ * it costs a HandlerThread and an IPC round-trip. This class keeps a copy of
+ * each passphrase that was returned by (or added to) the service in the
+ * current process, so that repeated lookups can be answered synchronously.
+ * Only passphrases which are actually cached in the service are mirrored, not
+ * those it derives from the key type such as empty passphrases or the default
+ * PIN, since the service never times out or clears those.
+ *
+ * Entries are keyed by subkey id, and expire no later than their counterpart
+ * in the service: the ttl of an entry starts when it is mirrored, which is
+ * always after the service reset its own alarm. A hit on an entry which is
+ * older than half its ttl refreshes the entry in the service, so that a key
+ * in continuous use stays cached just as it would with the IPC path.
+ *
+ * Lookups are lock-free: the entries live in an immutable snapshot which is
+ * replaced on every write. Since writes happen at most once per ttl and key,
+ * the cost of copying is negligible. Only the copy of a found passphrase is
+ * made under the lock, since removed passphrases are wiped.
+ *
+ * Invalidation from other processes happens via broadcasts. The alarm
+ * broadcast of the service times out entries here as well, and the service
+ * sends BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE whenever passphrases are
+ * cleared or replaced.
+ *
+ * The UnlockedKeyCache of the process follows this cache: it uses the same ttl
+ * for each key, and unlocked keys are dropped along with their passphrases.
+ */
+public class PassphraseCache {
+
+    private static PassphraseCache sInstance;
+
+    private volatile LongSparseArray<CachedEntry> mEntries = new LongSparseArray<>();
+
+    public static synchronized PassphraseCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PassphraseCache();
+            sInstance.registerReceiver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    PassphraseCache() {
+    }
+
+    private void registerReceiver(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.hasExtra(PassphraseCacheService.EXTRA_KEY_ID)) {
+                    clear();
+                    return;
+                }
+                remove(intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, 0L));
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE);
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Returns a copy of the cached passphrase for this subkey, or null if it
+     * is not cached in this process or has expired.
+     */
+    public Passphrase get(long masterKeyId, long subKeyId) {
+        CachedEntry entry = mEntries.get(subKeyId);
+        if (entry == null || entry.mMasterKeyId != masterKeyId) {
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now >= entry.mExpiry) {
+            remove(subKeyId);
+            return null;
+        }
+
+        synchronized (this) {
+            // remove() wipes the passphrase of removed entries, copy it only while still cached
+            if (mEntries.get(subKeyId) != entry) {
+                return null;
+            }
+            return new Passphrase(entry.mPassphrase.getCharArray().clone());
+        }
+    }
+
+    /**
+     * Returns true if the entry for this subkey is old enough that it should be
+     * refreshed in the PassphraseCacheService.
+     */
+    public boolean needsRefresh(long subKeyId) {
+        CachedEntry entry = mEntries.get(subKeyId);
+        return entry != null && SystemClock.elapsedRealtime() >= entry.mRefreshAfter;
+    }
+
+    /**
+     * Caches a copy of the given passphrase for ttl seconds.
+     */
+    public void put(long masterKeyId, long subKeyId, Passphrase passphrase, long ttl) {
+        if (passphrase == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        CachedEntry entry = new CachedEntry(masterKeyId,
+                new Passphrase(passphrase.getCharArray().clone()),
+                now + ttl * 1000, now + ttl * 500);
+
+        UnlockedKeyCache.getInstance().setTtl(masterKeyId, subKeyId, ttl);
+
+        synchronized (this) {
+            LongSparseArray<CachedEntry> entries = mEntries.clone();
+            CachedEntry old = entries.get(subKeyId);
+            entries.put(subKeyId, entry);
+            mEntries = entries;
+            if (old != null) {
+                old.mPassphrase.removeFromMemory();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries for the given key id, which may be either a master
+     * key id or a subkey id.
+     */
+    public synchronized void remove(long keyId) {
+        UnlockedKeyCache.getInstance().remove(keyId);
+
+        LongSparseArray<CachedEntry> entries = mEntries.clone();
+        boolean changed = false;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            CachedEntry entry = entries.valueAt(i);
+            if (entries.keyAt(i) == keyId || entry.mMasterKeyId == keyId) {
+                entry.mPassphrase.removeFromMemory();
+                entries.removeAt(i);
+                changed = true;
+            }
+        }
+        if (changed) {
+            // size() compacts the array, published snapshots must never be modified again
+            entries.size();
+            mEntries = entries;
+            Log.d(Constants.TAG, "PassphraseCache: removed keyId " + keyId + " from memory");
+        }
+    }
+
+    public synchronized void clear() {
+        UnlockedKeyCache.getInstance().clear();
+
+        LongSparseArray<CachedEntry> entries = mEntries;
+        mEntries = new LongSparseArray<>();
+        for (int i = 0; i < entries.size(); i++) {
+            entries.valueAt(i).mPassphrase.removeFromMemory();
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private static class CachedEntry {
+        final long mMasterKeyId;
+        final Passphrase mPassphrase;
+        final long mExpiry;
+        final long mRefreshAfter;
+
+        CachedEntry(long masterKeyId, Passphrase passphrase, long expiry, long refreshAfter) {
+            mMasterKeyId = masterKeyId;
+            mPassphrase = passphrase;
+            mExpiry = expiry;
+            mRefreshAfter = refreshAfter;
+        }
+    }
+
+}
@@ -79,6 +79,10 @@ import org.sufficientlysecure.keychain.util.Preferences;
  * rare occurrence, and caching by keyring is what the user expects in the vast majority of
  * cases, this is not the default behavior.
  *
+ * Every process additionally keeps a PassphraseCache which mirrors the passphrases it has
+ * retrieved from or added to this service. Lookups are answered from there if possible, only
+ * misses go through the Intent/Messenger round-trip to this service.
+ *
  */
 public class PassphraseCacheService extends Service {
 
@@ -91,6 +95,8 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_INVALIDATE";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -98,6 +104,7 @@ public class PassphraseCacheService extends Service {
     public static final String EXTRA_PASSPHRASE = "passphrase";
     public static final String EXTRA_MESSENGER = "messenger";
     public static final String EXTRA_USER_ID = "user_id";
+    private static final String EXTRA_CACHED = "cached";
 
     private static final long DEFAULT_TTL = 15;
 
@@ -131,10 +138,13 @@ public class PassphraseCacheService extends Service {
                                            String primaryUserId) {
         Log.d(Constants.TAG, "PassphraseCacheService.addCachedPassphrase() for " + masterKeyId);
 
+        long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+        PassphraseCache.getInstance(context).put(masterKeyId, subKeyId, passphrase, ttl);
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
 
-        intent.putExtra(EXTRA_TTL, Preferences.getPreferences(context).getPassphraseCacheTtl());
+        intent.putExtra(EXTRA_TTL, ttl);
         intent.putExtra(EXTRA_PASSPHRASE, passphrase);
         intent.putExtra(EXTRA_KEY_ID, masterKeyId);
         intent.putExtra(EXTRA_SUBKEY_ID, subKeyId);
@@ -146,6 +156,10 @@ public class PassphraseCacheService extends Service {
     public static void clearCachedPassphrase(Context context, long masterKeyId, long subKeyId) {
         Log.d(Constants.TAG, "PassphraseCacheService.clearCachedPassphrase() for " + masterKeyId);
 
+        PassphraseCache localCache = PassphraseCache.getInstance(context);
+        localCache.remove(masterKeyId);
+        localCache.remove(subKeyId);
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_CLEAR);
 
@@ -158,6 +172,8 @@ public class PassphraseCacheService extends Service {
     public static void clearCachedPassphrases(Context context) {
         Log.d(Constants.TAG, "PassphraseCacheService.clearCachedPassphrase()");
 
+        PassphraseCache.getInstance(context).clear();
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_CLEAR);
 
@@ -165,7 +181,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
+     * Gets a cached passphrase from memory. If the passphrase is not mirrored in the
+     * PassphraseCache of the calling process, an intent is sent to the service. This method is
      * designed to wait until the service returns the passphrase.
      *
      * @return passphrase or null (if no passphrase is cached for this keyId)
@@ -174,6 +191,25 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        PassphraseCache localCache = PassphraseCache.getInstance(context);
+        Passphrase localPassphrase = localCache.get(masterKeyId, subKeyId);
+        if (localPassphrase != null) {
+            // keep the entry alive in the service while it is in use, like the service does itself
+            if (localCache.needsRefresh(subKeyId)) {
+                addCachedPassphrase(context, masterKeyId, subKeyId, localPassphrase, null);
+            }
+            return localPassphrase;
+        }
+
+        return getCachedPassphraseFromService(context, masterKeyId, subKeyId);
+    }
+
+    /**
+     * Gets a cached passphrase by sending an intent to the service, and waits until the service
+     * returns it. Passphrases the service has cached are mirrored in the PassphraseCache.
+     */
+    private static Passphrase getCachedPassphraseFromService(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -219,7 +255,12 @@ public class PassphraseCacheService extends Service {
             case MSG_PASSPHRASE_CACHE_GET_OKAY:
                 Bundle returnData = returnMessage.getData();
                 returnData.setClassLoader(context.getClassLoader());
-                return returnData.getParcelable(EXTRA_PASSPHRASE);
+                Passphrase passphrase = returnData.getParcelable(EXTRA_PASSPHRASE);
+                if (passphrase != null && returnData.getBoolean(EXTRA_CACHED)) {
+                    long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+                    PassphraseCache.getInstance(context).put(masterKeyId, subKeyId, passphrase, ttl);
+                }
+                return passphrase;
             case MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND:
                 throw new KeyNotFoundException();
             default:
@@ -229,9 +270,11 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Internal implementation to get cached passphrase.
+     * Internal implementation to get cached passphrase. Sets EXTRA_CACHED in returnData if the
+     * passphrase was taken from the cache, rather than derived from the type of key.
      */
-    private Passphrase getCachedPassphraseImpl(long masterKeyId, long subKeyId) throws ProviderHelper.NotFoundException {
+    private Passphrase getCachedPassphraseImpl(long masterKeyId, long subKeyId, Bundle returnData)
+            throws ProviderHelper.NotFoundException {
         // on "none" key, just do nothing
         if (masterKeyId == Constants.key.none) {
             return null;
@@ -246,6 +289,7 @@ public class PassphraseCacheService extends Service {
             }
             addCachedPassphrase(this, Constants.key.symmetric, Constants.key.symmetric,
                     cachedPassphrase.getPassphrase(), getString(R.string.passp_cache_notif_pwd));
+            returnData.putBoolean(EXTRA_CACHED, true);
             return cachedPassphrase.getPassphrase();
         }
 
@@ -304,6 +348,7 @@ public class PassphraseCacheService extends Service {
         // set it again to reset the cache life cycle
         Log.d(Constants.TAG, "PassphraseCacheService: Cache passphrase again when getting it!");
         addCachedPassphrase(this, masterKeyId, subKeyId, cachedPassphrase.getPassphrase(), cachedPassphrase.getPrimaryUserID());
+        returnData.putBoolean(EXTRA_CACHED, true);
         return cachedPassphrase.getPassphrase();
     }
 
@@ -345,6 +390,19 @@ public class PassphraseCacheService extends Service {
                 PendingIntent.FLAG_CANCEL_CURRENT);
     }
 
+    /**
+     * Tell the PassphraseCache of all processes to drop their copies of a passphrase, or of all
+     * passphrases if referenceKeyId is null.
+     */
+    private void sendInvalidateBroadcast(Long referenceKeyId) {
+        Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE);
+        intent.setPackage(getPackageName());
+        if (referenceKeyId != null) {
+            intent.putExtra(EXTRA_KEY_ID, (long) referenceKeyId);
+        }
+        sendBroadcast(intent);
+    }
+
     /**
      * Executed when service is started by intent
      */
@@ -379,6 +437,19 @@ public class PassphraseCacheService extends Service {
                 // just add master key id to the cache, otherwise, add this specific subkey to the cache
                 long referenceKeyId =
                         Preferences.getPreferences(mContext).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
+
+                CachedPassphrase oldPassphrase = mPassphraseCache.get(referenceKeyId);
+                if (oldPassphrase != null) {
+                    // refreshes from a PassphraseCache don't know the user id
+                    if (primaryUserID == null) {
+                        primaryUserID = oldPassphrase.getPrimaryUserID();
+                    }
+                    // mirrors of a replaced passphrase in other processes are stale now
+                    if (!oldPassphrase.getPassphrase().equals(passphrase)) {
+                        sendInvalidateBroadcast(referenceKeyId);
+                    }
+                }
+
                 mPassphraseCache.put(referenceKeyId, new CachedPassphrase(passphrase, primaryUserID));
                 if (ttl > 0) {
                     // register new alarm with keyId for this passphrase
@@ -400,9 +471,9 @@ public class PassphraseCacheService extends Service {
                         Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
                         msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                     } else {
-                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         Bundle bundle = new Bundle();
+                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId, bundle);
+                        msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
                         msg.setData(bundle);
                     }
@@ -432,6 +503,7 @@ public class PassphraseCacheService extends Service {
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
+                    sendInvalidateBroadcast(referenceKeyId);
 
                 } else {
 
@@ -440,6 +512,7 @@ public class PassphraseCacheService extends Service {
                         am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
                     }
                     mPassphraseCache.clear();
+                    sendInvalidateBroadcast(null);
 
                 }
                 break;
@@ -39,7 +39,9 @@ public class ServiceProgressHandler extends Handler {
         OKAY,
         EXCEPTION,
         UPDATE_PROGRESS,
-        PREVENT_CANCEL;
+        PREVENT_CANCEL,
+        // result of a single part of an operation, arg2 holds its index
+        PARTIAL_RESULT;
 
         private static final MessageStatus[] values = values();
 
@@ -143,6 +145,10 @@ public class ServiceProgressHandler extends Handler {
                 setPreventCancel(true);
                 break;
 
+            case PARTIAL_RESULT:
+                // handled by subclasses
+                break;
+
             default:
                 Log.e(Constants.TAG, "unknown handler message!");
                 break;
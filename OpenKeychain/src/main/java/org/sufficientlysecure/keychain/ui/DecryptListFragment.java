@@ -61,11 +61,14 @@ import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.results.DecryptBatchResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyBatchInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.TemporaryStorageProvider;
 // this import NEEDS to be above the ViewModel one, or it won't compile! (as of 06/06/15)
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
 import org.sufficientlysecure.keychain.ui.DecryptListFragment.DecryptFilesAdapter.ViewModel;
@@ -90,6 +93,9 @@ public class DecryptListFragment
 
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
     public static final String ARG_CURRENT_URI = "current_uri";
+    public static final String ARG_BATCH_URIS = "batch_uris";
+    public static final String ARG_BATCH_ALLOWED = "batch_allowed";
+    public static final String ARG_BATCH_DISABLED = "batch_disabled";
 
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, Uri> mOutputUris;
@@ -98,6 +104,14 @@ public class DecryptListFragment
 
     private Uri mCurrentInputUri;
 
+    // input uris of the running batch operation, by index. null once a result is in
+    private ArrayList<Uri> mBatchInputUris;
+    // files are only decrypted in batches after a single file was decrypted successfully,
+    // and only as long as no file in a batch required user input
+    private boolean mBatchAllowed = false, mBatchDisabled = false;
+    private CryptoOperationHelper<PgpDecryptVerifyBatchInputParcel, DecryptBatchResult>
+            mBatchOperationHelper = new CryptoOperationHelper<>(2, this, new BatchCallback(), null);
+
     private DecryptFilesAdapter mAdapter;
 
     /**
@@ -160,6 +174,9 @@ public class DecryptListFragment
         outState.putParcelable(ARG_OUTPUT_URIS, new ParcelableHashMap<>(mOutputUris));
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putParcelable(ARG_CURRENT_URI, mCurrentInputUri);
+        outState.putParcelableArrayList(ARG_BATCH_URIS, mBatchInputUris);
+        outState.putBoolean(ARG_BATCH_ALLOWED, mBatchAllowed);
+        outState.putBoolean(ARG_BATCH_DISABLED, mBatchDisabled);
 
     }
 
@@ -174,19 +191,23 @@ public class DecryptListFragment
         ParcelableHashMap<Uri,Uri> outputUris = args.getParcelable(ARG_OUTPUT_URIS);
         ParcelableHashMap<Uri,DecryptVerifyResult> results = args.getParcelable(ARG_RESULTS);
         Uri currentInputUri = args.getParcelable(ARG_CURRENT_URI);
+        ArrayList<Uri> batchUris = args.getParcelableArrayList(ARG_BATCH_URIS);
+        mBatchAllowed = args.getBoolean(ARG_BATCH_ALLOWED, false);
+        mBatchDisabled = args.getBoolean(ARG_BATCH_DISABLED, false);
 
-        displayInputUris(inputUris, currentInputUri, cancelledUris,
+        displayInputUris(inputUris, currentInputUri, batchUris, cancelledUris,
                 outputUris != null ? outputUris.getMap() : null,
                 results != null ? results.getMap() : null
         );
     }
 
     private void displayInputUris(ArrayList<Uri> inputUris, Uri currentInputUri,
-            ArrayList<Uri> cancelledUris, HashMap<Uri,Uri> outputUris,
+            ArrayList<Uri> batchUris, ArrayList<Uri> cancelledUris, HashMap<Uri,Uri> outputUris,
             HashMap<Uri,DecryptVerifyResult> results) {
 
         mInputUris = inputUris;
         mCurrentInputUri = currentInputUri;
+        mBatchInputUris = batchUris;
         mOutputUris = outputUris != null ? outputUris : new HashMap<Uri,Uri>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -195,7 +216,9 @@ public class DecryptListFragment
         for (final Uri uri : inputUris) {
             mAdapter.add(uri);
 
-            if (uri.equals(mCurrentInputUri)) {
+            // still being decrypted, by a single operation or a batch
+            if (uri.equals(mCurrentInputUri)
+                    || (mBatchInputUris != null && mBatchInputUris.contains(uri))) {
                 continue;
             }
 
@@ -218,10 +241,29 @@ public class DecryptListFragment
         }
 
         if (mCurrentInputUri == null) {
-            cryptoOperation();
+            decryptNext();
         }
     }
 
+    /**
+     * Starts decryption of the pending input uris, unless an operation is running. If
+     * several files are pending, they are decrypted in a single batch operation.
+     */
+    private void decryptNext() {
+        if (mCurrentInputUri != null || mBatchInputUris != null) {
+            return;
+        }
+
+        if (mBatchAllowed && !mBatchDisabled && mPendingInputUris.size() > 1) {
+            mBatchInputUris = new ArrayList<>(mPendingInputUris);
+            mPendingInputUris.clear();
+            mBatchOperationHelper.cryptoOperation();
+            return;
+        }
+
+        cryptoOperation();
+    }
+
     private void askForOutputFilename(Uri inputUri, String originalFilename, String mimeType) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
             File file = new File(inputUri.getPath());
@@ -282,7 +324,7 @@ public class DecryptListFragment
 
         mAdapter.addResult(uri, result, null, null, null);
 
-        cryptoOperation();
+        decryptNext();
     }
 
     @Override
@@ -292,7 +334,9 @@ public class DecryptListFragment
 
         processResult(uri, result);
 
-        cryptoOperation();
+        // the key is unlocked now, so the remaining files can go without user input
+        mBatchAllowed = true;
+        decryptNext();
     }
 
     @Override
@@ -310,7 +354,7 @@ public class DecryptListFragment
             }
         });
 
-        cryptoOperation();
+        decryptNext();
 
     }
 
@@ -400,7 +444,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (mCurrentInputUri != null || mBatchInputUris != null) {
             return;
         }
 
@@ -409,13 +453,13 @@ public class DecryptListFragment
         mPendingInputUris.add(uri);
         mAdapter.setCancelled(uri, null);
 
-        cryptoOperation();
+        decryptNext();
 
     }
 
     public void displayWithViewIntent(final Uri uri) {
         Activity activity = getActivity();
-        if (activity == null || mCurrentInputUri != null) {
+        if (activity == null || mCurrentInputUri != null || mBatchInputUris != null) {
             return;
         }
 
@@ -504,6 +548,88 @@ public class DecryptListFragment
 
     }
 
+    private class BatchCallback implements
+            CryptoOperationHelper.Callback<PgpDecryptVerifyBatchInputParcel, DecryptBatchResult>,
+            CryptoOperationHelper.PartialResultCallback<DecryptVerifyResult> {
+
+        @Override
+        public PgpDecryptVerifyBatchInputParcel createOperationInput() {
+            PgpDecryptVerifyBatchInputParcel input = new PgpDecryptVerifyBatchInputParcel();
+            for (Uri uri : mBatchInputUris) {
+                input.addInput(uri, mOutputUris.get(uri), true);
+            }
+            return input;
+        }
+
+        @Override
+        public void onCryptoOperationPartialResult(int index, DecryptVerifyResult result) {
+            Uri uri = mBatchInputUris.set(index, null);
+            if (uri == null) {
+                return;
+            }
+
+            // this file needs a passphrase or nfc, handle it on its own later
+            if (result.isPending()) {
+                mBatchDisabled = true;
+                mPendingInputUris.add(uri);
+                return;
+            }
+
+            if (result.success()) {
+                processResult(uri, result);
+            } else {
+                mAdapter.addResult(uri, result, null, null, null);
+            }
+        }
+
+        @Override
+        public void onCryptoOperationSuccess(DecryptBatchResult result) {
+            finishBatch(false);
+        }
+
+        @Override
+        public void onCryptoOperationError(DecryptBatchResult result) {
+            finishBatch(result.cancelled());
+        }
+
+        @Override
+        public void onCryptoOperationCancelled() {
+            finishBatch(true);
+        }
+
+        @Override
+        public boolean onCryptoSetProgress(String msg, int progress, int max) {
+            // progress is shown per file, as results come in
+            return true;
+        }
+
+        private void finishBatch(boolean cancelled) {
+            // files without a result were never started, or the batch was aborted
+            for (final Uri uri : mBatchInputUris) {
+                if (uri == null) {
+                    continue;
+                }
+                if (!cancelled) {
+                    // something went wrong in the batch, go on one file at a time
+                    mBatchDisabled = true;
+                    mPendingInputUris.add(uri);
+                    continue;
+                }
+                mCancelledInputUris.add(uri);
+                mAdapter.setCancelled(uri, new OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        retryUri(uri);
+                    }
+                });
+            }
+            mBatchInputUris = null;
+
+            decryptNext();
+        }
+
+    }
+
     @Override
     public boolean onMenuItemClick(MenuItem menuItem) {
         if (mAdapter.mMenuClickedModel == null || !mAdapter.mMenuClickedModel.hasResult()) {
@@ -511,7 +637,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || mBatchInputUris != null) {
             return true;
         }
 
@@ -340,6 +340,11 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
+        if (data.getOperationResult() == null) {
+            // partial result of a cloud search which is still running
+            return;
+        }
+
         // free old cached key data
         mCachedKeyData = null;
 
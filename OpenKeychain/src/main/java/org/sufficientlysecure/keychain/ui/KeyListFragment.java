@@ -270,27 +270,18 @@ public class KeyListFragment extends LoaderFragment
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
+        Uri baseUri;
+        if (mQuery != null && !mQuery.trim().isEmpty()) {
+            // full text search, every word must be a prefix of a word in the keyring
+            baseUri = KeyRings.buildUnifiedKeyRingsSearchUri(mQuery.trim());
+        } else {
+            baseUri = KeyRings.buildUnifiedKeyRingsUri();
         }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
         return new CursorLoader(getActivity(), baseUri,
-                KeyListAdapter.PROJECTION, where, whereArgs, ORDER);
+                KeyListAdapter.PROJECTION, null, null, ORDER);
     }
 
     @Override
@@ -18,11 +18,15 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysList;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
@@ -35,9 +39,13 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+    // minimum time between two deliveries of partial results
+    private static final long PARTIAL_RESULT_INTERVAL_MILLIS = 300;
+
     Context mContext;
 
 
@@ -48,6 +56,10 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // cancellation flag of the running search, a new one for every load
+    private volatile AtomicBoolean mCancelled = new AtomicBoolean(false);
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -93,13 +105,29 @@ public class ImportKeysListCloudLoader
         onStopLoading();
     }
 
+    @Override
+    protected void onAbandon() {
+        super.onAbandon();
+
+        // a loader is abandoned when it is restarted for a new query
+        mCancelled.set(true);
+    }
+
     @Override
     protected void onStartLoading() {
         forceLoad();
     }
 
+    @Override
+    protected void onForceLoad() {
+        // the previous search stays cancelled if it is still running
+        mCancelled = new AtomicBoolean(false);
+        super.onForceLoad();
+    }
+
     @Override
     protected void onStopLoading() {
+        mCancelled.set(true);
         cancelLoad();
     }
 
@@ -132,12 +160,25 @@ public class ImportKeysListCloudLoader
             parcelableProxy = mParcelableProxy;
         }
 
+        // with enforced fingerprint, only the complete result can be checked
+        PartialResultDelivery partialResultDelivery =
+                enforceFingerprint ? null : new PartialResultDelivery();
         try {
-            ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
-                    mServerQuery,
-                    mCloudPrefs,
-                    parcelableProxy.getProxy()
-            );
+            ArrayList<ImportKeysListEntry> searchResult;
+            try {
+                searchResult = CloudSearch.search(
+                        mServerQuery,
+                        mCloudPrefs,
+                        parcelableProxy.getProxy(),
+                        partialResultDelivery,
+                        mCancelled
+                );
+            } finally {
+                // some searches may go on after this, their results must not replace the final one
+                if (partialResultDelivery != null) {
+                    partialResultDelivery.close();
+                }
+            }
 
             mEntryList.clear();
             // add result to data
@@ -183,4 +224,44 @@ public class ImportKeysListCloudLoader
             mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, getKeyResult);
         }
     }
+
+    /**
+     * Delivers the results found so far while the search is still running, at most once
+     * every PARTIAL_RESULT_INTERVAL_MILLIS. Partial results have no operation result.
+     * They are posted to the main thread before the search returns, so the final result
+     * is always delivered last. Keyservers which ignore interrupts may still add results
+     * after that, these are dropped once the delivery is closed.
+     */
+    private class PartialResultDelivery implements CloudSearch.ProgressListener {
+        private long mLastDelivery = SystemClock.elapsedRealtime();
+        private boolean mClosed = false;
+
+        /** Drops all later results, called before the final result is delivered. */
+        public synchronized void close() {
+            mClosed = true;
+        }
+
+        @Override
+        public synchronized void onResultsAdded(ImportKeysList results) {
+            if (mClosed) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastDelivery < PARTIAL_RESULT_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastDelivery = now;
+
+            final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partial =
+                    new AsyncTaskResultWrapper<>(results.snapshot(), null);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isStarted() && !isAbandoned()) {
+                        deliverResult(partial);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -65,6 +65,14 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         boolean onCryptoSetProgress(String msg, int progress, int max);
     }
 
+    /**
+     * May additionally be implemented by a Callback, for operations which report
+     * results of single parts while they run, like DecryptBatchOperation.
+     */
+    public interface PartialResultCallback<P extends OperationResult> {
+        void onCryptoOperationPartialResult(int index, P result);
+    }
+
     // request codes from CryptoOperationHelper are created essentially
     // a static property, used to identify requestCodes meant for this
     // particular helper. a request code looks as follows:
@@ -287,6 +295,17 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
                             returnData.getParcelable(OperationResult.EXTRA_RESULT);
 
                     onHandleResult(result);
+                } else if (message.arg1 == MessageStatus.PARTIAL_RESULT.ordinal()) {
+
+                    Bundle returnData = message.getData();
+                    if (returnData == null) {
+                        return;
+                    }
+
+                    final OperationResult result =
+                            returnData.getParcelable(OperationResult.EXTRA_RESULT);
+
+                    onHandlePartialResult(message.arg2, result);
                 }
             }
 
@@ -316,6 +335,22 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         cryptoOperation(new CryptoInputParcel());
     }
 
+    public void onHandlePartialResult(int index, OperationResult result) {
+        if (!(mCallback instanceof PartialResultCallback)) {
+            Log.e(Constants.TAG, "partial result for callback which can't handle it, ignoring!");
+            return;
+        }
+
+        try {
+            // noinspection unchecked, because type erasure :(
+            ((PartialResultCallback<OperationResult>) mCallback)
+                    .onCryptoOperationPartialResult(index, result);
+        } catch (ClassCastException e) {
+            throw new AssertionError("bad partial result class ("
+                    + result.getClass().getSimpleName() + "), this is a programming error!");
+        }
+    }
+
     public void onHandleResult(OperationResult result) {
         Log.d(Constants.TAG, "Handling result in OperationHelper success: " + result.success());
 
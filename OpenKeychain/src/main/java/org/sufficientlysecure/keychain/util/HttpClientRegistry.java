@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.content.Context;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of OkHttpClients, one per combination of server and
+ * proxy. Clients are set up once, including certificate pinning by TlsHelper,
+ * and share a single connection pool, so that connections to a server are kept
+ * alive and reused across requests.
+ * <p/>
+ * Connections can only be reused by clients with the same SSLSocketFactory.
+ * Since pinning installs a new one on every call of TlsHelper, reuse of
+ * connections to pinned servers depends on reusing the client.
+ * <p/>
+ * Once set up, all clients share a size bounded LRU response cache on disk.
+ * Keyservers rarely send caching headers, so successful HKP searches without
+ * them are cached for a fixed time. Stale responses are revalidated with a
+ * conditional request if the server sent an ETag or Last-Modified header.
+ * Fetched keys are never taken from the cache, see HkpKeyserver.get.
+ * <p/>
+ * The cache directory must only be used by a single process, so the cache is
+ * set up in the main process only.
+ */
+public class HttpClientRegistry {
+
+    /** Maximum number of idle connections kept alive in the pool, over all servers. */
+    public static final int MAX_IDLE_CONNECTIONS = 8;
+    /** Time after which an idle connection is closed. */
+    public static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Maximum number of concurrent requests to a single server. This is enforced by OkHttp
+     * for asynchronous calls only, callers which run synchronous calls in parallel limit
+     * themselves to this number.
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int CONNECT_TIMEOUT_PROXY_MILLIS = 30000;
+    public static final int READ_TIMEOUT_MILLIS = 45000;
+
+    public static final String CACHE_DIR_NAME = "keyserver";
+    public static final long CACHE_MAX_BYTES = 5 * 1024 * 1024;
+    /** Time for which search results are used without asking the keyserver again. */
+    public static final int INDEX_TTL_SECONDS = (int) TimeUnit.MINUTES.toSeconds(10);
+
+    private static final ConnectionPool sConnectionPool =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MILLIS);
+    private static final HashMap<String, OkHttpClient> sClients = new HashMap<>();
+
+    private static Cache sCache;
+    private static Interceptor sCacheInterceptor;
+
+    private HttpClientRegistry() {
+    }
+
+    /** Sets up the response cache in the cache dir of the app, with default size and times. */
+    public static void setupCache(Context context) {
+        setupCache(new File(context.getCacheDir(), CACHE_DIR_NAME), CACHE_MAX_BYTES,
+                INDEX_TTL_SECONDS);
+    }
+
+    /**
+     * Sets up the response cache used by all clients. Clients created before are
+     * dropped, so that later requests use the new cache.
+     *
+     * @param indexTtlSeconds time to cache search results for, 0 to not cache them
+     */
+    public static synchronized void setupCache(File directory, long maxBytes, int indexTtlSeconds) {
+        if (sCache != null) {
+            try {
+                sCache.close();
+            } catch (IOException e) {
+                Log.w(Constants.TAG, "could not close response cache", e);
+            }
+        }
+        sCache = new Cache(directory, maxBytes);
+        sCacheInterceptor = new HkpCacheInterceptor(indexTtlSeconds);
+        sClients.clear();
+    }
+
+    /** Returns the response cache, for its statistics, or null if none is set up. */
+    public static synchronized Cache getCache() {
+        return sCache;
+    }
+
+    /**
+     * Returns the shared client for requests to the server of this url, through the given
+     * proxy. The returned client must not be modified.
+     * <p/>
+     * If the certificate of a pinned server can't be set up, this logs the error and returns
+     * a client without pinning. That client is not shared, so the next call tries again.
+     *
+     * @param proxy the proxy to use, or null for a direct connection
+     */
+    public static synchronized OkHttpClient getClient(URL url, Proxy proxy) throws IOException {
+        try {
+            return getPinnedClient(url, proxy);
+        } catch (TlsHelper.TlsHelperException e) {
+            Log.w(Constants.TAG, e);
+            return createClient(proxy);
+        }
+    }
+
+    /**
+     * Like getClient, but fails if the certificate of a pinned server can't be set up.
+     *
+     * @param proxy the proxy to use, or null for a direct connection
+     */
+    public static synchronized OkHttpClient getPinnedClient(URL url, Proxy proxy)
+            throws IOException, TlsHelper.TlsHelperException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port + " via " + proxy;
+
+        OkHttpClient client = sClients.get(key);
+        if (client == null) {
+            client = createClient(proxy);
+            TlsHelper.pinCertificateIfNecessary(client, url);
+            sClients.put(key, client);
+        }
+        return client;
+    }
+
+    private static OkHttpClient createClient(Proxy proxy) {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(sConnectionPool);
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_CONNECTIONS_PER_HOST);
+        client.setDispatcher(dispatcher);
+
+        if (sCache != null) {
+            client.setCache(sCache);
+            client.networkInterceptors().add(sCacheInterceptor);
+        }
+
+        if (proxy != null) {
+            client.setProxy(proxy);
+            client.setConnectTimeout(CONNECT_TIMEOUT_PROXY_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            client.setProxy(Proxy.NO_PROXY);
+            client.setConnectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        client.setReadTimeout(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        return client;
+    }
+
+    /**
+     * Adds a max-age to successful HKP search responses which come without any
+     * caching headers, so the cache may use them for the configured time.
+     */
+    private static class HkpCacheInterceptor implements Interceptor {
+        private final int mIndexTtlSeconds;
+
+        HkpCacheInterceptor(int indexTtlSeconds) {
+            mIndexTtlSeconds = indexTtlSeconds;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+
+            if (!"GET".equals(request.method()) || response.code() != 200
+                    || !request.httpUrl().encodedPath().equals("/pks/lookup")
+                    || !"index".equals(request.httpUrl().queryParameter("op"))
+                    || response.header("Cache-Control") != null
+                    || response.header("Expires") != null
+                    || mIndexTtlSeconds <= 0) {
+                return response;
+            }
+
+            return response.newBuilder()
+                    .header("Cache-Control", "max-age=" + mIndexTtlSeconds)
+                    .removeHeader("Pragma")
+                    .build();
+        }
+    }
+
+}
@@ -19,41 +19,96 @@ package org.sufficientlysecure.keychain.util;
 
 import android.os.Parcel;
 
+import org.sufficientlysecure.keychain.Constants;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * If Parcelables are above 1 MB, Android OS fails to send them via the Binder IPC:
  * JavaBinder  E  !!! FAILED BINDER TRANSACTION !!!
- * To overcome this issue this class allows to cache Parcelables, mapped by unique UUIDs,
+ * To overcome this issue this class allows to cache Parcelables, mapped by unique tickets,
  * which are written to the parcel instead of the whole Parcelable.
+ * <p/>
+ * A ticket consists of a random id of this cache instance, drawn once, and a counter,
+ * so tickets are cheap to mint and a ticket from another process or cache instance
+ * never returns a wrong object.
+ * <p/>
+ * Objects which are cached but never read back, eg. because the receiving activity
+ * was killed, would otherwise stay forever. Cached objects are therefore evicted,
+ * oldest first, once they are older than the maximum age, or when the cache exceeds
+ * its maximum number of entries or its maximum size. Objects evicted for age are
+ * counted as leaked.
  */
 public class ParcelableCache<E> {
 
-    private static final UUID NULL_UUID = new UUID(0, 0);
+    /** Estimates the memory used by a cached object. */
+    public interface Sizer<E> {
+        int sizeOf(E object);
+    }
+
+    private static final long NULL_TICKET = 0;
+
+    public static final int DEFAULT_MAX_ENTRIES = 128;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 30 * 60 * 1000;
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final long mMaxAgeNanos;
+    private final Sizer<E> mSizer;
+
+    // never 0, which is the id of the null ticket
+    private final long mCacheId;
+    private long mNextTicket = 1;
+
+    /**
+     * Cached objects by ticket, in the order they were added, which is also the order
+     * of their age. This is used such that when we become parceled, we are well below
+     * the 1 MB boundary that is specified.
+     */
+    private final LinkedHashMap<Long, Entry<E>> mObjectCache = new LinkedHashMap<>();
+    private long mBytes;
+
+    private int mHitCount, mMissCount, mLeakCount, mEvictionCount;
+
+    public ParcelableCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS, null);
+    }
 
     /**
-     * A HashMap of UUID:Object
-     * This is used such that when we become parceled, we are
-     * well below the 1 MB boundary that is specified.
+     * @param sizer estimates the size of cached objects, if null every object counts as one byte
      */
-    private ConcurrentHashMap<UUID, E> objectCache = new ConcurrentHashMap<>();
+    public ParcelableCache(int maxEntries, long maxBytes, long maxAgeMillis, Sizer<E> sizer) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mMaxAgeNanos = maxAgeMillis * 1000 * 1000;
+        mSizer = sizer;
+
+        // the only random number this cache needs
+        long cacheId = UUID.randomUUID().getLeastSignificantBits();
+        mCacheId = cacheId != NULL_TICKET ? cacheId : 1;
+    }
 
     /**
      * Dehydrate a Parcelable (such that it is available after deparcelization)
-     * Returns the NULL uuid (0) if you hand it null.
+     * Returns the null ticket (0) if you hand it null.
      *
      * @param parcelable A Parcelable to dehydrate
-     * @return a UUID, the ticket for your dehydrated Parcelable
+     * @return the ticket for your dehydrated Parcelable
      */
-    private UUID dehydrateParcelable(E parcelable) {
+    private synchronized long dehydrateParcelable(E parcelable) {
         if (parcelable == null) {
-            return NULL_UUID;
-        } else {
-            UUID uuid = UUID.randomUUID();
-            objectCache.put(uuid, parcelable);
-            return uuid;
+            return NULL_TICKET;
         }
+
+        long ticket = mNextTicket++;
+        int size = mSizer != null ? mSizer.sizeOf(parcelable) : 1;
+        mObjectCache.put(ticket, new Entry<>(parcelable, size, System.nanoTime()));
+        mBytes += size;
+        evict();
+        return ticket;
     }
 
     /**
@@ -61,34 +116,109 @@ public class ParcelableCache<E> {
      * invalidating its place in the dehydration pool.
      * This is used such that when parcelized, the Parcelable is no larger than 1 MB.
      *
-     * @param uuid A UUID ticket that identifies the log in question.
-     * @return An OperationLog.
+     * @return the cached object, or null for the null ticket, or if it is no longer cached
      */
-    private E rehydrateParcelable(UUID uuid) {
-        // UUID.equals isn't well documented; we use compareTo instead.
-        if (NULL_UUID.compareTo(uuid) == 0) {
+    private synchronized E rehydrateParcelable(long cacheId, long ticket) {
+        if (cacheId == NULL_TICKET && ticket == NULL_TICKET) {
             return null;
-        } else {
-            E parcelable = objectCache.get(uuid);
-            objectCache.remove(uuid);
-            return parcelable;
+        }
+
+        evict();
+
+        Entry<E> entry = cacheId == mCacheId ? mObjectCache.remove(ticket) : null;
+        if (entry == null) {
+            mMissCount += 1;
+            Log.w(Constants.TAG, "object for ticket " + ticket + " is not in the cache, " + this);
+            return null;
+        }
+        mHitCount += 1;
+        mBytes -= entry.mSize;
+        return entry.mObject;
+    }
+
+    /** Evicts expired entries, and the oldest entries while the cache is too large. */
+    private void evict() {
+        long now = System.nanoTime();
+        Iterator<Entry<E>> it = mObjectCache.values().iterator();
+        while (it.hasNext()) {
+            Entry<E> oldest = it.next();
+            boolean expired = now - oldest.mTime > mMaxAgeNanos;
+            boolean tooLarge = mObjectCache.size() > mMaxEntries || mBytes > mMaxBytes;
+            // the newest entry is kept even if it alone is too large
+            if (!expired && (!tooLarge || mObjectCache.size() == 1)) {
+                break;
+            }
+            it.remove();
+            mBytes -= oldest.mSize;
+            if (expired) {
+                mLeakCount += 1;
+            } else {
+                mEvictionCount += 1;
+            }
         }
     }
 
     public E readFromParcelAndGetFromCache(Parcel source) {
-        long mostSig = source.readLong();
-        long leastSig = source.readLong();
-        UUID mTicket = new UUID(mostSig, leastSig);
+        long cacheId = source.readLong();
+        long ticket = source.readLong();
         // fetch the dehydrated parcelable out of storage (this removes it from the dehydration pool)
-        return rehydrateParcelable(mTicket);
+        return rehydrateParcelable(cacheId, ticket);
     }
 
     public void cacheAndWriteToParcel(E parcelable, Parcel dest) {
         // Get a ticket for our parcelable.
-        UUID mTicket = dehydrateParcelable(parcelable);
-        // And write out the UUID most and least significant bits.
-        dest.writeLong(mTicket.getMostSignificantBits());
-        dest.writeLong(mTicket.getLeastSignificantBits());
+        long ticket = dehydrateParcelable(parcelable);
+        // And write out the ticket, along with the id of this cache
+        dest.writeLong(ticket != NULL_TICKET ? mCacheId : NULL_TICKET);
+        dest.writeLong(ticket);
+    }
+
+    /** Number of objects currently cached. */
+    public synchronized int size() {
+        return mObjectCache.size();
+    }
+
+    /** Estimated size of the objects currently cached. */
+    public synchronized long byteSize() {
+        return mBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /** Number of tickets which were read but not found, because they were evicted or foreign. */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /** Number of objects evicted because they were not read back within the maximum age. */
+    public synchronized int leakCount() {
+        return mLeakCount;
+    }
+
+    /** Number of objects evicted because the cache was full. */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ParcelableCache: " + mObjectCache.size() + " entries, " + mBytes + " bytes, "
+                + mHitCount + " hits, " + mMissCount + " misses, "
+                + mLeakCount + " leaked, " + mEvictionCount + " evicted";
+    }
+
+    private static class Entry<E> {
+        final E mObject;
+        final int mSize;
+        final long mTime;
+
+        Entry(E object, int size, long time) {
+            mObject = object;
+            mSize = size;
+            mTime = time;
+        }
     }
 
 }
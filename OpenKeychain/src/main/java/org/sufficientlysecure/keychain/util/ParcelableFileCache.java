@@ -24,15 +24,23 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * When sending large data (over 1MB) through Androids Binder IPC you get
@@ -40,48 +48,130 @@ import java.util.Iterator;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file starts with a header, followed by the marshalled Parcels, optionally
+ * deflated, and ends with an index of their offsets:
+ * <pre>
+ * header:  int magic, int flags
+ * entries: byte[] entry...
+ * index:   (long offset, int stored length, int marshalled length)...
+ * trailer: long index offset, int number of entries, int magic
+ * </pre>
+ * The index allows random access to the entries, see {@link #openCache()}.
+ * Files of the previous format, which is just the number of entries followed
+ * by length prefixed entries, are still read. Their index is built by a scan
+ * over the length prefixes.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    // "PCL" and format version 2
+    private static final int MAGIC = 0x50434c02;
+    private static final int FLAG_COMPRESSED = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+
+    // larger files are read with positional reads instead of being mapped, to
+    // not run out of address space
+    private static final long MAX_MAPPED_SIZE = 128 * 1024 * 1024;
+
     private Context mContext;
 
     private final String mFilename;
+    private final boolean mCompressed;
 
     public ParcelableFileCache(Context context, String filename) {
+        this(context, filename, false);
+    }
+
+    /**
+     * @param compressed if true, entries are deflated when written. Reading detects
+     *                   this by itself.
+     */
+    public ParcelableFileCache(Context context, String filename, boolean compressed) {
         mContext = context;
         mFilename = filename;
+        mCompressed = compressed;
     }
 
     public void writeCache(IteratorWithSize<E> it) throws IOException {
         writeCache(it.getSize(), it);
     }
 
+    /**
+     * @param numEntries expected number of entries. The number of entries read back is
+     *                   the number actually written, which is stored in the index.
+     */
     public void writeCache(int numEntries, Iterator<E> it) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
+        File tempFile = getFile();
 
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
+        long[] offsets = new long[Math.max(16, numEntries)];
+        int[] storedLengths = new int[offsets.length];
+        int[] rawLengths = new int[offsets.length];
+        int count = 0;
 
+        Deflater deflater = mCompressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] deflateBuf = new byte[512];
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
 
         try {
-            oos.writeInt(numEntries);
+            oos.writeInt(MAGIC);
+            oos.writeInt(mCompressed ? FLAG_COMPRESSED : 0);
+            long offset = HEADER_SIZE;
 
             while (it.hasNext()) {
                 Parcel p = Parcel.obtain(); // creating empty parcel object
                 p.writeParcelable(it.next(), 0); // saving bundle as parcel
                 byte[] buf = p.marshall();
-                oos.writeInt(buf.length);
-                oos.write(buf);
                 p.recycle();
+
+                byte[] stored = buf;
+                int storedLength = buf.length;
+                if (deflater != null) {
+                    deflater.reset();
+                    deflater.setInput(buf);
+                    deflater.finish();
+                    storedLength = 0;
+                    while (!deflater.finished()) {
+                        if (storedLength == deflateBuf.length) {
+                            deflateBuf = Arrays.copyOf(deflateBuf, deflateBuf.length * 2);
+                        }
+                        storedLength += deflater.deflate(deflateBuf, storedLength,
+                                deflateBuf.length - storedLength);
+                    }
+                    stored = deflateBuf;
+                }
+                oos.write(stored, 0, storedLength);
+
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    storedLengths = Arrays.copyOf(storedLengths, count * 2);
+                    rawLengths = Arrays.copyOf(rawLengths, count * 2);
+                }
+                offsets[count] = offset;
+                storedLengths[count] = storedLength;
+                rawLengths[count] = buf.length;
+                count += 1;
+                offset += storedLength;
+            }
+
+            for (int i = 0; i < count; i++) {
+                oos.writeLong(offsets[i]);
+                oos.writeInt(storedLengths[i]);
+                oos.writeInt(rawLengths[i]);
             }
+            oos.writeLong(offset);
+            oos.writeInt(count);
+            oos.writeInt(MAGIC);
         } finally {
             oos.close();
+            if (deflater != null) {
+                deflater.end();
+            }
         }
 
     }
@@ -104,31 +194,17 @@ public class ParcelableFileCache<E extends Parcelable> {
      */
     public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        final File tempFile = new File(cacheDir, mFilename);
-        final DataInputStream ois;
-        try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
-        } catch (FileNotFoundException e) {
-            Log.e(Constants.TAG, "parcel import file not existing", e);
-            throw new IOException(e);
-        }
-
-        final int numEntries = ois.readInt();
+        final File tempFile = getFile();
+        final CacheReader<E> reader = openCache();
+        final Iterator<E> it = reader.iterator(0, reader.getSize());
 
         return new IteratorWithSize<E>() {
 
             E mRing = null;
             boolean closed = false;
-            byte[] buf = new byte[512];
 
             public int getSize() {
-                return numEntries;
+                return reader.getSize();
             }
 
             private void readNext() {
@@ -136,24 +212,14 @@ public class ParcelableFileCache<E extends Parcelable> {
                     return;
                 }
 
-                try {
-
-                    int length = ois.readInt();
-                    while (buf.length < length) {
-                        buf = new byte[buf.length * 2];
-                    }
-                    ois.readFully(buf, 0, length);
-
-                    Parcel parcel = Parcel.obtain(); // creating empty parcel object
-                    parcel.unmarshall(buf, 0, length);
-                    parcel.setDataPosition(0);
-                    mRing = parcel.readParcelable(KeychainApplication.class.getClassLoader());
-                    parcel.recycle();
-                } catch (EOFException e) {
-                    // aight
+                if (!it.hasNext()) {
                     close();
-                } catch (IOException e) {
-                    Log.e(Constants.TAG, "Encountered IOException during cache read!", e);
+                    return;
+                }
+                try {
+                    mRing = it.next();
+                } catch (CacheReadException e) {
+                    Log.e(Constants.TAG, "Encountered IOException during cache read!", e.getCause());
                 }
 
             }
@@ -187,14 +253,10 @@ public class ParcelableFileCache<E extends Parcelable> {
 
             private void close() {
                 if (!closed) {
-                    try {
-                        ois.close();
-                        if (deleteAfterRead) {
-                            //noinspection ResultOfMethodCallIgnored
-                            tempFile.delete();
-                        }
-                    } catch (IOException e) {
-                        // nvm
+                    reader.close();
+                    if (deleteAfterRead) {
+                        //noinspection ResultOfMethodCallIgnored
+                        tempFile.delete();
                     }
                 }
                 closed = true;
@@ -204,16 +266,246 @@ public class ParcelableFileCache<E extends Parcelable> {
         };
     }
 
+    /**
+     * Opens the cache file for random access to its entries. The returned reader must be
+     * closed after use, the file is not deleted.
+     */
+    public CacheReader<E> openCache() throws IOException {
+        File tempFile = getFile();
+
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(tempFile);
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "parcel import file not existing", e);
+            throw new IOException(e);
+        }
+
+        try {
+            return new CacheReader<>(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
     public boolean delete() throws IOException {
+        return getFile().delete();
+    }
 
+    private File getFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
+        return new File(cacheDir, mFilename);
+    }
+
+    /**
+     * Random access to the entries of a cache file. Entries are read straight from a
+     * memory map of the file, or with positional reads for very large files, so any
+     * number of threads may read entries at the same time, eg. with one iterator over
+     * a separate range of positions each.
+     */
+    public static class CacheReader<E extends Parcelable> implements Closeable {
+
+        private final FileInputStream mIn;
+        private final FileChannel mChannel;
+        private final MappedByteBuffer mMap;
+        private final long mFileSize;
+        private final boolean mCompressed;
+
+        private final long[] mOffsets;
+        private final int[] mStoredLengths;
+        private final int[] mRawLengths;
+        private final int mSize;
+
+        private CacheReader(FileInputStream in) throws IOException {
+            mIn = in;
+            mChannel = in.getChannel();
+
+            long fileSize = mChannel.size();
+            mFileSize = fileSize;
+            mMap = fileSize <= MAX_MAPPED_SIZE
+                    ? mChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize) : null;
+
+            if (fileSize < 4) {
+                throw new IOException("cache file is truncated");
+            }
+            if (readAt(0, 4).getInt() != MAGIC) {
+                // previous format, index the length prefixed entries
+                mCompressed = false;
+                int numEntries = readAt(0, 4).getInt();
+                mOffsets = new long[Math.max(0, numEntries)];
+                mStoredLengths = new int[mOffsets.length];
+                mRawLengths = mStoredLengths;
+
+                long offset = 4;
+                int count = 0;
+                while (count < mOffsets.length && offset + 4 <= fileSize) {
+                    int length = readAt(offset, 4).getInt();
+                    if (length < 0 || offset + 4 + length > fileSize) {
+                        break;
+                    }
+                    mOffsets[count] = offset + 4;
+                    mStoredLengths[count] = length;
+                    count += 1;
+                    offset += 4 + length;
+                }
+                mSize = count;
+                return;
+            }
+
+            if (fileSize < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("cache file is truncated");
+            }
+            ByteBuffer trailer = readAt(fileSize - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int numEntries = trailer.getInt();
+            if (trailer.getInt() != MAGIC || numEntries < 0
+                    || indexOffset + (long) numEntries * INDEX_ENTRY_SIZE != fileSize - TRAILER_SIZE) {
+                throw new IOException("cache file is truncated or corrupt");
+            }
+
+            mCompressed = (readAt(4, 4).getInt() & FLAG_COMPRESSED) != 0;
+            mSize = numEntries;
+            mOffsets = new long[numEntries];
+            mStoredLengths = new int[numEntries];
+            mRawLengths = new int[numEntries];
+
+            ByteBuffer index = readAt(indexOffset, numEntries * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < numEntries; i++) {
+                mOffsets[i] = index.getLong();
+                mStoredLengths[i] = index.getInt();
+                mRawLengths[i] = index.getInt();
+            }
+        }
+
+        /** Returns the number of entries in the cache file. */
+        public int getSize() {
+            return mSize;
+        }
+
+        /** Reads the entry at the given position. */
+        public E get(int position) throws IOException {
+            if (position < 0 || position >= mSize) {
+                throw new IndexOutOfBoundsException("no entry at position " + position);
+            }
+
+            if (mStoredLengths[position] < 0
+                    || mOffsets[position] + mStoredLengths[position] > mFileSize) {
+                throw new IOException("entry " + position + " is out of bounds");
+            }
+            byte[] buf = new byte[mStoredLengths[position]];
+            readAt(mOffsets[position], buf.length).get(buf);
+
+            if (mCompressed) {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(buf);
+                    byte[] raw = new byte[mRawLengths[position]];
+                    int length = 0;
+                    while (length < raw.length && !inflater.finished()) {
+                        int n = inflater.inflate(raw, length, raw.length - length);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        length += n;
+                    }
+                    if (length != raw.length) {
+                        throw new IOException("entry " + position + " is truncated");
+                    }
+                    buf = raw;
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                } finally {
+                    inflater.end();
+                }
+            }
+
+            Parcel parcel = Parcel.obtain(); // creating empty parcel object
+            try {
+                parcel.unmarshall(buf, 0, buf.length);
+                parcel.setDataPosition(0);
+                return parcel.readParcelable(KeychainApplication.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Returns an iterator over the entries from position from, inclusive, to position
+         * to, exclusive. If an entry can't be read, next() throws a CacheReadException.
+         */
+        public Iterator<E> iterator(final int from, final int to) {
+            if (from < 0 || to > mSize || from > to) {
+                throw new IndexOutOfBoundsException("invalid range " + from + " to " + to);
+            }
+
+            return new Iterator<E>() {
+                int mPosition = from;
+
+                @Override
+                public boolean hasNext() {
+                    return mPosition < to;
+                }
+
+                @Override
+                public E next() {
+                    if (mPosition >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        return get(mPosition++);
+                    } catch (IOException e) {
+                        throw new CacheReadException(e);
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+
+        /** Returns a buffer holding length bytes from the file, starting at offset. */
+        private ByteBuffer readAt(long offset, int length) throws IOException {
+            if (mMap != null) {
+                // a duplicate has its own position, the map itself is never moved
+                ByteBuffer buf = mMap.duplicate();
+                buf.position((int) offset);
+                buf.limit((int) offset + length);
+                return buf.slice();
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (mChannel.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("unexpected end of cache file");
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /** Thrown by the iterators of a CacheReader when an entry can't be read. */
+    public static class CacheReadException extends RuntimeException {
+        public CacheReadException(IOException cause) {
+            super(cause);
+        }
     }
 
     /** As the name implies, this is an extended iterator interface, which
@@ -119,6 +119,21 @@ public class Preferences {
         editor.commit();
     }
 
+    /**
+     * Progress of the reimport phase of a cached consolidation: -1 if nothing has been
+     * reimported yet, otherwise the number of public keyrings from the cache which are
+     * known to be back in the database (all secret keyrings are reimported before that).
+     */
+    public int getConsolidateResumePoint() {
+        return mSharedPreferences.getInt(Pref.CONSOLIDATE_RESUME_POINT, -1);
+    }
+
+    public void setConsolidateResumePoint(int value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.CONSOLIDATE_RESUME_POINT, value);
+        editor.commit();
+    }
+
     public boolean isFirstTime() {
         return mSharedPreferences.getBoolean(Constants.Pref.FIRST_TIME, true);
     }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks inside Robolectric, so they measure the actual app classes
+ * including the database. Skipped unless the "benchmark" property is set, see README.
+ * <p/>
+ * JMH can't fork a JVM with the Robolectric class loader set up, so all benchmarks run
+ * in this one. That costs some accuracy, results should only be compared against
+ * results from the same machine with the same settings.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class RunBenchmarks {
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        String include = System.getProperty("benchmark");
+        Assume.assumeNotNull(include);
+
+        File results = new File("build/reports/jmh/results.json");
+        //noinspection ResultOfMethodCallIgnored
+        results.getParentFile().mkdirs();
+
+        // Fixed settings, so results of different releases can be compared
+        Options options = new OptionsBuilder()
+                .include(include.isEmpty() ? "Benchmark" : include)
+                .forks(0)
+                .warmupIterations(5)
+                .measurementIterations(10)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.getPath())
+                .output("build/reports/jmh/human.txt")
+                .build();
+
+        new Runner(options).run();
+    }
+
+}
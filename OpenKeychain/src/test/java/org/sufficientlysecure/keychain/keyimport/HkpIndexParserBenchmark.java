@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of a machine readable HKP index, as returned for a search on a keyserver. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HkpIndexParserBenchmark {
+
+    @Param({ "10", "1000" })
+    int mKeys;
+
+    String mIndex;
+
+    @Setup
+    public void setUp() {
+        // fixed seed, so every run parses the same index
+        Random random = new Random(mKeys);
+
+        StringBuilder index = new StringBuilder("info:1:").append(mKeys).append('\n');
+        for (int i = 0; i < mKeys; i++) {
+            long creation = 1100000000L + random.nextInt(300000000);
+            index.append("pub:");
+            for (int j = 0; j < 5; j++) {
+                index.append(String.format("%08X", random.nextInt()));
+            }
+            index.append(":1:").append(random.nextBoolean() ? 2048 : 4096)
+                    .append(':').append(creation).append("::\n");
+            index.append("uid:User ").append(i).append(" %3Cuser").append(i)
+                    .append("@example.com%3E:").append(creation).append("::\n");
+            index.append("uid:Universit%C3%A4t ").append(i).append(':').append(creation).append("::\n");
+        }
+        mIndex = index.toString();
+    }
+
+    @Benchmark
+    public int parse() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser("user", "hkp://example.com:11371", 0);
+        parser.parse(new StringReader(mIndex), new HkpIndexParser.Listener() {
+            @Override
+            public void onEntry(ImportKeysListEntry entry) {
+            }
+        });
+        if (parser.getEntryCount() != mKeys) {
+            throw new IllegalStateException("index does not parse");
+        }
+        return parser.getEntryCount();
+    }
+
+}
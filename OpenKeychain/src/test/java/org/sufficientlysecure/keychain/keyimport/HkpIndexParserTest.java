@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class HkpIndexParserTest {
+
+    static final String INDEX = "info:1:3\n"
+            + "pub:0123456789abcdef0123456789ABCDEF01234567:1:2048:1400000000::\n"
+            + "uid:Alice %3Calice@example.com%3E:1400000000::\n"
+            + "uid:Universit%C3%A4t:1400000000::\n"
+            + "pub:1111222233334444:17:1024:1300000000::re\n"
+            + "uid:Bob <bob@example.com>:1300000000::r\n"
+            + "pub:5555666677778888:1:4096:1200000000::\n"
+            + "pub:not-hex:1:4096:1200000000::\n"
+            + "uid:Mallory <mallory@example.com>:1200000000::\n"
+            + "pub:9999aaaabbbbcccc:1:4096:1100000000::\n"
+            + "uid:Carol <carol@example.com>:1100000000::\n";
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser("query", "hkp://example.com:11371", 0);
+        ArrayList<ImportKeysListEntry> entries = parse(parser, INDEX);
+
+        Assert.assertEquals("keys without uids or with invalid pub line must be skipped",
+                3, entries.size());
+        Assert.assertFalse("parser must not be truncated without limit", parser.isTruncated());
+
+        ImportKeysListEntry alice = entries.get(0);
+        Assert.assertEquals("fingerprint must be parsed in lower case",
+                "0123456789abcdef0123456789abcdef01234567", alice.getFingerprintHex());
+        Assert.assertEquals("key id must be the end of the fingerprint",
+                "0x89abcdef01234567", alice.getKeyIdHex());
+        Assert.assertEquals("bit strength must be parsed", 2048, (int) alice.getBitStrength());
+        Assert.assertEquals("creation date must be parsed",
+                1400000000L * 1000, alice.getDate().getTime());
+        Assert.assertEquals("user ids must be url decoded", "Alice <alice@example.com>",
+                alice.getPrimaryUserId());
+        Assert.assertEquals("all user ids must be parsed", "Universität", alice.getUserIds().get(1));
+        Assert.assertEquals("query must be set", "query", alice.getQuery());
+        Assert.assertTrue("origin must be set",
+                alice.getOrigins().contains("hkp://example.com:11371"));
+
+        ImportKeysListEntry bob = entries.get(1);
+        Assert.assertNull("key id only must leave fingerprint unset", bob.getFingerprintHex());
+        Assert.assertEquals("key id must be parsed", "0x1111222233334444", bob.getKeyIdHex());
+        Assert.assertTrue("revoked flag must be parsed", bob.isRevoked());
+        Assert.assertTrue("expired flag must be parsed", bob.isExpired());
+
+        Assert.assertEquals("uids after an invalid pub line must not be attributed to another key",
+                "Carol <carol@example.com>", entries.get(2).getPrimaryUserId());
+    }
+
+    @Test
+    public void testMaxResults() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser("query", "hkp://example.com:11371", 2);
+        ArrayList<ImportKeysListEntry> entries = parse(parser, INDEX);
+
+        Assert.assertEquals("parsing must stop at the maximum number of results", 2, entries.size());
+        Assert.assertEquals("entry count must match", 2, parser.getEntryCount());
+        Assert.assertTrue("parser must be truncated", parser.isTruncated());
+    }
+
+    private static ArrayList<ImportKeysListEntry> parse(HkpIndexParser parser, String index)
+            throws Exception {
+        final ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+        parser.parse(new StringReader(index), new HkpIndexParser.Listener() {
+            @Override
+            public void onEntry(ImportKeysListEntry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.HttpClientRegistry;
+
+import java.io.File;
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class HkpKeyserverCacheTest {
+
+    static final String KEY_BLOCK = "-----BEGIN PGP PUBLIC KEY BLOCK-----\n\n"
+            + "bm90IGEgcmVhbCBrZXk=\n"
+            + "-----END PGP PUBLIC KEY BLOCK-----";
+
+    MockWebServer mServer;
+    HkpKeyserver mKeyserver;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        File cacheDir = new File(RuntimeEnvironment.application.getCacheDir(),
+                "keyserver-test-" + System.nanoTime());
+        HttpClientRegistry.setupCache(cacheDir, 1024 * 1024, 600);
+
+        mServer = new MockWebServer();
+        mServer.start();
+        mKeyserver = new HkpKeyserver("127.0.0.1:" + mServer.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testSearchCached() throws Exception {
+        mServer.enqueue(new MockResponse().setBody(HkpIndexParserTest.INDEX));
+
+        List<ImportKeysListEntry> first = mKeyserver.search("example", null);
+        List<ImportKeysListEntry> second = mKeyserver.search("example", null);
+
+        Assert.assertEquals("second search must be answered from the cache",
+                1, mServer.getRequestCount());
+        Assert.assertEquals("cached search must return the same keys",
+                first.size(), second.size());
+        Assert.assertEquals("cached search must return the same keys",
+                first.get(0).getFingerprintHex(), second.get(0).getFingerprintHex());
+        Assert.assertEquals("cache must count the hit",
+                1, HttpClientRegistry.getCache().getHitCount());
+
+        mServer.enqueue(new MockResponse().setBody(HkpIndexParserTest.INDEX));
+        mKeyserver.search("other query", null);
+        Assert.assertEquals("different query must not be answered from the cache",
+                2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testGetNotCached() throws Exception {
+        mServer.enqueue(new MockResponse().setBody(KEY_BLOCK));
+        mServer.enqueue(new MockResponse().setBody(KEY_BLOCK));
+
+        String first = mKeyserver.get("0x1111222233334444", null);
+        String second = mKeyserver.get("0x1111222233334444", null);
+
+        Assert.assertEquals("every get must reach the server", 2, mServer.getRequestCount());
+        Assert.assertEquals("get must return the key", KEY_BLOCK, first);
+        Assert.assertEquals("get must return the key", first, second);
+        Assert.assertEquals("get must ask the server for a fresh response",
+                "no-cache, no-store", mServer.takeRequest().getHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testGetBypassesCachedResponse() throws Exception {
+        // even a response the server allows to cache must not be used for a get
+        mServer.enqueue(new MockResponse().setBody(KEY_BLOCK)
+                .setHeader("Cache-Control", "max-age=3600"));
+        mServer.enqueue(new MockResponse().setBody(KEY_BLOCK));
+
+        mKeyserver.get("0x1111222233334444", null);
+        mKeyserver.get("0x1111222233334444", null);
+
+        Assert.assertEquals("every get must reach the server", 2, mServer.getRequestCount());
+        Assert.assertEquals("get must not be answered from the cache",
+                0, HttpClientRegistry.getCache().getHitCount());
+    }
+
+    @Test
+    public void testErrorsNotCached() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(404).setBody("No keys found"));
+        mServer.enqueue(new MockResponse().setBody(HkpIndexParserTest.INDEX));
+
+        Assert.assertTrue("no keys found must be an empty result",
+                mKeyserver.search("example", null).isEmpty());
+        Assert.assertEquals("error response must not be cached",
+                3, mKeyserver.search("example", null).size());
+        Assert.assertEquals("both searches must reach the server", 2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        // the server's own caching headers take precedence over the configured time
+        mServer.enqueue(new MockResponse().setBody(HkpIndexParserTest.INDEX)
+                .setHeader("Cache-Control", "max-age=0")
+                .setHeader("ETag", "\"index-1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        List<ImportKeysListEntry> first = mKeyserver.search("example", null);
+        List<ImportKeysListEntry> second = mKeyserver.search("example", null);
+
+        Assert.assertEquals("stale response must be revalidated", 2, mServer.getRequestCount());
+        mServer.takeRequest();
+        RecordedRequest revalidation = mServer.takeRequest();
+        Assert.assertEquals("revalidation must be conditional",
+                "\"index-1\"", revalidation.getHeader("If-None-Match"));
+        Assert.assertEquals("revalidated response must return the same keys",
+                first.size(), second.size());
+    }
+
+}
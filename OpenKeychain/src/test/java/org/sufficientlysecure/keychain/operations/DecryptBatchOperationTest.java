@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Date;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.DecryptBatchOperation.PartialResultListener;
+import org.sufficientlysecure.keychain.operations.results.DecryptBatchResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyBatchInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class DecryptBatchOperationTest {
+
+    static Passphrase mPassphrase = TestingUtils.genPassphrase(true);
+    byte[] mCiphertext;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream("dies ist ein plaintext".getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setSymmetricPassphrase(mPassphrase);
+        input.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+
+        PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date()),
+                new InputData(in, in.available()), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        mCiphertext = out.toByteArray();
+    }
+
+    @Test
+    public void testBatchOk() {
+
+        final HashMap<Integer, DecryptVerifyResult> results = new HashMap<>();
+        DecryptBatchResult result = runBatch(results, mCiphertext, mCiphertext);
+
+        Assert.assertTrue("batch must succeed", result.success());
+        Assert.assertEquals("both files must be decrypted", 2, result.mOk);
+        Assert.assertEquals("no file must fail", 0, result.mFail);
+        Assert.assertEquals("every file must be reported", 2, results.size());
+        Assert.assertEquals("batch must finish with ok message",
+                LogType.MSG_DC_BATCH_OK, result.getLog().getLast().mType);
+        Assert.assertFalse("batch without failures must not have warnings",
+                result.getLog().containsType(LogType.MSG_DC_BATCH_FAILED));
+
+    }
+
+    @Test
+    public void testBatchPartialFailure() {
+
+        final HashMap<Integer, DecryptVerifyResult> results = new HashMap<>();
+        DecryptBatchResult result = runBatch(results,
+                mCiphertext, "not an encrypted file".getBytes(), mCiphertext);
+
+        Assert.assertTrue("batch with failed files must still succeed", result.success());
+        Assert.assertEquals("result must have warnings",
+                DecryptBatchResult.RESULT_WARNINGS, result.getResult() & DecryptBatchResult.RESULT_WARNINGS);
+        Assert.assertEquals("good files must be decrypted", 2, result.mOk);
+        Assert.assertEquals("bad file must fail", 1, result.mFail);
+        Assert.assertEquals("no file must be pending", 0, result.mPending);
+
+        Assert.assertEquals("every file must be reported", 3, results.size());
+        Assert.assertTrue("first file must succeed", results.get(0).success());
+        Assert.assertFalse("second file must fail", results.get(1).success());
+        Assert.assertTrue("third file must succeed", results.get(2).success());
+
+        Assert.assertTrue("number of failed files must be logged",
+                result.getLog().containsType(LogType.MSG_DC_BATCH_FAILED));
+        Assert.assertEquals("batch must finish with partial failure message",
+                LogType.MSG_DC_BATCH_PARTIAL, result.getLog().getLast().mType);
+        Assert.assertFalse("batch with failures must not log ok",
+                result.getLog().containsType(LogType.MSG_DC_BATCH_OK));
+
+    }
+
+    private DecryptBatchResult runBatch(final HashMap<Integer, DecryptVerifyResult> results,
+                                        byte[]... files) {
+        PgpDecryptVerifyBatchInputParcel input = new PgpDecryptVerifyBatchInputParcel();
+        for (byte[] file : files) {
+            input.getInputs().add(new PgpDecryptVerifyInputParcel(file)
+                    .setAllowSymmetricDecryption(true));
+        }
+
+        DecryptBatchOperation op = new DecryptBatchOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null,
+                new PartialResultListener() {
+                    @Override
+                    public void onPartialResult(int index, DecryptVerifyResult result) {
+                        Assert.assertNull("every file must be reported once",
+                                results.put(index, result));
+                    }
+                });
+
+        return op.execute(input, new CryptoInputParcel(mPassphrase));
+    }
+
+}
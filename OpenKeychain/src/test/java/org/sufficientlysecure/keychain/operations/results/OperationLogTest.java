@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationLogTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testEntries() throws Exception {
+        OperationLog log = new OperationLog();
+        // more entries than the initial capacity
+        for (int i = 0; i < 20; i++) {
+            log.add(LogType.MSG_IP_APPLY_BATCH, i % 3, i, "param " + i);
+        }
+        log.add(LogType.MSG_IP_ERROR_IO_EXC, 1);
+
+        Assert.assertEquals("log must contain all entries", 21, log.size());
+        List<LogEntryParcel> list = log.toList();
+        Assert.assertEquals("list must contain all entries", 21, list.size());
+        LogEntryParcel entry = list.get(5);
+        Assert.assertEquals("type must be kept", LogType.MSG_IP_APPLY_BATCH, entry.mType);
+        Assert.assertEquals("indent must be kept", 2, entry.mIndent);
+        Assert.assertArrayEquals("parameters must be kept", new Object[] { 5, "param 5" }, entry.mParameters);
+        Assert.assertNull("missing parameters must be null", log.getLast().mParameters);
+
+        Assert.assertTrue("log must contain the type", log.containsType(LogType.MSG_IP_ERROR_IO_EXC));
+        Assert.assertFalse("log must not contain other types", log.containsType(LogType.MSG_IP));
+        Assert.assertTrue("log must contain warnings", log.containsWarnings());
+
+        int count = 0;
+        for (LogEntryParcel ignored : log) {
+            count += 1;
+        }
+        Assert.assertEquals("iterator must return all entries", 21, count);
+
+        log.clear();
+        Assert.assertTrue("log must be empty after clear", log.isEmpty());
+        Assert.assertNull("empty log must have no last entry", log.getLast());
+    }
+
+    @Test
+    public void testMinLevel() throws Exception {
+        OperationLog log = new OperationLog(LogLevel.WARN);
+        log.add(LogType.MSG_IP, 0);
+        log.add(LogType.MSG_IP_APPLY_BATCH, 1);
+        log.add(LogType.MSG_MF_PIN, 1);
+        log.add(LogType.MSG_IP_ERROR_IO_EXC, 1);
+
+        Assert.assertEquals("debug and info entries must be dropped", 2, log.size());
+        Assert.assertEquals("start entry must be kept", LogType.MSG_IP, log.getFirst().mType);
+        Assert.assertEquals("error entry must be kept", LogType.MSG_IP_ERROR_IO_EXC, log.getLast().mType);
+
+        OperationLog debugLog = new OperationLog();
+        debugLog.add(LogType.MSG_IP_APPLY_BATCH, 0);
+        debugLog.add(LogType.MSG_MF_PIN, 0);
+        log.addAll(debugLog);
+        Assert.assertEquals("entries of added logs must be filtered", 2, log.size());
+    }
+
+    @Test
+    public void testSubResult() throws Exception {
+        SingletonResult subResult = new SingletonResult(OperationResult.RESULT_ERROR, LogType.MSG_IP_ERROR_IO_EXC);
+
+        OperationLog log = new OperationLog(LogLevel.ERROR);
+        log.add(subResult, 1);
+
+        SubLogEntryParcel single = log.getSubResultIfSingle();
+        Assert.assertNotNull("single sub result must be returned", single);
+        Assert.assertSame("sub result must be kept", subResult, single.getSubResult());
+        Assert.assertEquals("sub entry must carry the first type of its log",
+                LogType.MSG_IP_ERROR_IO_EXC, single.mType);
+
+        OperationLog other = new OperationLog();
+        other.add(LogType.MSG_IP, 0);
+        other.addAll(log.toList());
+        Assert.assertNull("log with two entries has no single sub result", other.getSubResultIfSingle());
+        Assert.assertTrue("sub entries must be copied", other.toList().get(1) instanceof SubLogEntryParcel);
+    }
+
+    @Test
+    public void testEmptySubResult() throws Exception {
+        DeleteResult subResult = new DeleteResult(OperationResult.RESULT_OK, new OperationLog(), 0, 0);
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IP, 0);
+        log.add(subResult, 1);
+
+        Assert.assertEquals("sub result with empty log must not be added", 1, log.size());
+        Assert.assertEquals("log must keep its own entries", LogType.MSG_IP, log.getLast().mType);
+    }
+
+    @Test
+    public void testParcel() throws Exception {
+        LogEntryParcel entry = new LogEntryParcel(LogType.MSG_IMPORT, 3, 42, 0x1234567890L, "text", null);
+
+        Parcel parcel = Parcel.obtain();
+        entry.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        LogEntryParcel read = LogEntryParcel.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        Assert.assertEquals("type must be read back", entry.mType, read.mType);
+        Assert.assertEquals("indent must be read back", entry.mIndent, read.mIndent);
+        Assert.assertArrayEquals("parameters must be read back with their types",
+                entry.mParameters, read.mParameters);
+    }
+
+    @Test
+    public void testResultWithEvictedLog() throws Exception {
+        SingletonResult result = new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_IP_SUCCESS);
+
+        Parcel parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SingletonResult.CREATOR.createFromParcel(parcel);
+        // the cached log is handed out only once, the second read misses like an evicted one
+        parcel.setDataPosition(0);
+        SingletonResult read = SingletonResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        Assert.assertNotNull("result with evicted log must still have a log", read.getLog());
+        Assert.assertTrue("evicted log must be empty", read.getLog().isEmpty());
+    }
+
+}
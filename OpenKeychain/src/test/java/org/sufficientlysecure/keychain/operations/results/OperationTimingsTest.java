@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationTimingsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        OperationTimings timings = new OperationTimings(false);
+        long start = timings.start();
+        Assert.assertEquals("disabled timings must not read the clock", 0, start);
+        timings.end(Phase.STREAM, start, 1024);
+
+        Assert.assertEquals("disabled timings must not record spans", 0, timings.getCount(Phase.STREAM));
+        Assert.assertEquals("disabled timings must not record bytes", 0, timings.getBytes(Phase.STREAM));
+    }
+
+    @Test
+    public void testPhases() throws Exception {
+        OperationTimings timings = new OperationTimings(true);
+        timings.end(Phase.STREAM, timings.start(), 1000);
+        timings.end(Phase.STREAM, timings.start(), 24);
+        timings.end(Phase.KEY_UNLOCK, timings.start());
+
+        Assert.assertEquals("spans of a phase must be counted", 2, timings.getCount(Phase.STREAM));
+        Assert.assertEquals("bytes of a phase must be summed", 1024, timings.getBytes(Phase.STREAM));
+        Assert.assertTrue("durations must not be negative", timings.getNanos(Phase.STREAM) >= 0);
+        Assert.assertEquals("other phases must be kept apart", 1, timings.getCount(Phase.KEY_UNLOCK));
+        Assert.assertEquals("unrecorded phases must be empty", 0, timings.getCount(Phase.MERGE));
+
+        OperationTimings total = new OperationTimings(true);
+        total.end(Phase.STREAM, total.start(), 1);
+        total.addAll(timings);
+        Assert.assertEquals("added timings must be summed", 3, total.getCount(Phase.STREAM));
+        Assert.assertEquals("added bytes must be summed", 1025, total.getBytes(Phase.STREAM));
+    }
+
+    @Test
+    public void testParcel() throws Exception {
+        OperationTimings timings = new OperationTimings(true);
+        timings.end(Phase.SESSION_KEY, timings.start());
+        timings.end(Phase.STREAM, timings.start(), 4096);
+
+        SingletonResult result = new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_IP_SUCCESS);
+        result.setTimings(timings);
+
+        Parcel parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SingletonResult read = SingletonResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        OperationTimings readTimings = read.getTimings();
+        Assert.assertNotNull("timings must be read back", readTimings);
+        Assert.assertEquals("counts must be read back", 1, readTimings.getCount(Phase.SESSION_KEY));
+        Assert.assertEquals("durations must be read back",
+                timings.getNanos(Phase.STREAM), readTimings.getNanos(Phase.STREAM));
+        Assert.assertEquals("bytes must be read back", 4096, readTimings.getBytes(Phase.STREAM));
+
+        result.setTimings(null);
+        parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        read = SingletonResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        Assert.assertNull("missing timings must stay missing", read.getTimings());
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.robolectric.RuntimeEnvironment;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Keys and messages shared by the benchmarks.
+ * <p/>
+ * Keys are created once per JVM, creating RSA keys takes longer than most of the
+ * benchmarked operations.
+ */
+public class BenchmarkKeys {
+
+    public static final String USER_ID = "Benchmark <benchmark@example.com>";
+    public static final Passphrase PASSPHRASE = new Passphrase("benchmark");
+
+    // creation times of the flooding keys start here, one second apart
+    private static final long FOREIGN_KEY_EPOCH = 1262304000000L;
+
+    private static UncachedKeyRing sSecretRing;
+    private static UncachedKeyRing sPublicRing;
+    private static final HashMap<Integer, UncachedKeyRing> sFloodedRings = new HashMap<>();
+
+    private BenchmarkKeys() {
+    }
+
+    /** A secret key with RSA 2048 subkeys for certification, signing and encryption. */
+    public static synchronized UncachedKeyRing getSecretRing() {
+        if (sSecretRing != null) {
+            return sSecretRing;
+        }
+
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add(USER_ID);
+        parcel.mNewUnlock = new ChangeUnlockParcel(PASSPHRASE);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        if (!result.success()) {
+            throw new IllegalStateException("could not create benchmark key");
+        }
+
+        sSecretRing = result.getRing();
+        return sSecretRing;
+    }
+
+    public static synchronized UncachedKeyRing getPublicRing() {
+        if (sPublicRing == null) {
+            try {
+                sPublicRing = getSecretRing().extractPublicKeyRing();
+            } catch (Exception e) {
+                throw new IllegalStateException("could not extract benchmark public key", e);
+            }
+        }
+        return sPublicRing;
+    }
+
+    /** Saves the secret key to the database, so operations can look it up. */
+    public static void saveSecretRing() {
+        new ProviderHelper(RuntimeEnvironment.application)
+                .saveSecretKeyRing(getSecretRing(), new ProgressScaler());
+    }
+
+    public static long getMasterKeyId() {
+        return getSecretRing().getMasterKeyId();
+    }
+
+    public static long getSigningSubKeyId() {
+        return KeyringTestingHelper.getSubkeyId(getSecretRing(), 1);
+    }
+
+    /**
+     * The public key, with its user id certified by the given number of foreign keys.
+     * <p/>
+     * Foreign certificates are kept without verification, so a single RSA key pair
+     * signs all of them, with different creation times and thus different key ids.
+     */
+    public static synchronized UncachedKeyRing getFloodedRing(int certifications) {
+        UncachedKeyRing flooded = sFloodedRings.get(certifications);
+        if (flooded != null) {
+            return flooded;
+        }
+
+        try {
+            PGPPublicKeyRing ring = new PGPPublicKeyRing(
+                    getPublicRing().getEncoded(), new JcaKeyFingerprintCalculator());
+            PGPPublicKey masterKey = ring.getPublicKey();
+
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(
+                    "RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            generator.initialize(1024);
+            KeyPair keyPair = generator.generateKeyPair();
+
+            for (int i = 0; i < certifications; i++) {
+                PGPKeyPair foreignKey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, keyPair,
+                        new Date(FOREIGN_KEY_EPOCH + i * 1000L));
+                PGPSignatureGenerator signatureGenerator = new PGPSignatureGenerator(
+                        new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL, HashAlgorithmTags.SHA256)
+                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+                signatureGenerator.init(PGPSignature.CASUAL_CERTIFICATION, foreignKey.getPrivateKey());
+                masterKey = PGPPublicKey.addCertification(masterKey, USER_ID,
+                        signatureGenerator.generateCertification(USER_ID, masterKey));
+            }
+
+            flooded = new UncachedKeyRing(PGPPublicKeyRing.insertPublicKey(ring, masterKey));
+        } catch (Exception e) {
+            throw new IllegalStateException("could not create flooded benchmark key", e);
+        }
+
+        sFloodedRings.put(certifications, flooded);
+        return flooded;
+    }
+
+    public static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        // fixed seed, so compression ratios are the same in every run
+        new Random(size).nextBytes(payload);
+        // half random, half text-like, so compression has something to do
+        for (int i = 0; i < size; i += 2) {
+            payload[i] = (byte) ('a' + (payload[i] & 0xf));
+        }
+        return payload;
+    }
+
+}
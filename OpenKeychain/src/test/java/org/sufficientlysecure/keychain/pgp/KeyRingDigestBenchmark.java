@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.spongycastle.bcpg.PacketTags;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The content digest checks which decide whether an imported keyring brings anything
+ * new, and the certificate deduplication of UncachedKeyRing.mergeAll, on a small key
+ * and on a key flooded with certifications.
+ * <p/>
+ * Neither looks at the contents of the certificates, so these are random signature
+ * packets of a typical size instead of real ones, which keeps setup fast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyRingDigestBenchmark {
+
+    private static final int CERTIFICATE_SIZE = 284;
+
+    @Param({ "10", "10000" })
+    int mCertifications;
+
+    byte[][] mCertificates;
+    byte[] mEncoded;
+    byte[] mPacketDigests;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(mCertifications);
+
+        mCertificates = new byte[mCertifications][];
+        for (int i = 0; i < mCertifications; i++) {
+            byte[] body = new byte[CERTIFICATE_SIZE];
+            random.nextBytes(body);
+            mCertificates[i] = packet(PacketTags.SIGNATURE, body);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BenchmarkKeys.getPublicRing().getEncoded());
+        out.write(packet(PacketTags.USER_ID, "Flooded <flooded@example.com>".getBytes("UTF-8")));
+        for (byte[] certificate : mCertificates) {
+            out.write(certificate);
+        }
+        mEncoded = out.toByteArray();
+        mPacketDigests = KeyRingDigest.packetDigests(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        return KeyRingDigest.digest(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] packetDigests() {
+        return KeyRingDigest.packetDigests(mEncoded);
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return KeyRingDigest.containsAll(mPacketDigests, mPacketDigests);
+    }
+
+    /** Merges a keyring with itself, every certificate is seen twice. */
+    @Benchmark
+    public int deduplicateCertificates() {
+        CertificateDigestSet known = new CertificateDigestSet(mCertificates.length);
+        for (byte[] certificate : mCertificates) {
+            known.add(certificate);
+        }
+        for (byte[] certificate : mCertificates) {
+            known.add(certificate);
+        }
+        return known.size();
+    }
+
+    /** Encodes a packet with a new format header. */
+    private static byte[] packet(int tag, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 6);
+        out.write(0xc0 | tag);
+        if (body.length < 192) {
+            out.write(body.length);
+        } else if (body.length < 8384) {
+            out.write(((body.length - 192) >> 8) + 192);
+            out.write((body.length - 192) & 0xff);
+        } else {
+            out.write(0xff);
+            out.write(body.length >> 24);
+            out.write(body.length >> 16);
+            out.write(body.length >> 8);
+            out.write(body.length);
+        }
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+}
@@ -54,4 +54,13 @@ public class KeyRingTest {
         Assert.assertNull(info.email);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void normalizedEmailShouldBeLowerCaseEmailPart() throws Exception {
+        Assert.assertEquals("max@example.com",
+                KeyRing.getNormalizedEmail("Max Mustermann (comment) <Max@Example.COM>"));
+        Assert.assertEquals("max@example.com", KeyRing.getNormalizedEmail("<max@example.com>"));
+        Assert.assertEquals("max@example.com", KeyRing.getNormalizedEmail("max@example.com"));
+        Assert.assertNull(KeyRing.getNormalizedEmail("Max Mustermann (this is a comment)"));
+    }
+
+}
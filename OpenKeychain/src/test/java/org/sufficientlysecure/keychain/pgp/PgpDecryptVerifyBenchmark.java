@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of PgpDecryptVerify for a message created by PgpSignEncryptOperation,
+ * including the key lookups in the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PgpDecryptVerifyBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    int mPayloadSize;
+
+    @Param({ "false", "true" })
+    boolean mArmor;
+
+    // CompressionAlgorithmTags: uncompressed, zip, zlib
+    @Param({ "0", "1", "2" })
+    int mCompression;
+
+    byte[] mMessage;
+    ByteArrayOutputStream mOut;
+
+    @Setup
+    public void setUp() {
+        BenchmarkKeys.saveSecretRing();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptBenchmark.signEncrypt(PgpSignEncryptBenchmark.createInput(mArmor, mCompression),
+                BenchmarkKeys.payload(mPayloadSize), out);
+        mMessage = out.toByteArray();
+        mOut = new ByteArrayOutputStream(mPayloadSize);
+
+        if (decryptVerify() != mPayloadSize) {
+            throw new IllegalStateException("benchmark message does not decrypt");
+        }
+    }
+
+    @Benchmark
+    public int decryptVerify() {
+        mOut.reset();
+
+        PgpDecryptVerify op = new PgpDecryptVerify(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(new ByteArrayInputStream(mMessage), mMessage.length);
+        DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                new CryptoInputParcel(BenchmarkKeys.PASSPHRASE), data, mOut);
+        if (!result.success() || result.getSignatureResult() == null
+                || result.getSignatureResult().getStatus() == OpenPgpSignatureResult.SIGNATURE_ERROR) {
+            throw new IllegalStateException("decryption or verification failed");
+        }
+        return mOut.size();
+    }
+
+}
@@ -692,6 +692,83 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testCleartextSignVerify() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        String signed;
+
+        { // create a cleartext signature
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setCleartextSignature(true);
+            b.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptResult result = op.execute(b,
+                    new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            signed = new String(out.toByteArray());
+            Assert.assertTrue("signed text must announce its hash algorithm",
+                    signed.matches("(?s).*\\nHash: \\w+\\r?\\n.*"));
+        }
+
+        { // verification should succeed
+            DecryptVerifyResult result = verifyCleartext(signed);
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                    result.getSignatureResult().getStatus());
+        }
+
+        { // verification should succeed without a Hash header, which means MD5
+            DecryptVerifyResult result = verifyCleartext(
+                    signed.replaceFirst("Hash: \\w+\\r?\\n", ""));
+            Assert.assertEquals("signature without hash header should be verified and certified",
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                    result.getSignatureResult().getStatus());
+        }
+
+        { // verification should succeed if the Hash header names another algorithm
+            DecryptVerifyResult result = verifyCleartext(
+                    signed.replaceFirst("Hash: \\w+", "Hash: MD5"));
+            Assert.assertEquals("signature with mismatched hash header should be verified and certified",
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                    result.getSignatureResult().getStatus());
+        }
+
+        { // verification should fail for altered text
+            DecryptVerifyResult result = verifyCleartext(
+                    signed.replace("plaintext", "plainText"));
+            Assert.assertEquals("signature over altered text should be an error",
+                    OpenPgpSignatureResult.SIGNATURE_ERROR,
+                    result.getSignatureResult().getStatus());
+        }
+
+    }
+
+    private DecryptVerifyResult verifyCleartext(String signed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(signed.getBytes());
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+        DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                new CryptoInputParcel(), data, out);
+
+        Assert.assertTrue("verification of cleartext signature must succeed", result.success());
+        Assert.assertNotNull("signature result must be present", result.getSignatureResult());
+        return result;
+    }
+
     private PgpDecryptVerify operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
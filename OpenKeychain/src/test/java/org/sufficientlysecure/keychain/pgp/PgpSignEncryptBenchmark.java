@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of PgpSignEncryptOperation for a signed and encrypted message, including
+ * the key lookups in the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PgpSignEncryptBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    int mPayloadSize;
+
+    @Param({ "false", "true" })
+    boolean mArmor;
+
+    // CompressionAlgorithmTags: uncompressed, zip, zlib
+    @Param({ "0", "1", "2" })
+    int mCompression;
+
+    byte[] mPayload;
+    ByteArrayOutputStream mOut;
+    PgpSignEncryptInputParcel mInput;
+
+    @Setup
+    public void setUp() {
+        BenchmarkKeys.saveSecretRing();
+
+        mPayload = BenchmarkKeys.payload(mPayloadSize);
+        mOut = new ByteArrayOutputStream(2 * mPayloadSize + 4096);
+        mInput = createInput(mArmor, mCompression);
+    }
+
+    @Benchmark
+    public int signEncrypt() {
+        mOut.reset();
+        signEncrypt(mInput, mPayload, mOut);
+        return mOut.size();
+    }
+
+    static PgpSignEncryptInputParcel createInput(boolean armor, int compression) {
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setEncryptionMasterKeyIds(new long[] { BenchmarkKeys.getMasterKeyId() });
+        input.setSignatureMasterKeyId(BenchmarkKeys.getMasterKeyId());
+        input.setSignatureSubKeyId(BenchmarkKeys.getSigningSubKeyId());
+        input.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+        input.setEnableAsciiArmorOutput(armor);
+        input.setCompressionId(compression);
+        return input;
+    }
+
+    static void signEncrypt(PgpSignEncryptInputParcel input, byte[] payload, ByteArrayOutputStream out) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(new ByteArrayInputStream(payload), payload.length);
+        PgpSignEncryptResult result = op.execute(input,
+                new CryptoInputParcel(new Date(), BenchmarkKeys.PASSPHRASE), data, out);
+        if (!result.success()) {
+            throw new IllegalStateException("sign and encrypt failed");
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canonicalization and merging as done on import, on a freshly created key and on
+ * the same key flooded with foreign certifications.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UncachedKeyRingBenchmark {
+
+    @Param({ "0", "10000" })
+    int mForeignCertifications;
+
+    UncachedKeyRing mPublicRing;
+    UncachedKeyRing mRing;
+    byte[] mEncoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        mPublicRing = BenchmarkKeys.getPublicRing();
+        mRing = BenchmarkKeys.getFloodedRing(mForeignCertifications);
+        mEncoded = mRing.getEncoded();
+    }
+
+    @Benchmark
+    public UncachedKeyRing decode() throws Exception {
+        return UncachedKeyRing.decodeFromData(mEncoded);
+    }
+
+    @Benchmark
+    public CanonicalizedKeyRing canonicalize() {
+        CanonicalizedKeyRing canonicalized = mRing.canonicalize(new OperationLog(), 0);
+        if (canonicalized == null) {
+            throw new IllegalStateException("canonicalization failed");
+        }
+        return canonicalized;
+    }
+
+    @Benchmark
+    public CanonicalizedKeyRing canonicalizeParallel() {
+        CanonicalizedKeyRing canonicalized = mRing.canonicalize(new OperationLog(), 0, false, true);
+        if (canonicalized == null) {
+            throw new IllegalStateException("canonicalization failed");
+        }
+        return canonicalized;
+    }
+
+    /** Merges the key into the version without foreign certifications, all of them are new. */
+    @Benchmark
+    public UncachedKeyRing merge() {
+        UncachedKeyRing merged = mPublicRing.merge(mRing, new OperationLog(), 0);
+        if (merged == null) {
+            throw new IllegalStateException("merge failed");
+        }
+        return merged;
+    }
+
+    /** Merges the key with itself, as on a refresh which brings nothing new. */
+    @Benchmark
+    public UncachedKeyRing mergeKnown() {
+        UncachedKeyRing merged = mRing.merge(mRing, new OperationLog(), 0);
+        if (merged == null) {
+            throw new IllegalStateException("merge failed");
+        }
+        return merged;
+    }
+
+}
@@ -589,6 +589,59 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testParallelCanonicalize() throws Exception {
+
+        // a broken uid certification and a broken subkey binding, in every position
+        PGPSignature uidSig = forgeSignature(
+                secretKey, PGPSignature.POSITIVE_CERTIFICATION, subHashedPacketsGen, "twi",
+                secretKey.getPublicKey());
+        PGPSignature subkeySig = forgeSignature(
+                secretKey, PGPSignature.SUBKEY_BINDING, subHashedPacketsGen,
+                secretKey.getPublicKey(), secretKey.getPublicKey());
+
+        ArrayList<UncachedKeyRing> rings = new ArrayList<>();
+        rings.add(ring);
+        rings.add(ring.extractPublicKeyRing());
+        for (byte[] encoded : new byte[][] { uidSig.getEncoded(), subkeySig.getEncoded() }) {
+            encoded[encoded.length-10] += 1;
+            for (int i = 0; i < totalPackets; i++) {
+                try {
+                    rings.add(UncachedKeyRing.decodeFromData(
+                            KeyringTestingHelper.injectPacket(ring.getEncoded(), encoded, i)));
+                } catch (Exception e) {
+                    // not a keyring in this position, nothing to canonicalize
+                }
+            }
+        }
+
+        for (UncachedKeyRing modified : rings) {
+            OperationLog sequentialLog = new OperationLog();
+            CanonicalizedKeyRing sequential = modified.canonicalize(sequentialLog, 0, false, false);
+            OperationLog parallelLog = new OperationLog();
+            CanonicalizedKeyRing parallel = modified.canonicalize(parallelLog, 0, false, true);
+
+            Assert.assertEquals("parallel log must have as many entries as sequential one",
+                    sequentialLog.size(), parallelLog.size());
+            for (int i = 0; i < sequentialLog.size(); i++) {
+                OperationResult.LogEntryParcel expected = sequentialLog.toList().get(i);
+                OperationResult.LogEntryParcel actual = parallelLog.toList().get(i);
+                Assert.assertEquals("log entry types must be equal", expected.mType, actual.mType);
+                Assert.assertEquals("log entry indents must be equal", expected.mIndent, actual.mIndent);
+                Assert.assertArrayEquals("log entry parameters must be equal",
+                        expected.mParameters, actual.mParameters);
+            }
+
+            if (sequential == null) {
+                Assert.assertNull("parallel canonicalization must fail like sequential one", parallel);
+            } else {
+                Assert.assertNotNull("parallel canonicalization must succeed like sequential one", parallel);
+                Assert.assertArrayEquals("parallel canonicalization must yield the same keyring",
+                        sequential.getEncoded(), parallel.getEncoded());
+            }
+        }
+
+    }
+
     private static final int[] sigtypes_direct = new int[] {
         PGPSignature.KEY_REVOCATION,
         PGPSignature.DIRECT_KEY,
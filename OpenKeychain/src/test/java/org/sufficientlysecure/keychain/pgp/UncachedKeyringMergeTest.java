@@ -53,6 +53,7 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 import java.io.ByteArrayInputStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Random;
@@ -390,6 +391,39 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Test
+    public void testMergeAll() throws Exception {
+
+        UncachedKeyRing modifiedA, modifiedB; {
+            CanonicalizedSecretKeyRing secretRing =
+                    new CanonicalizedSecretKeyRing(ringA.getEncoded(), false, 0);
+
+            parcel.reset();
+            parcel.mAddUserIds.add("flim");
+            modifiedA = op.modifySecretKeyRing(secretRing, new CryptoInputParcel(new Date(), new Passphrase()), parcel).getRing();
+
+            parcel.reset();
+            parcel.mAddUserIds.add("flam");
+            modifiedB = op.modifySecretKeyRing(secretRing, new CryptoInputParcel(new Date(), new Passphrase()), parcel).getRing();
+        }
+
+        UncachedKeyRing pairwise = ringA.merge(modifiedA, log, 0).merge(modifiedB, log, 0);
+        UncachedKeyRing merged = ringA.mergeAll(Arrays.asList(modifiedA, modifiedB, ringA), log, 0);
+        Assert.assertNotNull("merge of several keyrings must succeed", merged);
+
+        Assert.assertFalse("merge of several keyrings must equal pairwise merges",
+                KeyringTestingHelper.diffKeyrings(
+                        pairwise.getEncoded(), merged.getEncoded(), onlyA, onlyB));
+        Assert.assertTrue("merged keyring must contain first new user id",
+                merged.getPublicKey().getUnorderedUserIds().contains("flim"));
+        Assert.assertTrue("merged keyring must contain second new user id",
+                merged.getPublicKey().getUnorderedUserIds().contains("flam"));
+
+        Assert.assertNull("merge of several keyrings must fail if one has a different key id",
+                ringA.mergeAll(Arrays.asList(modifiedA, ringB), log, 0));
+
+    }
+
     private UncachedKeyRing mergeWithChecks(UncachedKeyRing a, UncachedKeyRing b)
             throws Exception {
         return mergeWithChecks(a, b, a);
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.Security;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class UnlockedKeyCacheTest {
+
+    static UncachedKeyRing staticRing;
+    static Passphrase passphrase = new Passphrase("swag");
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddUserIds.add("twi");
+        parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        staticRing = result.getRing();
+    }
+
+    @After
+    public void tearDown() {
+        UnlockedKeyCache.getInstance().clear();
+    }
+
+    private CanonicalizedSecretKey getSecretKey() throws Exception {
+        return new CanonicalizedSecretKeyRing(staticRing.getEncoded(), false, 0).getSecretKey();
+    }
+
+    @Test
+    public void testCachedUnlock() throws Exception {
+        UnlockedKeyCache.getInstance().setTtl(staticRing.getMasterKeyId(), staticRing.getMasterKeyId(), 180);
+
+        CanonicalizedSecretKey first = getSecretKey();
+        Assert.assertTrue("unlock with correct passphrase must succeed", first.unlock(passphrase));
+        Assert.assertEquals("unlocked key must be cached", 1, UnlockedKeyCache.getInstance().size());
+
+        CanonicalizedSecretKey second = getSecretKey();
+        Assert.assertTrue("unlock with correct passphrase must succeed", second.unlock(passphrase));
+        Assert.assertSame("second unlock must return the cached private key",
+                first.getPrivateKey(), second.getPrivateKey());
+
+        CanonicalizedSecretKey third = getSecretKey();
+        Assert.assertFalse("unlock with wrong passphrase must fail even if key is cached",
+                third.unlock(new Passphrase("wrong")));
+    }
+
+    @Test
+    public void testRemoveAndDisabled() throws Exception {
+        UnlockedKeyCache.getInstance().setTtl(staticRing.getMasterKeyId(), staticRing.getMasterKeyId(), 180);
+
+        CanonicalizedSecretKey key = getSecretKey();
+        Assert.assertTrue("unlock with correct passphrase must succeed", key.unlock(passphrase));
+        UnlockedKeyCache.getInstance().remove(staticRing.getMasterKeyId());
+        Assert.assertEquals("removing by master key id must drop unlocked key",
+                0, UnlockedKeyCache.getInstance().size());
+
+        UnlockedKeyCache.getInstance().setTtl(staticRing.getMasterKeyId(), staticRing.getMasterKeyId(), 0);
+        Assert.assertTrue("unlock with correct passphrase must succeed", getSecretKey().unlock(passphrase));
+        Assert.assertEquals("disabled cache must not hold unlocked keys",
+                0, UnlockedKeyCache.getInstance().size());
+    }
+
+    @Test
+    public void testTtlPerKey() throws Exception {
+        UnlockedKeyCache.getInstance().setTtl(staticRing.getMasterKeyId() + 1, 1L, 180);
+
+        Assert.assertTrue("unlock with correct passphrase must succeed", getSecretKey().unlock(passphrase));
+        Assert.assertEquals("key without ttl must not be cached",
+                0, UnlockedKeyCache.getInstance().size());
+
+        UnlockedKeyCache.getInstance().setTtl(staticRing.getMasterKeyId(), staticRing.getMasterKeyId(), 10);
+
+        CanonicalizedSecretKey first = getSecretKey();
+        Assert.assertTrue("unlock with correct passphrase must succeed", first.unlock(passphrase));
+        Assert.assertEquals("unlocked key must be cached", 1, UnlockedKeyCache.getInstance().size());
+
+        SystemClock.sleep(10 * 1000);
+
+        CanonicalizedSecretKey second = getSecretKey();
+        Assert.assertTrue("unlock with correct passphrase must succeed", second.unlock(passphrase));
+        Assert.assertNotSame("expired key must be unlocked again",
+                first.getPrivateKey(), second.getPrivateKey());
+    }
+
+}
@@ -18,6 +18,9 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,7 +39,13 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRingDigest;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -44,6 +53,7 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -82,6 +92,174 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testSaveKeyRingsBatch() throws Exception {
+
+        UncachedKeyRing first =
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+        UncachedKeyRing second =
+                readRingFromResource("/test-keys/cooperpair/A55120427374F3F7AA5F1166DDA252EBB8EBE1AF.asc");
+        UncachedKeyRing other = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        // second collides with first, which fails the transaction. the other keyrings in
+        // the batch must be saved regardless, and the duplicate must see the first save.
+        List<SaveKeyringResult> results = mProviderHelper.saveKeyRings(
+                Arrays.asList(first, second, other, other).iterator(), 10);
+
+        Assert.assertEquals("there should be one result per keyring", 4, results.size());
+        Assert.assertTrue("first keyring import should succeed", results.get(0).success());
+        Assert.assertFalse("second keyring import should fail", results.get(1).success());
+        Assert.assertTrue("third keyring import should succeed", results.get(2).success());
+        Assert.assertFalse("third keyring should be new", results.get(2).updated());
+        Assert.assertTrue("duplicate keyring import should succeed", results.get(3).success());
+        Assert.assertTrue("duplicate keyring should be an update", results.get(3).updated());
+
+        mProviderHelper.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+        mProviderHelper.getCanonicalizedPublicKeyRing(other.getMasterKeyId());
+
+    }
+
+    @Test public void testSaveUnchanged() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(ring);
+        Assert.assertTrue("first import should succeed", result.success());
+
+        byte[] packetDigests = (byte[]) mProviderHelper.getGenericData(
+                KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()),
+                KeyRingData.PACKET_DIGESTS, ProviderHelper.FIELD_TYPE_BLOB);
+        Assert.assertNotNull("packet digests should be stored", packetDigests);
+        Assert.assertTrue("stored packet digests should contain themselves",
+                KeyRingDigest.containsAll(packetDigests, packetDigests));
+
+        // the stored keyring, as it would come back from a keyserver
+        UncachedKeyRing stored = mProviderHelper.getCanonicalizedPublicKeyRing(
+                ring.getMasterKeyId()).getUncachedKeyRing();
+
+        mProviderHelper.clearLog();
+        result = mProviderHelper.savePublicKeyRing(stored);
+        Assert.assertTrue("second import should succeed", result.success());
+        Assert.assertTrue("second import should be an update", result.updated());
+        Assert.assertTrue("second import should find nothing new",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+        Assert.assertFalse("second import should not merge",
+                result.getLog().containsType(LogType.MSG_IP_MERGE_PUBLIC));
+
+    }
+
+    @Test public void testSaveUnchangedWithoutDigests() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(ring);
+        Assert.assertTrue("first import should succeed", result.success());
+
+        // as stored before the digest columns were added
+        ContentValues values = new ContentValues();
+        values.putNull(KeyRingData.KEY_RING_DIGEST);
+        values.putNull(KeyRingData.PACKET_DIGESTS);
+        RuntimeEnvironment.application.getContentResolver().update(
+                KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()), values, null, null);
+
+        UncachedKeyRing stored = mProviderHelper.getCanonicalizedPublicKeyRing(
+                ring.getMasterKeyId()).getUncachedKeyRing();
+
+        mProviderHelper.clearLog();
+        result = mProviderHelper.savePublicKeyRing(stored);
+        Assert.assertTrue("second import should succeed", result.success());
+        Assert.assertTrue("second import should find nothing new",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+
+        byte[] data = (byte[]) mProviderHelper.getGenericData(
+                KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()),
+                KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
+        byte[] digest = (byte[]) mProviderHelper.getGenericData(
+                KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()),
+                KeyRingData.KEY_RING_DIGEST, ProviderHelper.FIELD_TYPE_BLOB);
+        Assert.assertArrayEquals("missing digest should be filled in",
+                KeyRingDigest.digest(data), digest);
+
+    }
+
+    @Test public void testMasterKeyIdBySubkey() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = ring.getMasterKeyId();
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(ring);
+        Assert.assertTrue("keyring import should succeed", result.success());
+
+        Iterator<UncachedPublicKey> it = ring.getPublicKeys();
+        while (it.hasNext()) {
+            Assert.assertEquals("every subkey should map to its master key",
+                    masterKeyId, mProviderHelper.getMasterKeyId(it.next().getKeyId()));
+        }
+
+        try {
+            mProviderHelper.getMasterKeyId(masterKeyId + 1);
+            Assert.fail("unknown subkey ids should not be found");
+        } catch (ProviderHelper.NotFoundException e) {
+            // expected
+        }
+
+    }
+
+    @Test public void testKeyRingCache() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = ring.getMasterKeyId();
+
+        mProviderHelper.savePublicKeyRing(ring);
+
+        CanonicalizedPublicKeyRing first = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        int hits = KeyRingCache.hitCount();
+        Assert.assertSame("second request should be served from the cache",
+                first, mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId));
+        Assert.assertEquals("second request should be a cache hit", hits + 1, KeyRingCache.hitCount());
+
+        // deleting the keyring must invalidate the cached one
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        try {
+            mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+            Assert.fail("deleted keyring should not be returned from the cache");
+        } catch (ProviderHelper.NotFoundException e) {
+            // expected
+        }
+
+    }
+
+    @Test public void testSearchKeyRings() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = ring.getMasterKeyId();
+        mProviderHelper.savePublicKeyRing(ring);
+
+        // prefix of the long key id, as typed by the user
+        String keyIdPrefix = KeyFormattingUtils.convertKeyIdToHex(masterKeyId).substring(0, 8);
+        Assert.assertEquals("keyring should be found by key id prefix",
+                1, countSearchResults(keyIdPrefix));
+        Assert.assertEquals("nothing should be found for unknown words",
+                0, countSearchResults("xyzzyxyzzy"));
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertEquals("deleted keyring should not be found anymore",
+                0, countSearchResults(keyIdPrefix));
+
+    }
+
+    private int countSearchResults(String query) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsSearchUri(query),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Test public void testImportSymantec() throws Exception {
 
         // symantec pgp desktop exports secret keys without self certificates. we don't support
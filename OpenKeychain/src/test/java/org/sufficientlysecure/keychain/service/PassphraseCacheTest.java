@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PassphraseCacheTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        PassphraseCache cache = new PassphraseCache();
+        Passphrase passphrase = new Passphrase("swordfish");
+
+        cache.put(1L, 2L, passphrase, 180);
+
+        Assert.assertEquals("cached passphrase must be returned for same key ids",
+                passphrase, cache.get(1L, 2L));
+        Assert.assertNull("passphrase must not be returned for a different master key id",
+                cache.get(3L, 2L));
+        Assert.assertNull("passphrase must not be returned for a different subkey id",
+                cache.get(1L, 1L));
+
+        // wiping a returned passphrase must not affect the cached copy
+        cache.get(1L, 2L).removeFromMemory();
+        passphrase.removeFromMemory();
+        Assert.assertEquals("cached passphrase must be independent of returned copies",
+                new Passphrase("swordfish"), cache.get(1L, 2L));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        PassphraseCache cache = new PassphraseCache();
+
+        cache.put(1L, 2L, new Passphrase("swordfish"), 0);
+
+        Assert.assertNull("expired passphrase must not be returned", cache.get(1L, 2L));
+        Assert.assertEquals("expired passphrase must be removed", 0, cache.size());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        PassphraseCache cache = new PassphraseCache();
+
+        cache.put(1L, 2L, new Passphrase("a"), 180);
+        cache.put(1L, 3L, new Passphrase("b"), 180);
+        cache.put(4L, 4L, new Passphrase("c"), 180);
+
+        cache.remove(1L);
+        Assert.assertNull("removing by master key id must remove all its subkeys", cache.get(1L, 2L));
+        Assert.assertNull("removing by master key id must remove all its subkeys", cache.get(1L, 3L));
+        Assert.assertNotNull("unrelated keys must be retained", cache.get(4L, 4L));
+
+        cache.clear();
+        Assert.assertEquals("clear must remove all entries", 0, cache.size());
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ParcelableCacheTest {
+
+    static final ParcelableCache.Sizer<String> STRING_SIZER = new ParcelableCache.Sizer<String>() {
+        @Override
+        public int sizeOf(String object) {
+            return object.length();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(10, 1000, 60 * 1000, STRING_SIZER);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("hello", parcel);
+        cache.cacheAndWriteToParcel(null, parcel);
+        Assert.assertEquals("cached size must be accounted", 5, cache.byteSize());
+
+        parcel.setDataPosition(0);
+        Assert.assertEquals("object must be read back", "hello", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertNull("null must be read back", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("object must be removed after it was read", 0, cache.size());
+        Assert.assertEquals("object must be removed after it was read", 0, cache.byteSize());
+
+        parcel.setDataPosition(0);
+        Assert.assertNull("ticket must only be valid once", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("hits must be counted", 1, cache.hitCount());
+        Assert.assertEquals("misses must be counted", 1, cache.missCount());
+        parcel.recycle();
+    }
+
+    @Test
+    public void testForeignTicket() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(10, 1000, 60 * 1000, STRING_SIZER);
+        ParcelableCache<String> other = new ParcelableCache<>(10, 1000, 60 * 1000, STRING_SIZER);
+
+        // both caches mint the same counter value first
+        Parcel parcel = Parcel.obtain();
+        other.cacheAndWriteToParcel("foreign", parcel);
+        cache.cacheAndWriteToParcel("own", parcel);
+
+        parcel.setDataPosition(0);
+        Assert.assertNull("ticket of another cache must not return an object",
+                cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("own ticket must return its object",
+                "own", cache.readFromParcelAndGetFromCache(parcel));
+        parcel.recycle();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(2, 10, 60 * 1000, STRING_SIZER);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("aaa", parcel);
+        cache.cacheAndWriteToParcel("bbb", parcel);
+        cache.cacheAndWriteToParcel("ccc", parcel);
+        Assert.assertEquals("oldest entry must be evicted over the entry limit", 2, cache.size());
+
+        cache.cacheAndWriteToParcel("dddddd", parcel);
+        Assert.assertEquals("oldest entry must be evicted over the size limit", 2, cache.size());
+        Assert.assertEquals("size must be accounted", 9, cache.byteSize());
+        Assert.assertEquals("evictions must be counted", 2, cache.evictionCount());
+
+        cache.cacheAndWriteToParcel("an entry larger than the whole cache", parcel);
+        Assert.assertEquals("newest entry must be kept even if too large", 1, cache.size());
+        Assert.assertEquals("evictions must be counted", 4, cache.evictionCount());
+
+        parcel.setDataPosition(0);
+        Assert.assertNull("evicted entry must not be read back", cache.readFromParcelAndGetFromCache(parcel));
+        parcel.recycle();
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(10, 1000, 0, STRING_SIZER);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("never read", parcel);
+        Thread.sleep(5);
+
+        parcel.setDataPosition(0);
+        Assert.assertNull("expired entry must not be read back", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("expired entry must be counted as leaked", 1, cache.leakCount());
+        Assert.assertEquals("expired entry must be removed", 0, cache.size());
+        parcel.recycle();
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.BenchmarkKeys;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.CacheReader;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** Writing and reading back keyrings, as done for imports of many keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParcelableFileCacheBenchmark {
+
+    @Param({ "10", "1000" })
+    int mEntries;
+
+    @Param({ "false", "true" })
+    boolean mCompressed;
+
+    ArrayList<ParcelableKeyRing> mKeyRings;
+    ParcelableFileCache<ParcelableKeyRing> mWriteCache;
+    ParcelableFileCache<ParcelableKeyRing> mReadCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] encoded = BenchmarkKeys.getPublicRing().getEncoded();
+        mKeyRings = new ArrayList<>(mEntries);
+        for (int i = 0; i < mEntries; i++) {
+            mKeyRings.add(new ParcelableKeyRing(encoded));
+        }
+
+        mWriteCache = new ParcelableFileCache<>(
+                RuntimeEnvironment.application, "benchmark_write.pcl", mCompressed);
+        mReadCache = new ParcelableFileCache<>(
+                RuntimeEnvironment.application, "benchmark_read.pcl", mCompressed);
+        mReadCache.writeCache(mKeyRings.size(), mKeyRings.iterator());
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        mWriteCache.writeCache(mKeyRings.size(), mKeyRings.iterator());
+    }
+
+    @Benchmark
+    public int read() throws Exception {
+        IteratorWithSize<ParcelableKeyRing> it = mReadCache.readCache(false);
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        return count;
+    }
+
+    /** Random access to a single entry, as done by the import list. */
+    @Benchmark
+    public ParcelableKeyRing readEntry() throws Exception {
+        CacheReader<ParcelableKeyRing> reader = mReadCache.openCache();
+        try {
+            return reader.get(mEntries / 2);
+        } finally {
+            reader.close();
+        }
+    }
+
+}
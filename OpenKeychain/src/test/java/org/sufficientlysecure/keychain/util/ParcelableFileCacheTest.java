@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.util;
 
 import android.os.Bundle;
+import android.os.Parcel;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -32,8 +33,12 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.CacheReader;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -79,4 +84,103 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testRandomAccess() throws Exception {
+
+        ParcelableFileCache<Bundle> cache =
+                new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl");
+        ArrayList<Bundle> list = createBundles(100);
+        cache.writeCache(list.size(), list.iterator());
+
+        CacheReader<Bundle> reader = cache.openCache();
+        try {
+            Assert.assertEquals("number of entries must be correct", list.size(), reader.getSize());
+            Assert.assertEquals("entry must be read by position",
+                    73, reader.get(73).getInt("key1"));
+            Assert.assertEquals("entry must be read by position",
+                    0, reader.get(0).getInt("key1"));
+
+            // disjoint ranges, as they would be read by parallel readers
+            Iterator<Bundle> first = reader.iterator(0, 50);
+            Iterator<Bundle> second = reader.iterator(50, 100);
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals("ranges must be independent", i, first.next().getInt("key1"));
+                Assert.assertEquals("ranges must be independent",
+                        50 + i, second.next().getInt("key1"));
+            }
+            Assert.assertFalse("range must end at its bound", first.hasNext());
+            Assert.assertFalse("range must end at its bound", second.hasNext());
+        } finally {
+            reader.close();
+        }
+
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+
+        ParcelableFileCache<Bundle> cache =
+                new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl", true);
+        ArrayList<Bundle> list = createBundles(50);
+        cache.writeCache(list.size(), list.iterator());
+
+        // reading does not need to know about the compression
+        IteratorWithSize<Bundle> it = new ParcelableFileCache<Bundle>(
+                RuntimeEnvironment.application, "test.pcl").readCache();
+        Assert.assertEquals("number of entries must be correct", list.size(), it.getSize());
+
+        int i = 0;
+        while (it.hasNext()) {
+            Bundle b = it.next();
+            Assert.assertEquals("input values should be equal to output values",
+                    list.get(i).getString("key2"), b.getString("key2"));
+            i += 1;
+        }
+        Assert.assertEquals("all entries must be read", list.size(), i);
+
+    }
+
+    @Test
+    public void testPreviousFormat() throws Exception {
+
+        ArrayList<Bundle> list = createBundles(10);
+
+        // number of entries, followed by length prefixed entries
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test.pcl");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(list.size());
+        for (Bundle b : list) {
+            Parcel p = Parcel.obtain();
+            p.writeParcelable(b, 0);
+            byte[] buf = p.marshall();
+            p.recycle();
+            out.writeInt(buf.length);
+            out.write(buf);
+        }
+        out.close();
+
+        ParcelableFileCache<Bundle> cache =
+                new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl");
+        CacheReader<Bundle> reader = cache.openCache();
+        try {
+            Assert.assertEquals("number of entries must be correct", list.size(), reader.getSize());
+            Assert.assertEquals("entries of previous format must be read by position",
+                    "7", reader.get(7).getString("key2"));
+        } finally {
+            reader.close();
+        }
+
+    }
+
+    private static ArrayList<Bundle> createBundles(int count) {
+        ArrayList<Bundle> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Bundle b = new Bundle();
+            b.putInt("key1", i);
+            b.putString("key2", Integer.toString(i));
+            list.add(b);
+        }
+        return list;
+    }
+
 }